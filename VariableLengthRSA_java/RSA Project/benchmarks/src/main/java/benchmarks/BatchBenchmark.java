@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Blocks per second on one thread for RsaKeyContext.encryptBlocks/decryptBlocks (groups of getBatchLanes() blocks
+ * through BatchMontgomery) against the same blocks one at a time with encryptBlock/decryptBlock, e = 65537 and CRT
+ *
+ * The batched path only differs when the Vector API is available, so run it with the incubator module:
+ *   java -jar benchmarks/target/benchmarks.jar BatchBenchmark -jvmArgsAppend "--add-modules jdk.incubator.vector"
+ * Without it getBatchLanes() is 1 and both sides do the same work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+    // a multiple of 4 (AVX2) and 8 (AVX-512) lanes
+    private static final int BLOCKS = 16;
+
+    @Param({"2048", "4096"})
+    public int bits;
+
+    private Object publicKey;
+    private Object privateKey;
+    private int modulusLength;
+    private int blockSize;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private byte[] out;
+
+    @Setup
+    public void setup() {
+        TestKey key = new TestKey(bits, false, 42);
+        publicKey = Core.publicKey(key);
+        privateKey = Core.privateKey(key);
+        modulusLength = bits / 8;
+        blockSize = modulusLength - 42;
+        plaintext = new byte[BLOCKS * blockSize];
+        new Random(7).nextBytes(plaintext);
+        ciphertext = new byte[BLOCKS * modulusLength];
+        Core.encryptBlocks(publicKey, plaintext, 0, blockSize, ciphertext, 0, BLOCKS);
+        out = new byte[BLOCKS * modulusLength];
+        System.out.println("Batch lanes: " + Core.batchLanes(publicKey));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public byte[] encryptSingle() {
+        for (int i = 0; i < BLOCKS; i++)
+            Core.encryptBlock(publicKey, plaintext, i * blockSize, blockSize, out, i * modulusLength);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public byte[] encryptBatched() {
+        Core.encryptBlocks(publicKey, plaintext, 0, blockSize, out, 0, BLOCKS);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public byte[] decryptSingle() {
+        for (int i = 0; i < BLOCKS; i++)
+            Core.decryptBlock(privateKey, ciphertext, i * modulusLength, out, i * blockSize, blockSize);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public byte[] decryptBatched() {
+        Core.decryptBlocks(privateKey, ciphertext, 0, out, 0, blockSize, BLOCKS);
+        return out;
+    }
+}
@@ -0,0 +1,289 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Access to the RSA core for the benchmarks
+ *
+ * JMH does not allow benchmarks in the default package, and classes in a named package can't refer to classes in
+ * the default package (where VariableLengthRSA lives), so the benchmarks call the core through method handles.
+ * The handles are static final, so the JIT inlines them and the calls cost the same as direct calls.
+ */
+final class Core {
+    private static final MethodType BIG_3 = MethodType.methodType(BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class);
+    private static final MethodType BIG_2 = MethodType.methodType(BigInteger.class, BigInteger.class, BigInteger.class);
+    private static final MethodType JACOBI = MethodType.methodType(int.class, BigInteger.class, BigInteger.class);
+
+    private static final MethodHandle ENCRYPT = find("encrypt", BIG_3);
+    private static final MethodHandle DECRYPT_CRT = find("decrypt", MethodType.methodType(BigInteger.class,
+            BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class));
+    private static final MethodHandle SQUARE_AND_MULTIPLY = find("square_and_multiply", BIG_3);
+    private static final MethodHandle MOD_EXP = find("modExp", BIG_3);
+    private static final MethodHandle GENERATE_PRIME = find("generatePrime", MethodType.methodType(BigInteger.class, int.class, Random.class));
+    private static final MethodHandle JACOBI_ITERATIVE = find("jacobi", JACOBI);
+    private static final MethodHandle JACOBI_RECURSIVE = find("jacobiRecursive", JACOBI);
+    private static final MethodHandle GCD = find("gcd", BIG_2);
+    private static final MethodHandle GCD_RECURSIVE = find("gcdRecursive", BIG_2);
+    private static final MethodHandle INVERSE = find("inverse_mod_n", BIG_2);
+    private static final MethodHandle INVERSE_EUCLID = find("inverse_mod_n_euclid", BIG_2);
+
+    // RsaKeyContext and KeyProfile are in the default package too, so they are passed around as Object
+    private static final MethodHandle KEY_PROFILE = findStatic("KeyProfile", "forName", MethodType.methodType(Object.class, String.class));
+    private static final MethodHandle GENERATE_PRIMES = findStatic("VariableLengthRSA", "generatePrimes", MethodType.methodType(BigInteger[].class, Object.class, Random.class));
+    private static final MethodHandle MULTI_PRIME_KEY = findStatic("RsaKeyContext", "multiPrimePrivateKey", MethodType.methodType(Object.class,
+            BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class, BigInteger.class,
+            BigInteger[].class, BigInteger[].class, BigInteger[].class));
+    private static final MethodHandle DECRYPT_BLOCK = findVirtual("RsaKeyContext", "decryptBlock", MethodType.methodType(BigInteger.class, Object.class, BigInteger.class));
+    private static final MethodHandle PUBLIC_KEY = findStatic("RsaKeyContext", "publicKey", MethodType.methodType(Object.class, BigInteger.class, BigInteger.class));
+    private static final MethodHandle BATCH_LANES = findVirtual("RsaKeyContext", "getBatchLanes", MethodType.methodType(int.class, Object.class));
+    private static final MethodHandle ENCRYPT_BYTES = findVirtual("RsaKeyContext", "encryptBlock", MethodType.methodType(void.class,
+            Object.class, byte[].class, int.class, int.class, byte[].class, int.class));
+    private static final MethodHandle ENCRYPT_BYTES_BATCH = findVirtual("RsaKeyContext", "encryptBlocks", MethodType.methodType(void.class,
+            Object.class, byte[].class, int.class, int.class, byte[].class, int.class, int.class));
+    private static final MethodHandle DECRYPT_BYTES = findVirtual("RsaKeyContext", "decryptBlock", MethodType.methodType(void.class,
+            Object.class, byte[].class, int.class, byte[].class, int.class, int.class));
+    private static final MethodHandle DECRYPT_BYTES_BATCH = findVirtual("RsaKeyContext", "decryptBlocks", MethodType.methodType(void.class,
+            Object.class, byte[].class, int.class, byte[].class, int.class, int.class, int.class));
+
+    private Core() {
+    }
+
+    private static MethodHandle find(String name, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName("VariableLengthRSA"), name, type);
+        }
+        catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    // looks the method up with the default package types, then adapts it to type (where those are Object)
+    private static MethodHandle findStatic(String className, String name, MethodType type) {
+        try {
+            Class<?> owner = Class.forName(className);
+            for (Method method : owner.getMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == type.parameterCount())
+                    return MethodHandles.publicLookup().unreflect(method).asType(type);
+            }
+            throw new NoSuchMethodException(className + "." + name);
+        }
+        catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private static MethodHandle findVirtual(String className, String name, MethodType type) {
+        try {
+            Class<?> owner = Class.forName(className);
+            return MethodHandles.publicLookup().findVirtual(owner, name, type.dropParameterTypes(0, 1)).asType(type);
+        }
+        catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new IllegalStateException(t);
+    }
+
+    static BigInteger encrypt(BigInteger num, BigInteger n, BigInteger e) {
+        try {
+            return (BigInteger) ENCRYPT.invokeExact(num, n, e);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger decrypt(BigInteger num, TestKey key) {
+        try {
+            return (BigInteger) DECRYPT_CRT.invokeExact(num, key.n, key.d, key.p, key.q, key.dP, key.dQ, key.qInv);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // RsaKeyContext for the key, uses k-way CRT when the key has more than two primes
+    static Object privateKey(TestKey key) {
+        try {
+            return (Object) MULTI_PRIME_KEY.invokeExact(key.n, key.e, key.d, key.p, key.q, key.dP, key.dQ, key.qInv,
+                    key.otherPrimes, key.otherExponents, key.otherCoefficients);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger decryptBlock(Object keyContext, BigInteger c) {
+        try {
+            return (BigInteger) DECRYPT_BLOCK.invokeExact(keyContext, c);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object publicKey(TestKey key) {
+        try {
+            return (Object) PUBLIC_KEY.invokeExact(key.n, key.e);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // RsaKeyContext.getBatchLanes, 1 unless the Vector API is in use
+    static int batchLanes(Object keyContext) {
+        try {
+            return (int) BATCH_LANES.invokeExact(keyContext);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void encryptBlock(Object keyContext, byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+        try {
+            ENCRYPT_BYTES.invokeExact(keyContext, src, srcOffset, srcLength, dest, destOffset);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void encryptBlocks(Object keyContext, byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int count) {
+        try {
+            ENCRYPT_BYTES_BATCH.invokeExact(keyContext, src, srcOffset, srcLength, dest, destOffset, count);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void decryptBlock(Object keyContext, byte[] src, int srcOffset, byte[] dest, int destOffset, int destLength) {
+        try {
+            DECRYPT_BYTES.invokeExact(keyContext, src, srcOffset, dest, destOffset, destLength);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void decryptBlocks(Object keyContext, byte[] src, int srcOffset, byte[] dest, int destOffset, int destLength, int count) {
+        try {
+            DECRYPT_BYTES_BATCH.invokeExact(keyContext, src, srcOffset, dest, destOffset, destLength, count);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object keyProfile(String name) {
+        try {
+            return (Object) KEY_PROFILE.invokeExact(name);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger[] generatePrimes(Object profile, Random rand) {
+        try {
+            return (BigInteger[]) GENERATE_PRIMES.invokeExact(profile, rand);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger squareAndMultiply(BigInteger b, BigInteger e, BigInteger m) {
+        try {
+            return (BigInteger) SQUARE_AND_MULTIPLY.invokeExact(b, e, m);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger modExp(BigInteger b, BigInteger e, BigInteger m) {
+        try {
+            return (BigInteger) MOD_EXP.invokeExact(b, e, m);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger generatePrime(int length, Random rand) {
+        try {
+            return (BigInteger) GENERATE_PRIME.invokeExact(length, rand);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int jacobi(BigInteger a, BigInteger n) {
+        try {
+            return (int) JACOBI_ITERATIVE.invokeExact(a, n);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int jacobiRecursive(BigInteger a, BigInteger n) {
+        try {
+            return (int) JACOBI_RECURSIVE.invokeExact(a, n);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger gcd(BigInteger a, BigInteger b) {
+        try {
+            return (BigInteger) GCD.invokeExact(a, b);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger gcdRecursive(BigInteger a, BigInteger b) {
+        try {
+            return (BigInteger) GCD_RECURSIVE.invokeExact(a, b);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger inverse(BigInteger num, BigInteger mod) {
+        try {
+            return (BigInteger) INVERSE.invokeExact(num, mod);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BigInteger inverseEuclid(BigInteger num, BigInteger mod) {
+        try {
+            return (BigInteger) INVERSE_EUCLID.invokeExact(num, mod);
+        }
+        catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole message encrypt/decrypt with a 2048 bit key, from a single block up to about 1 MB (4900 blocks)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class EncryptDecryptBenchmark {
+    @Param({"1", "64", "4900"})
+    public int blocks;
+
+    // "random" is the original key generation (full size e), "f4" uses e = 65537
+    @Param({"f4", "random"})
+    public String exponent;
+
+    private TestKey key;
+    private BigInteger message;
+    private BigInteger ciphertext;
+
+    @Setup
+    public void setup() {
+        key = new TestKey(2048, exponent.equals("random"), 42);
+        message = TestKey.message(blocks, 7);
+        ciphertext = Core.encrypt(message, key.n, key.e);
+    }
+
+    @Benchmark
+    public BigInteger encrypt() {
+        return Core.encrypt(message, key.n, key.e);
+    }
+
+    @Benchmark
+    public BigInteger decrypt() {
+        return Core.decrypt(ciphertext, key);
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A single full size modular exponentiation: square_and_multiply vs the Montgomery engine (modExp) vs BigInteger.modPow
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModExpBenchmark {
+    @Param({"1024", "2048", "4096"})
+    public int bits;
+
+    private BigInteger base;
+    private BigInteger exponent;
+    private BigInteger modulus;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(bits);
+        modulus = new BigInteger(bits, rand).setBit(bits - 1).setBit(0);
+        base = new BigInteger(bits - 1, rand);
+        exponent = new BigInteger(bits - 1, rand);
+    }
+
+    @Benchmark
+    public BigInteger squareAndMultiply() {
+        return Core.squareAndMultiply(base, exponent, modulus);
+    }
+
+    @Benchmark
+    public BigInteger montgomery() {
+        return Core.modExp(base, exponent, modulus);
+    }
+
+    @Benchmark
+    public BigInteger modPow() {
+        return base.modPow(exponent, modulus);
+    }
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 2048 bit keys made of 2, 3 or 4 primes: time to find the primes for a key and to decrypt one block with k-way CRT
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class MultiPrimeBenchmark {
+    @Param({"2", "3", "4"})
+    public int primes;
+
+    private Object profile;
+    private Object keyContext;
+    private BigInteger ciphertext;
+    private long seed;
+    private Random rand;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // generatePrime reports its progress on stdout, keep it out of the JMH output
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        profile = Core.keyProfile(primes == 2 ? "2048" : "2048-" + primes + "p");
+        TestKey key = new TestKey(2048, false, primes, 42);
+        keyContext = Core.privateKey(key);
+        ciphertext = new BigInteger(2040, new Random(7)).modPow(key.e, key.n);
+    }
+
+    @TearDown(Level.Trial)
+    public void restore() {
+        System.setOut(stdout);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextSeed() {
+        rand = new Random(seed++);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public BigInteger[] generatePrimes() {
+        return Core.generatePrimes(profile, rand);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 2, time = 2)
+    @Measurement(iterations = 3, time = 2)
+    public BigInteger decryptBlock() {
+        return Core.decryptBlock(keyContext, ciphertext);
+    }
+}
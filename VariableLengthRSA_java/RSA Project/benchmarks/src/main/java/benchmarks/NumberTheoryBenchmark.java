@@ -0,0 +1,77 @@
+package benchmarks;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * jacobi, gcd and inverse_mod_n with the inputs they get during key generation and primality testing,
+ * each next to the original recursive/Euclid version
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumberTheoryBenchmark {
+    @Param({"1024", "2048"})
+    public int bits;
+
+    private BigInteger prime;   // odd n for the Jacobi symbol, like p in the Solovay-Strassen test
+    private BigInteger a;
+    private BigInteger phiN;
+    private BigInteger e;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(bits);
+        TestKey key = new TestKey(bits, true, bits);
+        prime = key.p;
+        a = new BigInteger(bits, rand).mod(prime);
+        phiN = key.phiN;
+        e = key.e;
+    }
+
+    @Benchmark
+    public int jacobi() {
+        return Core.jacobi(a, prime);
+    }
+
+    @Benchmark
+    public int jacobiRecursive() {
+        return Core.jacobiRecursive(a, prime);
+    }
+
+    @Benchmark
+    public BigInteger gcd() {
+        return Core.gcd(e, phiN);
+    }
+
+    @Benchmark
+    public BigInteger gcdRecursive() {
+        return Core.gcdRecursive(e, phiN);
+    }
+
+    @Benchmark
+    public BigInteger inverseModN() {
+        return Core.inverse(e, phiN);
+    }
+
+    @Benchmark
+    public BigInteger inverseModNEuclid() {
+        return Core.inverseEuclid(e, phiN);
+    }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of generatePrime per bit length. Each invocation uses a fresh seed so the benchmark averages over
+ * many starting points instead of timing the same search again
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class PrimeGenerationBenchmark {
+    @Param({"512", "1024", "1536", "2048"})
+    public int bits;
+
+    private long seed;
+    private Random rand;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void silence() {
+        // generatePrime reports its progress on stdout, keep it out of the JMH output
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void restore() {
+        System.setOut(stdout);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextSeed() {
+        rand = new Random(seed++);
+    }
+
+    @Benchmark
+    public BigInteger generatePrime() {
+        return Core.generatePrime(bits, rand);
+    }
+}
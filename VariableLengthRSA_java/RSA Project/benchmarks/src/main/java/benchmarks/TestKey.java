@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic key material for the benchmarks, so runs can be compared with each other
+ */
+final class TestKey {
+    static final BigInteger F4 = BigInteger.valueOf(65537);
+
+    final BigInteger n;
+    final BigInteger e;
+    final BigInteger d;
+    final BigInteger p;
+    final BigInteger q;
+    final BigInteger dP;
+    final BigInteger dQ;
+    final BigInteger qInv;
+    final BigInteger phiN;
+    // primes after p and q for multi-prime keys, with d mod (r - 1) and (product of the earlier primes)^-1 mod r
+    final BigInteger[] otherPrimes;
+    final BigInteger[] otherExponents;
+    final BigInteger[] otherCoefficients;
+
+    // randomE picks a full size e like the original key generation, otherwise e = 65537
+    TestKey(int bits, boolean randomE, long seed) {
+        this(bits, randomE, 2, seed);
+    }
+
+    TestKey(int bits, boolean randomE, int primeCount, long seed) {
+        Random rand = new Random(seed);
+        BigInteger[] primes = new BigInteger[primeCount];
+        BigInteger product;
+        BigInteger phi;
+        do {
+            product = BigInteger.ONE;
+            phi = BigInteger.ONE;
+            for (int i = 0; i < primeCount; i++) {
+                primes[i] = BigInteger.probablePrime(bits / primeCount + (i < bits % primeCount ? 1 : 0), rand);
+                product = product.multiply(primes[i]);
+                phi = phi.multiply(primes[i].subtract(BigInteger.ONE));
+            }
+        } while (Arrays.stream(primes).distinct().count() != primeCount || product.bitLength() != bits || !phi.gcd(F4).equals(BigInteger.ONE));
+        BigInteger pp = primes[0];
+        BigInteger qq = primes[1];
+
+        BigInteger exp = F4;
+        if (randomE) {
+            do {
+                exp = new BigInteger(phi.bitLength(), rand).mod(phi);
+            } while (!exp.gcd(phi).equals(BigInteger.ONE));
+        }
+
+        p = pp;
+        q = qq;
+        phiN = phi;
+        n = product;
+        e = exp;
+        d = exp.modInverse(phi);
+        dP = d.mod(pp.subtract(BigInteger.ONE));
+        dQ = d.mod(qq.subtract(BigInteger.ONE));
+        qInv = qq.modInverse(pp);
+
+        otherPrimes = Arrays.copyOfRange(primes, 2, primeCount);
+        otherExponents = new BigInteger[otherPrimes.length];
+        otherCoefficients = new BigInteger[otherPrimes.length];
+        BigInteger earlier = pp.multiply(qq);
+        for (int i = 0; i < otherPrimes.length; i++) {
+            otherExponents[i] = d.mod(otherPrimes[i].subtract(BigInteger.ONE));
+            otherCoefficients[i] = earlier.modInverse(otherPrimes[i]);
+            earlier = earlier.multiply(otherPrimes[i]);
+        }
+    }
+
+    // plaintext of the given number of 214 byte blocks, made of printable ascii like the program expects
+    static BigInteger message(int blocks, long seed) {
+        Random rand = new Random(seed);
+        byte[] bytes = new byte[blocks * (2048 / 8 - 42)];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) (' ' + rand.nextInt(95));
+        return new BigInteger(1, bytes);
+    }
+}
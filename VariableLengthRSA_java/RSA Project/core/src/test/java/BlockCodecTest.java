@@ -0,0 +1,71 @@
+/**
+ * Length framing of byte array messages: exactly the bytes that were encrypted come back, zeros included
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class BlockCodecTest {
+    private final RsaKeyContext publicKey = TestKeys.KEY.publicKey();
+    private final RsaKeyContext privateKey = TestKeys.KEY.privateKey();
+    private final BlockCodec codec = new BlockCodec(publicKey);
+    private final int blockSize = publicKey.getBlockSize();
+
+    private void assertRoundTrip(byte[] message) {
+        byte[] ciphertext = VariableLengthRSA.encrypt(message, publicKey, null);
+        assertEquals(codec.ciphertextLength(message.length), ciphertext.length);
+        assertArrayEquals(message, VariableLengthRSA.decrypt(ciphertext, privateKey, null));
+    }
+
+    @Test
+    void keepsTrailingZeros() {
+        byte[] message = TestKeys.randomBytes(3 * blockSize, 20);
+        Arrays.fill(message, message.length - blockSize - 7, message.length, (byte) 0); // the whole last block and more
+        assertRoundTrip(message);
+    }
+
+    @Test
+    void keepsLeadingZeros() {
+        byte[] message = TestKeys.randomBytes(blockSize + 9, 21);
+        Arrays.fill(message, 0, 12, (byte) 0);
+        assertRoundTrip(message);
+    }
+
+    @Test
+    void allZerosAndEmpty() {
+        assertRoundTrip(new byte[2 * blockSize]);
+        assertRoundTrip(new byte[1]);
+        assertRoundTrip(new byte[0]);
+    }
+
+    @Test
+    void blockBoundaries() {
+        // the length prefix takes the first bytes of block 0, so these are one block, two blocks, ...
+        assertEquals(1, codec.ciphertextBlocks(blockSize - BlockCodec.LENGTH_PREFIX));
+        assertEquals(2, codec.ciphertextBlocks(blockSize - BlockCodec.LENGTH_PREFIX + 1));
+        for (int length : new int[] {blockSize - BlockCodec.LENGTH_PREFIX, blockSize - BlockCodec.LENGTH_PREFIX + 1, blockSize, 2 * blockSize - BlockCodec.LENGTH_PREFIX})
+            assertRoundTrip(TestKeys.randomBytes(length, length));
+    }
+
+    @Test
+    void rejectsWrongKeyAndPartialBlocks() {
+        byte[] ciphertext = VariableLengthRSA.encrypt(TestKeys.randomBytes(100, 22), publicKey, null);
+        assertThrows(IllegalArgumentException.class, () -> VariableLengthRSA.decrypt(ciphertext, TestKeys.OTHER_KEY.privateKey(), null));
+        assertThrows(IllegalArgumentException.class, () -> VariableLengthRSA.decrypt(Arrays.copyOf(ciphertext, ciphertext.length - 1), privateKey, null));
+        assertThrows(IllegalArgumentException.class, () -> VariableLengthRSA.decrypt(new byte[0], privateKey, null));
+    }
+
+    @Test
+    void unframeChecksTheLength() {
+        byte[] framed = new byte[2 * blockSize];
+        framed[3] = 10; // 10 bytes fit in one block, so two blocks is wrong
+        assertThrows(IllegalArgumentException.class, () -> codec.unframe(framed));
+        framed[2] = 1; // 266 bytes need two blocks
+        assertEquals(266, codec.unframe(framed).length);
+    }
+}
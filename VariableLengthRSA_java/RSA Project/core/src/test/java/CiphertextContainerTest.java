@@ -0,0 +1,117 @@
+/**
+ * Container headers (version 2 written now, version 1 still readable) and file round trips through them
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CiphertextContainerTest {
+    private final RsaKeyContext publicKey = TestKeys.KEY.publicKey();
+    private final RsaKeyContext privateKey = TestKeys.KEY.privateKey();
+
+    @TempDir
+    Path dir;
+
+    // plaintext that ends in zeros, which version 1 containers can't tell from padding
+    private byte[] message() {
+        byte[] message = TestKeys.randomBytes(5 * publicKey.getBlockSize() + 30, 10);
+        Arrays.fill(message, message.length - 10, message.length, (byte) 0);
+        return message;
+    }
+
+    private Path encrypt(byte[] message) throws IOException {
+        Path plain = dir.resolve("plain.txt");
+        Files.write(plain, message);
+        Path container = dir.resolve("plain.txt.bin");
+        VariableLengthRSA.encryptFile(plain.toString(), container.toString(), publicKey, null);
+        return container;
+    }
+
+    @Test
+    void version2HeaderRecordsGeometryAndLength() throws IOException {
+        byte[] message = message();
+        Path container = encrypt(message);
+        assertTrue(CiphertextContainer.isContainer(container.toString()));
+        try (CiphertextContainer.Reader reader = new CiphertextContainer.Reader(container.toString())) {
+            assertEquals(CiphertextContainer.VERSION, reader.getVersion());
+            assertEquals(0, reader.getFlags());
+            assertNull(reader.getCompression());
+            assertEquals(publicKey.getModulusLength(), reader.getModulusLength());
+            assertEquals(publicKey.getBlockSize(), reader.getBlockSize());
+            assertEquals(6, reader.getBlockCount());
+            assertEquals(message.length, reader.getPlaintextLength());
+            assertTrue(reader.matchesKey(privateKey));
+            assertTrue(!reader.matchesKey(TestKeys.OTHER_KEY.publicKey()));
+        }
+        assertEquals(CiphertextContainer.HEADER_SIZE + 6L * publicKey.getModulusLength(), Files.size(container));
+    }
+
+    @Test
+    void version2KeepsTrailingZeros() throws IOException {
+        byte[] message = message();
+        Path out = dir.resolve("out.txt");
+        assertEquals(message.length, VariableLengthRSA.decryptFile(encrypt(message).toString(), out.toString(), privateKey, null));
+        assertArrayEquals(message, Files.readAllBytes(out));
+    }
+
+    @Test
+    void version1IsStillReadable() throws IOException {
+        byte[] message = message();
+        byte[] v2 = Files.readAllBytes(encrypt(message));
+
+        // version 1 is the same header without the plaintext length
+        ByteBuffer v1 = ByteBuffer.allocate(v2.length - 8);
+        v1.put(v2, 0, 24);
+        v1.putShort(4, (short) 1);
+        v1.put(v2, 32, v2.length - 32);
+        Path container = dir.resolve("v1.bin");
+        Files.write(container, v1.array());
+
+        try (CiphertextContainer.Reader reader = new CiphertextContainer.Reader(container.toString())) {
+            assertEquals(1, reader.getVersion());
+            assertEquals(-1, reader.getPlaintextLength());
+            assertEquals(6, reader.getBlockCount());
+            assertTrue(reader.matchesKey(privateKey));
+        }
+        Path out = dir.resolve("out.txt");
+        VariableLengthRSA.decryptFile(container.toString(), out.toString(), privateKey, null);
+        // the trailing zeros are lost with version 1, everything before them comes back
+        assertArrayEquals(Arrays.copyOf(message, message.length - 10), Files.readAllBytes(out));
+    }
+
+    @Test
+    void rejectsWrongKeyAndDamagedHeaders() throws IOException {
+        Path container = encrypt(message());
+        Path out = dir.resolve("out.txt");
+        assertThrows(IOException.class, () -> VariableLengthRSA.decryptFile(container.toString(), out.toString(), TestKeys.OTHER_KEY.privateKey(), null));
+
+        byte[] bytes = Files.readAllBytes(container);
+        Path truncated = dir.resolve("truncated.bin");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> new CiphertextContainer.Reader(truncated.toString()));
+
+        byte[] flags = bytes.clone();
+        flags[6] = 0x01; // reserved flag bit
+        Path unknownFlags = dir.resolve("flags.bin");
+        Files.write(unknownFlags, flags);
+        assertThrows(IOException.class, () -> new CiphertextContainer.Reader(unknownFlags.toString()));
+
+        byte[] version = bytes.clone();
+        version[5] = 9;
+        Path unknownVersion = dir.resolve("version.bin");
+        Files.write(unknownVersion, version);
+        assertThrows(IOException.class, () -> new CiphertextContainer.Reader(unknownVersion.toString()));
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Compressed payloads: fewer blocks for data that compresses, the same ciphertext size for data that doesn't, and
+ * decryption recognising either
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompressionTest {
+    private final RsaKeyContext publicKey = TestKeys.KEY.publicKey();
+    private final RsaKeyContext privateKey = TestKeys.KEY.privateKey();
+
+    @TempDir
+    Path dir;
+
+    private static byte[] json(int records) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < records; i++)
+            json.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"status\":\"ok\",\"message\":\"request handled\"}");
+        return json.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void compressibleMessageNeedsFewerBlocks() {
+        byte[] message = json(500);
+        byte[] plain = VariableLengthRSA.encrypt(message, publicKey, null);
+        byte[] compressed = VariableLengthRSA.encrypt(message, publicKey, null, Compression.DEFLATE);
+        assertTrue(compressed.length * 5 < plain.length, compressed.length + " vs " + plain.length);
+        assertArrayEquals(message, VariableLengthRSA.decrypt(compressed, privateKey, null));
+    }
+
+    @Test
+    void incompressibleMessageIsLeftAlone() {
+        byte[] message = TestKeys.randomBytes(3000, 50);
+        byte[] ciphertext = VariableLengthRSA.encrypt(message, publicKey, null, Compression.DEFLATE);
+        assertEquals(new BlockCodec(publicKey).ciphertextLength(message.length), ciphertext.length);
+        assertArrayEquals(message, VariableLengthRSA.decrypt(ciphertext, privateKey, null));
+    }
+
+    @Test
+    void compressedFileRoundTrip() throws IOException {
+        byte[] message = json(2000);
+        Path plain = dir.resolve("records.json");
+        Files.write(plain, message);
+        Path container = dir.resolve("records.json.bin");
+        long blocks = VariableLengthRSA.encryptFile(plain.toString(), container.toString(), publicKey, null, Compression.DEFLATE);
+        assertTrue(blocks * publicKey.getBlockSize() < message.length / 5);
+        try (CiphertextContainer.Reader reader = new CiphertextContainer.Reader(container.toString())) {
+            assertSame(Compression.DEFLATE, reader.getCompression());
+        }
+        Path out = dir.resolve("out.json");
+        assertEquals(message.length, VariableLengthRSA.decryptFile(container.toString(), out.toString(), privateKey, null));
+        assertArrayEquals(message, Files.readAllBytes(out));
+    }
+
+    @Test
+    void decompressStopsAtTheLimit() throws IOException {
+        byte[] zeros = Compression.DEFLATE.compress(new byte[1 << 20]);
+        assertEquals(1 << 20, Compression.DEFLATE.decompress(zeros, 0, zeros.length, 1 << 20).length);
+        assertThrows(IllegalArgumentException.class, () -> Compression.DEFLATE.decompress(zeros, 0, zeros.length, (1 << 20) - 1));
+
+        byte[] ciphertext = VariableLengthRSA.encrypt(new byte[1 << 20], publicKey, null, Compression.DEFLATE);
+        BlockCodec codec = new BlockCodec(privateKey);
+        byte[] framed = new byte[codec.ciphertextBlocks(ciphertext) * privateKey.getBlockSize()];
+        codec.decryptBlocks(ciphertext, 0, codec.ciphertextBlocks(ciphertext), framed);
+        assertTrue(BlockCodec.isCompressed(framed));
+        assertThrows(IllegalArgumentException.class, () -> codec.unframeMessage(framed, 1000));
+        assertEquals(1 << 20, codec.unframeMessage(framed).length);
+    }
+
+    @Test
+    void lookupByIdAndName() {
+        assertSame(Compression.DEFLATE, Compression.forId(Compression.DEFLATE.getId()));
+        assertSame(Compression.DEFLATE, Compression.forName("Deflate"));
+        assertThrows(IllegalArgumentException.class, () -> Compression.forId(Compression.MAX_ID));
+        assertThrows(IllegalArgumentException.class, () -> Compression.forName("zstd"));
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Hybrid RSA + AES-GCM files: round trips across segment boundaries, and any change to the file failing to decrypt
+ * without leaving a partial output file behind
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HybridCipherTest {
+    private static final int SEGMENT = HybridCipher.SEGMENT_SIZE;
+    private static ExecutorService executor;
+
+    private final RsaKeyContext publicKey = TestKeys.KEY.publicKey();
+    private final RsaKeyContext privateKey = TestKeys.KEY.privateKey();
+    private final int headerSize = HybridCipher.FIXED_HEADER_SIZE + publicKey.getModulusLength();
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    static void stopExecutor() {
+        executor.shutdown();
+    }
+
+    private Path encrypt(byte[] message) throws IOException {
+        Path plain = dir.resolve("plain.bin");
+        Files.write(plain, message);
+        Path encrypted = dir.resolve("plain.bin.vrsh");
+        assertEquals(message.length, HybridCipher.encryptFile(plain.toString(), encrypted.toString(), publicKey, executor));
+        assertTrue(HybridCipher.isHybrid(encrypted.toString()));
+        return encrypted;
+    }
+
+    private void assertRoundTrip(byte[] message) throws IOException {
+        Path encrypted = encrypt(message);
+        long segments = Math.max(1, (message.length + SEGMENT - 1) / SEGMENT);
+        assertEquals(headerSize + message.length + segments * HybridCipher.TAG_LENGTH, Files.size(encrypted));
+        for (ExecutorService e : new ExecutorService[] {null, executor}) {
+            Path decrypted = dir.resolve("decrypted.bin");
+            assertEquals(message.length, HybridCipher.decryptFile(encrypted.toString(), decrypted.toString(), privateKey, e));
+            assertArrayEquals(message, Files.readAllBytes(decrypted));
+        }
+    }
+
+    // decrypting a changed file fails with IOException and removes the output, even if it was there before
+    private void assertRejected(Path encrypted, RsaKeyContext key) throws IOException {
+        for (ExecutorService e : new ExecutorService[] {null, executor}) {
+            Path decrypted = dir.resolve("rejected.bin");
+            Files.write(decrypted, new byte[] {1, 2, 3});
+            assertThrows(IOException.class, () -> HybridCipher.decryptFile(encrypted.toString(), decrypted.toString(), key, e));
+            assertFalse(Files.exists(decrypted));
+        }
+    }
+
+    private void assertRejectedAfterChange(byte[] encrypted, int offset) throws IOException {
+        byte[] changed = encrypted.clone();
+        changed[offset] ^= 0x20;
+        Path file = dir.resolve("changed.vrsh");
+        Files.write(file, changed);
+        assertRejected(file, privateKey);
+    }
+
+    @Test
+    void roundTripAcrossSegments() throws IOException {
+        assertRoundTrip(TestKeys.randomBytes(1, 100));
+        assertRoundTrip(TestKeys.randomBytes(SEGMENT - 1, 101));
+        assertRoundTrip(TestKeys.randomBytes(SEGMENT, 102));
+        assertRoundTrip(TestKeys.randomBytes(SEGMENT + 1, 103));
+        assertRoundTrip(TestKeys.randomBytes(2 * SEGMENT + 517, 104));
+    }
+
+    @Test
+    void roundTripAcrossBatches() throws IOException {
+        // more segments than are processed at a time
+        assertRoundTrip(TestKeys.randomBytes(9 * SEGMENT + 3, 105));
+    }
+
+    @Test
+    void emptyFile() throws IOException {
+        assertRoundTrip(new byte[0]);
+    }
+
+    @Test
+    void changedFileFailsAuthentication() throws IOException {
+        byte[] message = TestKeys.randomBytes(2 * SEGMENT + 100, 106);
+        byte[] encrypted = Files.readAllBytes(encrypt(message));
+        assertRejectedAfterChange(encrypted, headerSize + 10); // first segment
+        assertRejectedAfterChange(encrypted, headerSize + SEGMENT + HybridCipher.TAG_LENGTH + 10); // second segment
+        assertRejectedAfterChange(encrypted, headerSize + SEGMENT); // first segment's tag
+        assertRejectedAfterChange(encrypted, encrypted.length - 1); // last tag
+        assertRejectedAfterChange(encrypted, HybridCipher.FIXED_HEADER_SIZE + 50); // wrapped key
+        assertRejectedAfterChange(encrypted, 23); // plaintext length
+    }
+
+    @Test
+    void truncatedOrExtendedFile() throws IOException {
+        byte[] encrypted = Files.readAllBytes(encrypt(TestKeys.randomBytes(SEGMENT + 100, 107)));
+        Path file = dir.resolve("truncated.vrsh");
+        for (int length : new int[] {encrypted.length - 1, headerSize + SEGMENT + HybridCipher.TAG_LENGTH, headerSize, 10}) {
+            Files.write(file, Arrays.copyOf(encrypted, length));
+            assertRejected(file, privateKey);
+        }
+        Files.write(file, Arrays.copyOf(encrypted, encrypted.length + 1));
+        assertRejected(file, privateKey);
+    }
+
+    @Test
+    void wrongKey() throws IOException {
+        Path encrypted = encrypt(TestKeys.randomBytes(1000, 108));
+        assertRejected(encrypted, TestKeys.OTHER_KEY.privateKey());
+    }
+}
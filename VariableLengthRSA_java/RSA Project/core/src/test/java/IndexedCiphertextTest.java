@@ -0,0 +1,99 @@
+/**
+ * Range reads of an appended log, in particular ranges that start or end on a record boundary
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IndexedCiphertextTest {
+    private final RsaKeyContext publicKey = TestKeys.KEY.publicKey();
+    private final RsaKeyContext privateKey = TestKeys.KEY.privateKey();
+    private final int blockSize = publicKey.getBlockSize();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rangeReadsAtRecordBoundaries() throws IOException {
+        String file = dir.resolve("log.vrsi").toString();
+        // appends of a full block, a partial block, several blocks and a single byte
+        int[] sizes = {blockSize, 17, 3 * blockSize + 5, 1, blockSize - 1};
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = TestKeys.randomBytes(sizes[i], 30 + i);
+            all.write(data);
+            assertEquals(all.size(), IndexedCiphertext.append(file, data, publicKey, null));
+        }
+        byte[] plain = all.toByteArray();
+
+        List<Integer> boundaries = new ArrayList<>();
+        try (IndexedCiphertext.Reader reader = new IndexedCiphertext.Reader(file)) {
+            assertEquals(plain.length, reader.getPlaintextLength());
+            // every append is split into blocks on its own: 1 + 1 + 4 + 1 + 1 records
+            assertEquals(8, reader.getRecordCount());
+            int offset = 0;
+            for (int size : sizes) {
+                for (int left = size; left > 0; left -= Math.min(left, blockSize)) {
+                    boundaries.add(offset);
+                    offset += Math.min(left, blockSize);
+                }
+            }
+            boundaries.add(offset);
+
+            ExecutorService executor = Executors.newFixedThreadPool(3);
+            try {
+                for (int b : boundaries) {
+                    for (int start : new int[] {b - 1, b, b + 1}) {
+                        for (int end : new int[] {b - 1, b, b + 1, b + blockSize, plain.length}) {
+                            if (start < 0 || end > plain.length || end < start)
+                                continue;
+                            byte[] expected = Arrays.copyOfRange(plain, start, end);
+                            assertArrayEquals(expected, reader.read(start, end - start, privateKey, null), start + ".." + end);
+                            assertArrayEquals(expected, reader.read(start, end - start, privateKey, executor), start + ".." + end);
+                        }
+                    }
+                }
+            }
+            finally {
+                executor.shutdown();
+            }
+            assertArrayEquals(plain, reader.read(0, plain.length, privateKey, null));
+            assertEquals(0, reader.read(plain.length, 0, privateKey, null).length);
+            assertThrows(IndexOutOfBoundsException.class, () -> reader.read(plain.length - 1, 2, privateKey, null));
+            assertThrows(IndexOutOfBoundsException.class, () -> reader.read(-1, 1, privateKey, null));
+            assertThrows(IOException.class, () -> reader.read(0, 1, TestKeys.OTHER_KEY.privateKey(), null));
+        }
+    }
+
+    @Test
+    void readerSeesLaterAppendsAfterRefresh() throws IOException {
+        String file = dir.resolve("log.vrsi").toString();
+        byte[] first = TestKeys.randomBytes(50, 40);
+        byte[] second = TestKeys.randomBytes(blockSize + 3, 41);
+        IndexedCiphertext.append(file, first, publicKey, null);
+        try (IndexedCiphertext.Reader reader = new IndexedCiphertext.Reader(file)) {
+            assertEquals(first.length, reader.getPlaintextLength());
+            IndexedCiphertext.append(file, second, publicKey, null);
+            reader.refresh();
+            assertEquals(first.length + second.length, reader.getPlaintextLength());
+            assertArrayEquals(second, reader.read(first.length, second.length, privateKey, null));
+            // a range across the two appends
+            byte[] across = reader.read(first.length - 5, 10, privateKey, null);
+            assertArrayEquals(Arrays.copyOfRange(first, first.length - 5, first.length), Arrays.copyOf(across, 5));
+            assertArrayEquals(Arrays.copyOf(second, 5), Arrays.copyOfRange(across, 5, 10));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Adding keys to a keyring, opening it again and looking the keys up by id
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class KeyringTest {
+    @TempDir
+    Path dir;
+
+    private String writeKeyFile(String name, String contents) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, contents.getBytes());
+        return file.toString();
+    }
+
+    @Test
+    void addReopenAndLookUp() throws IOException {
+        String file = dir.resolve("keys.vrsk").toString();
+        String id;
+        String otherId;
+        try (Keyring keyring = new Keyring(file)) {
+            id = keyring.add(writeKeyFile("public_key.txt", TestKeys.KEY.publicKeyFile()), writeKeyFile("private_key.txt", TestKeys.KEY.privateKeyFile()));
+            otherId = keyring.add(writeKeyFile("other_public_key.txt", TestKeys.OTHER_KEY.publicKeyFile()), null);
+        }
+        assertEquals(Keyring.keyId(TestKeys.KEY.publicKey()), id);
+        assertEquals(16, id.length());
+
+        byte[] message = TestKeys.randomBytes(500, 60);
+        try (Keyring keyring = new Keyring(file)) {
+            assertEquals(Set.of(id, otherId), keyring.getKeyIds());
+            assertTrue(keyring.hasPrivateKey(id));
+            assertFalse(keyring.hasPrivateKey(otherId));
+            assertTrue(keyring.hasPublicKey(otherId));
+
+            RsaKeyContext publicKey = keyring.publicKey(id);
+            assertEquals(TestKeys.KEY.n, publicKey.getN());
+            assertSame(publicKey, keyring.publicKey(id)); // cached
+            assertTrue(keyring.privateKey(id).usesCrt());
+
+            byte[] ciphertext = keyring.encrypt(id, message, null);
+            assertArrayEquals(message, keyring.decrypt(id, ciphertext, null));
+            // the same as with the key files
+            assertArrayEquals(message, VariableLengthRSA.decrypt(ciphertext, TestKeys.KEY.privateKey(), null));
+
+            assertThrows(IllegalArgumentException.class, () -> keyring.privateKey(otherId));
+            assertThrows(IllegalArgumentException.class, () -> keyring.publicKey("0123456789abcdef"));
+        }
+    }
+
+    @Test
+    void lookupByFullFingerprint() throws IOException {
+        String file = dir.resolve("keys.vrsk").toString();
+        try (Keyring keyring = new Keyring(file)) {
+            String id = keyring.add(writeKeyFile("public_key.txt", TestKeys.KEY.publicKeyFile()), null);
+            String fingerprint = VariableLengthRSA.bytesToHex(TestKeys.KEY.publicKey().getFingerprint()).toLowerCase();
+            assertEquals(64, fingerprint.length());
+            assertEquals(keyring.publicKey(id).getN(), keyring.publicKey(fingerprint).getN());
+            assertTrue(keyring.hasPublicKey(fingerprint.toUpperCase()));
+
+            // the right key id with the rest of the fingerprint wrong
+            String wrong = fingerprint.substring(0, 63) + (fingerprint.charAt(63) == '0' ? '1' : '0');
+            assertFalse(keyring.hasPublicKey(wrong));
+            assertThrows(IllegalArgumentException.class, () -> keyring.publicKey(wrong));
+        }
+    }
+
+    @Test
+    void ignoresARecordCutOffByACrash() throws IOException {
+        String file = dir.resolve("keys.vrsk").toString();
+        String id;
+        try (Keyring keyring = new Keyring(file)) {
+            id = keyring.add(writeKeyFile("public_key.txt", TestKeys.KEY.publicKeyFile()), null);
+        }
+        byte[] bytes = Files.readAllBytes(Path.of(file));
+        Files.write(Path.of(file), Arrays.copyOf(bytes, bytes.length + 40)); // a half written record of zeros
+
+        try (Keyring keyring = new Keyring(file)) {
+            assertEquals(Set.of(id), keyring.getKeyIds());
+            String otherId = keyring.add(writeKeyFile("other_public_key.txt", TestKeys.OTHER_KEY.publicKeyFile()), null);
+            assertEquals(Set.of(id, otherId), keyring.getKeyIds());
+        }
+        try (Keyring keyring = new Keyring(file)) {
+            assertEquals(2, keyring.getKeyIds().size());
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        Path file = dir.resolve("not_a_keyring");
+        Files.write(file, "hello world".getBytes());
+        assertThrows(IOException.class, () -> new Keyring(file.toString()));
+    }
+}
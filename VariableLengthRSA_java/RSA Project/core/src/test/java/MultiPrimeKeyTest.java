@@ -0,0 +1,114 @@
+/**
+ * Multi-prime keys: the r, d and t lines of the private key file, and k-way CRT decryption giving the same result as
+ * the plain (n, d) key
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MultiPrimeKeyTest {
+    @TempDir
+    Path dir;
+
+    // writes the primes of a profile to a primes file, the way the constructor saves them
+    private String primesFile(KeyProfile profile, long seed) throws IOException {
+        BigInteger[] primes = VariableLengthRSA.generatePrimes(profile, new Random(seed));
+        StringBuilder contents = new StringBuilder();
+        for (BigInteger prime : primes)
+            contents.append(prime).append('\n');
+        Path file = dir.resolve(profile.getName() + "_primes.txt");
+        Files.write(file, contents.toString().getBytes());
+        return file.toString();
+    }
+
+    private static List<BigInteger> readNumbers(Path file) throws IOException {
+        List<BigInteger> numbers = new ArrayList<>();
+        for (String line : Files.readAllLines(file))
+            numbers.add(new BigInteger(line.trim()));
+        return numbers;
+    }
+
+    private void checkProfile(KeyProfile profile, long seed) throws IOException {
+        String primesFile = primesFile(profile, seed);
+        List<BigInteger> primes = readNumbers(Path.of(primesFile));
+        assertEquals(profile.getPrimeCount(), primes.size());
+        Path publicFile = dir.resolve(profile.getName() + "_public_key.txt");
+        Path privateFile = dir.resolve(profile.getName() + "_private_key.txt");
+        new VariableLengthRSA(primesFile, publicFile.toString(), privateFile.toString(), profile);
+
+        // n, d, p, q, dP, dQ, qInv, then r, d mod (r - 1) and (product of the earlier primes)^-1 mod r per extra prime
+        List<BigInteger> lines = readNumbers(privateFile);
+        int k = primes.size();
+        assertEquals(7 + 3 * (k - 2), lines.size());
+        BigInteger n = lines.get(0);
+        BigInteger d = lines.get(1);
+        assertEquals(2048, n.bitLength());
+        assertEquals(primes.get(0), lines.get(2));
+        assertEquals(primes.get(1), lines.get(3));
+        BigInteger product = primes.get(0).multiply(primes.get(1));
+        for (int i = 2; i < k; i++) {
+            BigInteger r = lines.get(7 + 3 * (i - 2));
+            assertEquals(primes.get(i), r);
+            assertEquals(d.mod(r.subtract(BigInteger.ONE)), lines.get(8 + 3 * (i - 2)));
+            assertEquals(product.modInverse(r), lines.get(9 + 3 * (i - 2)));
+            product = product.multiply(r);
+        }
+        assertEquals(n, product);
+
+        RsaKeyContext publicKey = RsaKeyContext.fromPublicKeyFile(publicFile.toString());
+        RsaKeyContext key = RsaKeyContext.fromPrivateKeyFile(privateFile.toString());
+        RsaKeyContext plain = RsaKeyContext.privateKey(n, d);
+        assertEquals(k, key.getPrimeCount());
+        assertTrue(key.usesCrt());
+
+        // Garner's recombination against one full exponentiation, including values sharing a factor with n
+        Random rand = new Random(seed);
+        List<BigInteger> blocks = new ArrayList<>(List.of(BigInteger.ZERO, BigInteger.ONE, n.subtract(BigInteger.ONE)));
+        for (BigInteger prime : primes) {
+            blocks.add(prime);
+            blocks.add(n.divide(prime));
+        }
+        for (int i = 0; i < 50; i++)
+            blocks.add(new BigInteger(2047, rand));
+        for (BigInteger c : blocks)
+            assertEquals(plain.decryptBlock(c), key.decryptBlock(c), "c = " + c);
+
+        byte[] message = TestKeys.randomBytes(5 * key.getBlockSize() + 11, seed);
+        byte[] ciphertext = VariableLengthRSA.encrypt(message, publicKey, null);
+        assertArrayEquals(message, VariableLengthRSA.decrypt(ciphertext, key, null));
+        assertArrayEquals(message, VariableLengthRSA.decrypt(ciphertext, plain, null));
+    }
+
+    @Test
+    void threePrimeKey() throws IOException {
+        assertEquals(3, KeyProfile.RSA_2048_3P.getPrimeCount());
+        checkProfile(KeyProfile.RSA_2048_3P, 80);
+    }
+
+    @Test
+    void fourPrimeKey() throws IOException {
+        assertEquals(4, KeyProfile.RSA_2048_4P.getPrimeCount());
+        checkProfile(KeyProfile.RSA_2048_4P, 81);
+    }
+
+    @Test
+    void rejectsPrimesFromAnotherProfile() throws IOException {
+        String primesFile = primesFile(KeyProfile.RSA_2048_3P, 82);
+        assertThrows(IllegalArgumentException.class, () -> new VariableLengthRSA(primesFile, "null", "null", KeyProfile.RSA_2048_4P));
+        assertThrows(IllegalArgumentException.class, () -> new VariableLengthRSA(primesFile, "null", "null", KeyProfile.RSA_2048));
+        assertThrows(IllegalArgumentException.class, () -> new VariableLengthRSA(primesFile, "null", "null", KeyProfile.RSA_3072));
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * The iterative NumberTheory routines against the recursive versions they replaced (jacobiRecursive, gcdRecursive,
+ * inverse_mod_n_euclid), on random inputs and on the edge cases key generation can run into
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class NumberTheoryTest {
+    private final Random rand = new Random(7);
+
+    private BigInteger random(int maxBits) {
+        return new BigInteger(1 + rand.nextInt(maxBits), rand);
+    }
+
+    private BigInteger randomOdd(int maxBits) {
+        return random(maxBits).setBit(0);
+    }
+
+    // jacobi(a, n) as the rest of the code sees it: -2 when a and n are not coprime
+    private static void assertJacobi(BigInteger a, BigInteger n) {
+        int expected = VariableLengthRSA.jacobiRecursive(a.mod(n), n); // the recursive version needs a >= 0
+        assertEquals(expected, VariableLengthRSA.jacobi(a, n), "(" + a + "/" + n + ")");
+        assertEquals(expected == -2 ? 0 : expected, NumberTheory.jacobi(a, n), "(" + a + "/" + n + ")");
+    }
+
+    private static void assertInverse(BigInteger num, BigInteger mod) {
+        BigInteger expected = VariableLengthRSA.inverse_mod_n_euclid(num, mod).mod(mod);
+        BigInteger inverse = NumberTheory.inverse(num, mod);
+        assertEquals(expected, inverse, num + "^-1 mod " + mod);
+        assertEquals(num.modInverse(mod), inverse);
+    }
+
+    @Test
+    void jacobiMatchesRecursive() {
+        for (int i = 0; i < 2000; i++)
+            assertJacobi(random(300), randomOdd(300));
+        // small values hit every residue and the shared factors
+        for (int n = 1; n < 60; n += 2) {
+            for (int a = 0; a < 2 * n + 3; a++)
+                assertJacobi(BigInteger.valueOf(a), BigInteger.valueOf(n));
+        }
+    }
+
+    @Test
+    void jacobiEdgeCases() {
+        BigInteger n = TestKeys.KEY.n;
+        BigInteger p = TestKeys.KEY.p;
+        assertJacobi(BigInteger.ZERO, n); // not coprime
+        assertJacobi(BigInteger.ZERO, BigInteger.ONE); // everything is coprime to 1
+        assertJacobi(BigInteger.TEN, BigInteger.ONE);
+        assertJacobi(p, n); // gcd is p
+        assertJacobi(p.multiply(BigInteger.valueOf(3)), n);
+        assertJacobi(n, n);
+        assertJacobi(n.add(BigInteger.TWO), n); // a >= n
+        assertJacobi(n.multiply(n).add(BigInteger.valueOf(12345)), n);
+        assertJacobi(BigInteger.valueOf(-1), n); // negative a
+        assertJacobi(BigInteger.valueOf(-12345), n);
+        assertJacobi(n.negate().subtract(BigInteger.valueOf(77)), n);
+
+        // against Euler's criterion for a prime modulus, a^((p - 1) / 2) = (a/p) mod p
+        BigInteger half = p.subtract(BigInteger.ONE).shiftRight(1);
+        for (int i = 0; i < 100; i++) {
+            BigInteger a = random(2100);
+            BigInteger euler = a.modPow(half, p);
+            int expected = euler.signum() == 0 ? 0 : euler.equals(BigInteger.ONE) ? 1 : -1;
+            assertEquals(expected, NumberTheory.jacobi(a, p));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> NumberTheory.jacobi(BigInteger.ONE, BigInteger.TEN));
+        assertThrows(IllegalArgumentException.class, () -> NumberTheory.jacobi(BigInteger.ONE, BigInteger.ZERO));
+        assertThrows(IllegalArgumentException.class, () -> NumberTheory.jacobi(BigInteger.ONE, BigInteger.valueOf(-3)));
+    }
+
+    @Test
+    void gcdMatchesRecursive() {
+        for (int i = 0; i < 2000; i++) {
+            BigInteger common = random(100);
+            BigInteger a = random(300).multiply(common);
+            BigInteger b = random(300).multiply(common);
+            assertEquals(VariableLengthRSA.gcdRecursive(a, b), NumberTheory.gcd(a, b), "gcd(" + a + ", " + b + ")");
+            assertEquals(a.gcd(b), NumberTheory.gcd(a, b));
+        }
+
+        BigInteger n = TestKeys.KEY.n;
+        BigInteger p = TestKeys.KEY.p;
+        BigInteger[][] cases = {
+            {BigInteger.ZERO, n},
+            {n, BigInteger.ZERO},
+            {BigInteger.ZERO, BigInteger.ZERO},
+            {BigInteger.ONE, n},
+            {p, n},
+            {n, p},
+            {n, n},
+            {n.shiftLeft(70), n.shiftLeft(3)}, // shared powers of two beyond one limb
+        };
+        for (BigInteger[] c : cases) {
+            assertEquals(VariableLengthRSA.gcdRecursive(c[0], c[1]), NumberTheory.gcd(c[0], c[1]), "gcd(" + c[0] + ", " + c[1] + ")");
+            assertEquals(c[0].gcd(c[1]), NumberTheory.gcd(c[0], c[1]));
+        }
+
+        // the recursive version only takes a >= 0, the iterative one ignores signs like BigInteger.gcd
+        assertEquals(p, NumberTheory.gcd(p.negate(), n));
+        assertEquals(p, NumberTheory.gcd(p, n.negate()));
+        assertEquals(BigInteger.valueOf(6), NumberTheory.gcd(BigInteger.valueOf(-12), BigInteger.valueOf(-18)));
+    }
+
+    @Test
+    void inverseMatchesEuclid() {
+        for (int i = 0; i < 2000; i++) {
+            BigInteger mod = random(300).add(BigInteger.TWO);
+            BigInteger num = random(320);
+            if (num.gcd(mod).equals(BigInteger.ONE))
+                assertInverse(num, mod);
+        }
+    }
+
+    @Test
+    void inverseEdgeCases() {
+        TestKeys keys = TestKeys.KEY;
+        BigInteger phi = keys.p.subtract(BigInteger.ONE).multiply(keys.q.subtract(BigInteger.ONE));
+        assertInverse(keys.e, phi); // even modulus, like key generation
+        assertEquals(keys.d.mod(phi), NumberTheory.inverse(keys.e, phi));
+        assertInverse(BigInteger.ONE, phi);
+        assertInverse(phi.subtract(BigInteger.ONE), phi);
+        assertInverse(keys.q, keys.p); // the CRT coefficient
+        assertInverse(keys.e.add(phi.multiply(BigInteger.valueOf(5))), phi); // num >= mod
+        assertInverse(keys.e.negate(), phi); // negative num
+        assertInverse(BigInteger.valueOf(-3), BigInteger.valueOf(1 << 20));
+
+        // mod 1 everything is 0, the Euclid version gives 1 which is the same value
+        assertInverse(BigInteger.ZERO, BigInteger.ONE);
+        assertInverse(BigInteger.valueOf(12345), BigInteger.ONE);
+        assertInverse(BigInteger.valueOf(-7), BigInteger.ONE);
+
+        // not invertible: the Euclid version returns a wrong value here instead of failing, the iterative one throws
+        assertThrows(ArithmeticException.class, () -> NumberTheory.inverse(BigInteger.ZERO, phi));
+        assertThrows(ArithmeticException.class, () -> NumberTheory.inverse(BigInteger.TWO, phi)); // even num, even mod
+        assertThrows(ArithmeticException.class, () -> NumberTheory.inverse(BigInteger.valueOf(3), BigInteger.valueOf(9)));
+        assertThrows(ArithmeticException.class, () -> NumberTheory.inverse(keys.p, keys.n));
+        assertThrows(ArithmeticException.class, () -> NumberTheory.inverse(keys.n, keys.n));
+        assertThrows(ArithmeticException.class, () -> NumberTheory.inverse(BigInteger.valueOf(15), BigInteger.valueOf(40))); // odd num, even mod
+        assertThrows(ArithmeticException.class, () -> NumberTheory.inverse(BigInteger.ONE, BigInteger.ZERO));
+        assertThrows(ArithmeticException.class, () -> NumberTheory.inverse(BigInteger.ONE, BigInteger.valueOf(-5)));
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Signatures are the same as java.security.Signature "SHA256withRSA" gives, and bulk verification finds the bad ones
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+class RsaSignatureTest {
+    private final TestKeys keys = TestKeys.KEY;
+    private final RsaKeyContext publicKey = keys.publicKey();
+    private final RsaKeyContext privateKey = keys.privateKey();
+
+    private PrivateKey jcaPrivateKey() throws Exception {
+        return KeyFactory.getInstance("RSA").generatePrivate(new RSAPrivateCrtKeySpec(keys.n, keys.e, keys.d, keys.p, keys.q, keys.dP, keys.dQ, keys.qInv));
+    }
+
+    private PublicKey jcaPublicKey() throws Exception {
+        return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(keys.n, keys.e));
+    }
+
+    @Test
+    void sameAsSha256WithRsa() throws Exception {
+        for (int length : new int[] {0, 1, 100, 10000}) {
+            byte[] message = TestKeys.randomBytes(length, 70 + length);
+
+            Signature signer = Signature.getInstance("SHA256withRSA");
+            signer.initSign(jcaPrivateKey());
+            signer.update(message);
+            byte[] expected = signer.sign();
+
+            byte[] signature = RsaSignature.sign(message, privateKey);
+            // PKCS #1 v1.5 signatures are deterministic, so the bytes are the same
+            assertArrayEquals(expected, signature);
+            assertArrayEquals(expected, RsaSignature.sign(message, keys.plainPrivateKey()));
+
+            Signature verifier = Signature.getInstance("SHA256withRSA");
+            verifier.initVerify(jcaPublicKey());
+            verifier.update(message);
+            assertTrue(verifier.verify(signature));
+            assertTrue(RsaSignature.verify(message, expected, publicKey));
+        }
+    }
+
+    @Test
+    void rejectsBadSignatures() {
+        byte[] message = "transfer 100 to account 42".getBytes();
+        byte[] signature = RsaSignature.sign(message, privateKey);
+        assertTrue(RsaSignature.verify(message, signature, publicKey));
+
+        assertFalse(RsaSignature.verify("transfer 900 to account 42".getBytes(), signature, publicKey));
+        byte[] flipped = signature.clone();
+        flipped[flipped.length - 1] ^= 1;
+        assertFalse(RsaSignature.verify(message, flipped, publicKey));
+        assertFalse(RsaSignature.verify(message, Arrays.copyOf(signature, signature.length - 1), publicKey));
+        byte[] tooLarge = new byte[signature.length];
+        Arrays.fill(tooLarge, (byte) 0xFF); // not below n
+        assertFalse(RsaSignature.verify(message, tooLarge, publicKey));
+        assertFalse(RsaSignature.verify(message, RsaSignature.sign(message, TestKeys.OTHER_KEY.privateKey()), publicKey));
+    }
+
+    @Test
+    void bulkSignAndVerify() {
+        int count = 37;
+        byte[][] messages = new byte[count][];
+        for (int i = 0; i < count; i++)
+            messages[i] = ("{\"record\":" + i + "}").getBytes();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[][] serial = RsaSignature.signAll(messages, privateKey, null);
+            byte[][] parallel = RsaSignature.signAll(messages, privateKey, executor);
+            for (int i = 0; i < count; i++) {
+                assertArrayEquals(serial[i], parallel[i]);
+                assertArrayEquals(RsaSignature.sign(messages[i], privateKey), serial[i]);
+            }
+
+            RsaSignature.BulkVerification valid = RsaSignature.verifyAll(messages, parallel, publicKey, executor);
+            assertTrue(valid.allValid());
+            assertEquals(count, valid.getCount());
+
+            parallel[5] = null;
+            parallel[20] = parallel[21];
+            RsaSignature.BulkVerification result = RsaSignature.verifyAll(messages, parallel, publicKey, executor);
+            assertEquals(2, result.getInvalidCount());
+            for (int i = 0; i < count; i++)
+                assertEquals(i != 5 && i != 20, result.isValid(i), "signature " + i);
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertThrows(IllegalArgumentException.class, () -> RsaSignature.verifyAll(messages, new byte[1][], publicKey, null));
+    }
+}
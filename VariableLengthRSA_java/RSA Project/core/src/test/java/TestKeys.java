@@ -0,0 +1,70 @@
+/**
+ * Deterministic 2048 bit keys (e = 65537) for the tests, generated once per JVM
+ */
+
+import java.math.BigInteger;
+import java.util.Random;
+
+final class TestKeys {
+    static final BigInteger F4 = BigInteger.valueOf(65537);
+
+    static final TestKeys KEY = new TestKeys(2048, 42);
+    static final TestKeys OTHER_KEY = new TestKeys(2048, 43);
+
+    final BigInteger n;
+    final BigInteger e;
+    final BigInteger d;
+    final BigInteger p;
+    final BigInteger q;
+    final BigInteger dP;
+    final BigInteger dQ;
+    final BigInteger qInv;
+
+    private TestKeys(int bits, long seed) {
+        Random rand = new Random(seed);
+        BigInteger pp;
+        BigInteger qq;
+        do {
+            pp = BigInteger.probablePrime(bits / 2, rand);
+            qq = BigInteger.probablePrime(bits / 2, rand);
+        } while (pp.equals(qq) || pp.multiply(qq).bitLength() != bits
+                || !pp.subtract(BigInteger.ONE).gcd(F4).equals(BigInteger.ONE) || !qq.subtract(BigInteger.ONE).gcd(F4).equals(BigInteger.ONE));
+        p = pp;
+        q = qq;
+        n = pp.multiply(qq);
+        e = F4;
+        d = F4.modInverse(pp.subtract(BigInteger.ONE).multiply(qq.subtract(BigInteger.ONE)));
+        dP = d.mod(pp.subtract(BigInteger.ONE));
+        dQ = d.mod(qq.subtract(BigInteger.ONE));
+        qInv = qq.modInverse(pp);
+    }
+
+    RsaKeyContext publicKey() {
+        return RsaKeyContext.publicKey(n, e);
+    }
+
+    // CRT key that also knows e
+    RsaKeyContext privateKey() {
+        return RsaKeyContext.crtPrivateKey(n, e, d, p, q, dP, dQ, qInv);
+    }
+
+    // n and d only, the way the original two line key files are
+    RsaKeyContext plainPrivateKey() {
+        return RsaKeyContext.privateKey(n, d);
+    }
+
+    // key file contents in the format RsaKeyContext.fromPublicKeyFile/fromPrivateKeyFile read
+    String publicKeyFile() {
+        return n + "\n" + e;
+    }
+
+    String privateKeyFile() {
+        return n + "\n" + d + "\n" + p + "\n" + q + "\n" + dP + "\n" + dQ + "\n" + qInv;
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Parallel encrypt/decrypt must give exactly the same bytes as the serial path, for the BigInteger API, the byte
+ * array API and files
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class VariableLengthRSATest {
+    private static ExecutorService executor;
+
+    private final RsaKeyContext publicKey = TestKeys.KEY.publicKey();
+    private final RsaKeyContext privateKey = TestKeys.KEY.privateKey();
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    static void stopExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    void parallelBigIntegerEncryptMatchesSerial() {
+        int cipherBlockSize = publicKey.getModulusLength();
+        int roundTrips = 0;
+        for (int shift = 0; shift < 10; shift++) {
+            // printable text like the interactive program encrypts, 20 blocks and a partial one
+            byte[] text = new byte[20 * publicKey.getBlockSize() + 17];
+            for (int i = 0; i < text.length; i++)
+                text[i] = (byte) (' ' + (i + shift) % 95);
+            BigInteger message = new BigInteger(1, text);
+
+            BigInteger serial = VariableLengthRSA.encrypt(message, publicKey, null);
+            BigInteger parallel = VariableLengthRSA.encrypt(message, publicKey, executor);
+            assertEquals(serial, parallel);
+
+            BigInteger decrypted = VariableLengthRSA.decrypt(serial, privateKey, null);
+            assertEquals(decrypted, VariableLengthRSA.decrypt(serial, privateKey, executor));
+
+            // this layout can't tell a ciphertext block that ends in a zero byte from a shorter one, so those messages
+            // don't come back (see toLegacyLayout); everything else has to
+            boolean representable = true;
+            for (int i = 0; i < 21; i++) // the lowest byte of every block
+                representable &= serial.shiftRight(i * 8 * cipherBlockSize).intValue() % 256 != 0;
+            if (representable) {
+                assertEquals(message, decrypted);
+                roundTrips++;
+            }
+        }
+        assertTrue(roundTrips > 5, roundTrips + " round trips");
+    }
+
+    @Test
+    void parallelByteArrayEncryptMatchesSerial() {
+        byte[] message = TestKeys.randomBytes(37 * publicKey.getBlockSize() + 5, 1);
+
+        byte[] serial = VariableLengthRSA.encrypt(message, publicKey, null);
+        byte[] parallel = VariableLengthRSA.encrypt(message, publicKey, executor);
+        assertArrayEquals(serial, parallel);
+
+        assertArrayEquals(message, VariableLengthRSA.decrypt(serial, privateKey, null));
+        assertArrayEquals(message, VariableLengthRSA.decrypt(serial, privateKey, executor));
+    }
+
+    @Test
+    void parallelFailureMatchesSerial() {
+        byte[] ciphertext = VariableLengthRSA.encrypt(TestKeys.randomBytes(40 * publicKey.getBlockSize(), 4), publicKey, null);
+        RsaKeyContext wrongKey = TestKeys.OTHER_KEY.privateKey();
+        // the block that fails first is the same either way, so is the exception
+        IllegalArgumentException serial = assertThrows(IllegalArgumentException.class, () -> VariableLengthRSA.decrypt(ciphertext, wrongKey, null));
+        IllegalArgumentException parallel = assertThrows(IllegalArgumentException.class, () -> VariableLengthRSA.decrypt(ciphertext, wrongKey, executor));
+        assertEquals(serial.getMessage(), parallel.getMessage());
+
+        IllegalStateException thrown = new IllegalStateException("block 3");
+        IllegalStateException rethrown = assertThrows(IllegalStateException.class, () -> VariableLengthRSA.processBlocks(100, executor, i -> {
+            if (i == 3)
+                throw thrown;
+        }));
+        assertSame(thrown, rethrown);
+    }
+
+    @Test
+    void plainPrivateKeyDecryptsLikeCrt() {
+        byte[] message = TestKeys.randomBytes(3 * publicKey.getBlockSize(), 2);
+        byte[] ciphertext = VariableLengthRSA.encrypt(message, publicKey, null);
+        assertArrayEquals(message, VariableLengthRSA.decrypt(ciphertext, TestKeys.KEY.plainPrivateKey(), executor));
+    }
+
+    @Test
+    void parallelFileEncryptMatchesSerial() throws Exception {
+        // more than one STREAM_BATCH_BLOCKS batch, ending in zeros
+        byte[] message = TestKeys.randomBytes((VariableLengthRSA.STREAM_BATCH_BLOCKS + 3) * publicKey.getBlockSize() + 100, 3);
+        for (int i = message.length - 50; i < message.length; i++)
+            message[i] = 0;
+        Path plain = dir.resolve("plain.txt");
+        Files.write(plain, message);
+
+        Path serial = dir.resolve("serial.bin");
+        Path parallel = dir.resolve("parallel.bin");
+        long blocks = VariableLengthRSA.encryptFile(plain.toString(), serial.toString(), publicKey, null);
+        assertEquals(blocks, VariableLengthRSA.encryptFile(plain.toString(), parallel.toString(), publicKey, executor));
+        assertArrayEquals(Files.readAllBytes(serial), Files.readAllBytes(parallel));
+
+        Path serialOut = dir.resolve("serial.txt");
+        Path parallelOut = dir.resolve("parallel.txt");
+        assertEquals(message.length, VariableLengthRSA.decryptFile(serial.toString(), serialOut.toString(), privateKey, null));
+        assertEquals(message.length, VariableLengthRSA.decryptFile(serial.toString(), parallelOut.toString(), privateKey, executor));
+        assertArrayEquals(message, Files.readAllBytes(serialOut));
+        assertArrayEquals(message, Files.readAllBytes(parallelOut));
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * BatchMontgomery with the lane loops done by the Vector API (jdk.incubator.vector)
+ *
+ * One lane per 64 bit element of the preferred vector shape, so a Montgomery multiplication of 4 (AVX2) or 8
+ * (AVX-512) blocks costs about as many instructions as one block does in MontgomeryEngine. The carries and m stay
+ * in vector registers for a whole row of the product.
+ *
+ * This file needs JDK 17+ and is only compiled by the vector profile of core/pom.xml, the rest of the code only
+ * reaches it through BatchMontgomery.forEngine.
+ */
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorMontgomery extends BatchMontgomery {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final long LIMB_MASK = 0xFFFFFFFFL;
+
+    public VectorMontgomery(MontgomeryEngine engine) {
+        super(engine, SPECIES.length());
+    }
+
+    @Override
+    protected void montMul(long[] a, int aOffset, long[] b, int bOffset, Workspace workspace, long[] out, int outOffset) {
+        long[] t = workspace.t;
+        Arrays.fill(t, 0);
+        LongVector zero = LongVector.zero(SPECIES);
+        for (int i = 0; i < len; i++) {
+            LongVector bi = LongVector.fromArray(SPECIES, b, bOffset + i * lanes);
+            LongVector sum = LongVector.fromArray(SPECIES, t, 0).add(LongVector.fromArray(SPECIES, a, aOffset).mul(bi));
+            LongVector low = sum.and(LIMB_MASK);
+            LongVector m = low.mul(nPrime).and(LIMB_MASK);
+            LongVector carry = sum.lanewise(VectorOperators.LSHR, 32);
+            LongVector carryM = low.add(m.mul(mod[0])).lanewise(VectorOperators.LSHR, 32);
+            for (int j = 1; j < len; j++) {
+                int tj = j * lanes;
+                sum = LongVector.fromArray(SPECIES, t, tj).add(LongVector.fromArray(SPECIES, a, aOffset + tj).mul(bi)).add(carry);
+                carry = sum.lanewise(VectorOperators.LSHR, 32);
+                LongVector reduced = sum.and(LIMB_MASK).add(m.mul(mod[j])).add(carryM);
+                carryM = reduced.lanewise(VectorOperators.LSHR, 32);
+                reduced.and(LIMB_MASK).intoArray(t, tj - lanes);
+            }
+            int top = len * lanes;
+            sum = LongVector.fromArray(SPECIES, t, top).add(carry).add(carryM);
+            sum.and(LIMB_MASK).intoArray(t, top - lanes);
+            sum.lanewise(VectorOperators.LSHR, 32).intoArray(t, top);
+        }
+
+        // find which lanes are >= n first, then write either t - n or t for each lane
+        LongVector borrow = zero;
+        for (int j = 0; j < len; j++) {
+            LongVector diff = LongVector.fromArray(SPECIES, t, j * lanes).sub(mod[j]).sub(borrow);
+            borrow = diff.lanewise(VectorOperators.LSHR, 63);
+        }
+        VectorMask<Long> subtract = LongVector.fromArray(SPECIES, t, len * lanes).compare(VectorOperators.NE, 0)
+                .or(borrow.compare(VectorOperators.EQ, 0));
+        borrow = zero;
+        for (int j = 0; j < len; j++) {
+            LongVector tj = LongVector.fromArray(SPECIES, t, j * lanes);
+            LongVector diff = tj.sub(mod[j]).sub(borrow);
+            borrow = diff.lanewise(VectorOperators.LSHR, 63);
+            tj.blend(diff.and(LIMB_MASK), subtract).intoArray(out, outOffset + j * lanes);
+        }
+    }
+}
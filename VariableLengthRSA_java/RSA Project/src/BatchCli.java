@@ -0,0 +1,301 @@
+/**
+ * Non-interactive batch mode, used when VariableLengthRSA is started with arguments
+ *
+ * Usage:
+ *   VariableLengthRSA encrypt --key public_key.txt [--out dir] [--threads n] [--hybrid] [--compress deflate] files...
+ *   VariableLengthRSA decrypt --key private_key.txt [--out dir] [--threads n] files...
+ *   VariableLengthRSA (encrypt|decrypt) --keyring keys.vrsk --key <key id> ... (see Keyring)
+ *
+ * Files can be given as globs (e.g. "logs/*.txt" or "data/**.json"). The key is loaded once and the files are
+ * processed concurrently by a fixed size pool of workers. Encrypting writes <file>.bin (a CiphertextContainer,
+ * or a HybridCipher file with --hybrid), decrypting writes <file> without the .bin extension, or <file>.dec if it
+ * doesn't have one. Decryption recognises both formats and the old decimal format.
+ * Output files are always truncated/replaced. Inputs that would have the same output file (same named files from
+ * different directories with --out) are rejected before anything is processed.
+ *
+ * --compress compresses each file before it is split into RSA blocks (not with --hybrid, where the RSA part is only
+ * the wrapped key). Decryption sees the compression in the container and undoes it.
+ */
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class BatchCli {
+    public static final String ENCRYPTED_EXTENSION = ".bin";
+    public static final String DECRYPTED_EXTENSION = ".dec";
+
+    private final boolean encrypt;
+    private final boolean hybrid;
+    private final Compression compression;
+    private final String keyFile;
+    private final String keyringFile;
+    private final Path outputDir;
+    private final int threads;
+    private final List<Path> inputs;
+
+    private BatchCli(boolean encrypt, boolean hybrid, Compression compression, String keyFile, String keyringFile, Path outputDir, int threads, List<Path> inputs) {
+        this.encrypt = encrypt;
+        this.hybrid = hybrid;
+        this.compression = compression;
+        this.keyFile = keyFile;
+        this.keyringFile = keyringFile;
+        this.outputDir = outputDir;
+        this.threads = threads;
+        this.inputs = inputs;
+    }
+
+    public static void main(String[] args) {
+        BatchCli batch;
+        try {
+            batch = parse(args);
+        }
+        catch (IllegalArgumentException | IOException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        System.exit(batch.run() ? 0 : 1);
+    }
+
+    public static void printUsage() {
+        System.out.println("Usage: VariableLengthRSA (encrypt|decrypt) --key <key file> [--keyring <file> (--key is then a key id)] [--out <dir>] [--threads <n>] [--hybrid] [--compress <deflate>] <files or globs>...");
+    }
+
+    static BatchCli parse(String[] args) throws IOException {
+        if (args.length == 0)
+            throw new IllegalArgumentException("No mode given");
+        boolean encrypt;
+        if (args[0].equals("encrypt"))
+            encrypt = true;
+        else if (args[0].equals("decrypt"))
+            encrypt = false;
+        else
+            throw new IllegalArgumentException("Unknown mode: " + args[0]);
+
+        boolean hybrid = false;
+        Compression compression = null;
+        String keyFile = null;
+        String keyringFile = null;
+        Path outputDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Set<Path> inputs = new LinkedHashSet<>();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--key":
+                    keyFile = argValue(args, ++i, "--key");
+                    break;
+                case "--keyring":
+                    keyringFile = argValue(args, ++i, "--keyring");
+                    break;
+                case "--out":
+                    outputDir = Paths.get(argValue(args, ++i, "--out"));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(argValue(args, ++i, "--threads"));
+                    if (threads < 1)
+                        throw new IllegalArgumentException("--threads must be at least 1");
+                    break;
+                case "--hybrid":
+                    hybrid = true;
+                    break;
+                case "--compress":
+                    compression = Compression.forName(argValue(args, ++i, "--compress"));
+                    break;
+                default:
+                    inputs.addAll(expand(args[i]));
+            }
+        }
+        if (keyFile == null)
+            throw new IllegalArgumentException("No key file given (--key)");
+        if (inputs.isEmpty())
+            throw new IllegalArgumentException("No input files");
+        if (hybrid && !encrypt)
+            throw new IllegalArgumentException("--hybrid is only for encrypting, decryption recognises hybrid files");
+        if (compression != null && (hybrid || !encrypt))
+            throw new IllegalArgumentException("--compress is only for RSA encrypting, decryption recognises compressed files");
+        BatchCli batch = new BatchCli(encrypt, hybrid, compression, keyFile, keyringFile, outputDir, threads, new ArrayList<>(inputs));
+        batch.checkOutputs();
+        return batch;
+    }
+
+    private static String argValue(String[] args, int i, String name) {
+        if (i >= args.length)
+            throw new IllegalArgumentException(name + " needs a value");
+        return args[i];
+    }
+
+    // a plain file name, or a glob which is matched against the files under the part of the path before the first wildcard
+    static List<Path> expand(String arg) throws IOException {
+        int wildcard = indexOfWildcard(arg);
+        if (wildcard < 0) {
+            Path file = Paths.get(arg);
+            if (!Files.isRegularFile(file))
+                throw new IllegalArgumentException("Not a file: " + arg);
+            return List.of(file);
+        }
+
+        int slash = arg.lastIndexOf('/', wildcard);
+        Path base = slash < 0 ? Paths.get("") : Paths.get(arg.substring(0, slash + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+        int depth = arg.contains("**") ? Integer.MAX_VALUE : (int) arg.substring(slash + 1).chars().filter(c -> c == '/').count() + 1;
+        Path root = base.toString().isEmpty() ? Paths.get(".") : base;
+        if (!Files.isDirectory(root))
+            throw new IllegalArgumentException("No files match: " + arg);
+        try (Stream<Path> files = Files.walk(root, depth)) {
+            List<Path> matches = files.map(path -> base.toString().isEmpty() ? root.relativize(path) : path)
+                    .filter(path -> Files.isRegularFile(path) && matcher.matches(path))
+                    .sorted()
+                    .collect(Collectors.toList());
+            if (matches.isEmpty())
+                throw new IllegalArgumentException("No files match: " + arg);
+            return matches;
+        }
+    }
+
+    private static int indexOfWildcard(String arg) {
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{')
+                return i;
+        }
+        return -1;
+    }
+
+    Path outputFor(Path input) {
+        String name = input.getFileName().toString();
+        if (encrypt)
+            name = name + ENCRYPTED_EXTENSION;
+        else if (name.endsWith(ENCRYPTED_EXTENSION) && name.length() > ENCRYPTED_EXTENSION.length())
+            name = name.substring(0, name.length() - ENCRYPTED_EXTENSION.length());
+        else
+            name = name + DECRYPTED_EXTENSION;
+        Path dir = outputDir != null ? outputDir : input.toAbsolutePath().getParent();
+        return dir.resolve(name);
+    }
+
+    // The workers would write an output file at the same time (or read an input while it is being replaced) if two
+    // inputs map to the same output, e.g. data/a/x.json and data/b/x.json with --out, so that is rejected up front
+    void checkOutputs() {
+        Map<Path, Path> outputs = new HashMap<>();
+        Set<Path> inputFiles = new HashSet<>();
+        for (Path input : inputs)
+            inputFiles.add(input.toAbsolutePath().normalize());
+        for (Path input : inputs) {
+            Path output = outputFor(input).toAbsolutePath().normalize();
+            Path other = outputs.putIfAbsent(output, input);
+            if (other != null)
+                throw new IllegalArgumentException(other + " and " + input + " would both be written to " + output + " (use a separate --out for each)");
+            if (inputFiles.contains(output))
+                throw new IllegalArgumentException("The output of " + input + " would replace the input " + output);
+        }
+    }
+
+    // returns false if any file failed
+    boolean run() {
+        long startKey = System.nanoTime();
+        RsaKeyContext key;
+        try {
+            if (keyringFile != null) {
+                try (Keyring keyring = new Keyring(keyringFile)) {
+                    key = encrypt ? keyring.publicKey(keyFile) : keyring.privateKey(keyFile);
+                }
+            }
+            else {
+                key = encrypt ? RsaKeyContext.fromPublicKeyFile(keyFile) : RsaKeyContext.fromPrivateKeyFile(keyFile);
+            }
+        }
+        catch (IllegalArgumentException | IOException ex) {
+            System.out.println("Error loading key: " + ex.getMessage());
+            return false;
+        }
+        System.out.printf("Loaded key %s in %.1f ms%n", keyringFile != null ? keyFile + " from " + keyringFile : "from " + keyFile,
+                (System.nanoTime() - startKey) / 1e6);
+
+        try {
+            if (outputDir != null)
+                Files.createDirectories(outputDir);
+        }
+        catch (IOException ex) {
+            System.out.println("Error creating output directory: " + ex.getMessage());
+            return false;
+        }
+
+        long start = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, inputs.size()));
+        List<Future<Long>> results = new ArrayList<>();
+        for (Path input : inputs)
+            results.add(workers.submit(() -> process(input, outputFor(input), key)));
+        workers.shutdown();
+
+        long totalBytes = 0;
+        int done = 0;
+        int failed = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            try {
+                totalBytes += results.get(i).get();
+                done++;
+            }
+            catch (ExecutionException ex) {
+                failed++;
+                System.out.println("Error processing " + inputs.get(i) + ": " + ex.getCause().getMessage());
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                workers.shutdownNow();
+                System.out.println("Interrupted");
+                return false;
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s %d files (%d failed), %.2f MB in %.2f s: %.1f files/sec, %.2f MB/sec%n",
+                encrypt ? "Encrypted" : "Decrypted", done, failed, totalBytes / 1e6, seconds,
+                done / seconds, totalBytes / 1e6 / seconds);
+        return failed == 0;
+    }
+
+    // returns the number of input bytes processed. Each file runs its blocks on its own worker, the pool already
+    // keeps every core busy
+    private long process(Path input, Path output, RsaKeyContext key) throws IOException {
+        long size = Files.size(input);
+        if (encrypt && hybrid) {
+            HybridCipher.encryptFile(input.toString(), output.toString(), key, null);
+        }
+        else if (encrypt) {
+            VariableLengthRSA.encryptFile(input.toString(), output.toString(), key, null, compression);
+        }
+        else if (HybridCipher.isHybrid(input.toString())) {
+            HybridCipher.decryptFile(input.toString(), output.toString(), key, null);
+        }
+        else if (CiphertextContainer.isContainer(input.toString())) {
+            VariableLengthRSA.decryptFile(input.toString(), output.toString(), key, null);
+        }
+        else { // old format, the whole ciphertext as one decimal number
+            BigInteger num = new BigInteger(new String(Files.readAllBytes(input)).trim());
+            // without the sign byte toByteArray adds when the first byte is 0x80 or more
+            byte[] plain = VariableLengthRSA.removeSignBit(VariableLengthRSA.decrypt(num, key, null).toByteArray());
+            Files.write(output, plain, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        return size;
+    }
+}
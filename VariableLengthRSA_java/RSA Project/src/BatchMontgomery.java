@@ -0,0 +1,252 @@
+/**
+ * Montgomery exponentiation of several blocks at once, for blocks that share a modulus and exponent
+ *
+ * Every block encrypted (or decrypted) with one key goes through exactly the same sequence of squarings and
+ * multiplications, so the limbs of `lanes` blocks are interleaved (limb j of lane l is at x[j * lanes + l]) and
+ * each Montgomery multiplication works on all of them in lockstep. Limbs are 32 bit values stored in longs, so
+ * every product plus carries fits in 64 bits without needing the high half of a multiplication.
+ *
+ * This class is the scalar version. When the core was built with the vector profile (JDK 17+) and the JVM runs
+ * with --add-modules jdk.incubator.vector, forEngine returns VectorMontgomery instead, which does the lane loops
+ * with one SIMD instruction each (4 lanes with AVX2, 8 with AVX-512). -Drsa.vector=false turns it off.
+ */
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+public class BatchMontgomery {
+    private static final long LIMB_MASK = 0xFFFFFFFFL;
+    public static final int SCALAR_LANES = 4;
+    public static final boolean VECTOR_ENABLED = !"false".equals(System.getProperty("rsa.vector"));
+
+    private static final Class<?> VECTOR_CLASS = findVectorClass();
+
+    protected final MontgomeryEngine engine;
+    protected final int len;        // limbs per number
+    protected final int lanes;      // numbers processed together
+    protected final long[] mod;     // modulus limbs (not interleaved)
+    protected final long nPrime;    // -n^-1 mod 2^32
+    private final long[] rSquared;  // R^2 mod n, interleaved (the same value in every lane)
+    private final long[] one;       // 1 in every lane
+
+    protected BatchMontgomery(MontgomeryEngine engine, int lanes) {
+        this.engine = engine;
+        this.lanes = lanes;
+        len = engine.getLimbCount();
+        mod = toLongs(MontgomeryEngine.toLimbs(engine.getModulus(), len));
+        nPrime = engine.getNPrime() & LIMB_MASK;
+        rSquared = broadcast(toLongs(MontgomeryEngine.toLimbs(engine.getRSquared(), len)));
+        long[] oneLimbs = new long[len];
+        oneLimbs[0] = 1;
+        one = broadcast(oneLimbs);
+    }
+
+    // the vector version when it is available and enabled, the scalar version otherwise
+    public static BatchMontgomery forEngine(MontgomeryEngine engine) {
+        if (VECTOR_CLASS != null) {
+            try {
+                return (BatchMontgomery) VECTOR_CLASS.getConstructor(MontgomeryEngine.class).newInstance(engine);
+            }
+            catch (ReflectiveOperationException | LinkageError ex) {
+                // fall through to the scalar version
+            }
+        }
+        return new BatchMontgomery(engine, SCALAR_LANES);
+    }
+
+    public static boolean isVectorAvailable() {
+        return VECTOR_CLASS != null;
+    }
+
+    // VectorMontgomery is only compiled by the vector profile, and needs the incubator module at run time
+    private static Class<?> findVectorClass() {
+        if (!VECTOR_ENABLED || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            return null;
+        try {
+            return Class.forName("VectorMontgomery"); // initialising it loads the Vector API classes
+        }
+        catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    public MontgomeryEngine getEngine() {
+        return engine;
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    // limbs of one lane
+    public int getLimbCount() {
+        return len;
+    }
+
+    public Workspace newWorkspace(MontgomeryEngine.Exponent exponent) {
+        return new Workspace(len, lanes, exponent.getWindow());
+    }
+
+    // Puts the big-endian number src[offset, offset + length) into lane `lane` of dest, throws
+    // IllegalArgumentException if it doesn't fit in getLimbCount() limbs
+    public void load(byte[] src, int offset, int length, long[] dest, int lane) {
+        for (int j = 0; j < len; j++)
+            dest[j * lanes + lane] = 0;
+        for (int i = 0; i < length; i++) {
+            int b = src[offset + length - 1 - i] & 0xFF;
+            if (i / 4 < len)
+                dest[(i / 4) * lanes + lane] |= (long) b << (8 * (i % 4));
+            else if (b != 0)
+                throw new IllegalArgumentException("Number does not fit in " + len + " limbs");
+        }
+    }
+
+    // Writes lane `lane` of src into dest[offset, offset + width) as a big-endian number, left padded with zeros
+    public void store(long[] src, int lane, byte[] dest, int offset, int width) {
+        for (int i = width; i < len * 4; i++) {
+            if ((src[(i / 4) * lanes + lane] >>> (8 * (i % 4)) & 0xFF) != 0)
+                throw new IllegalArgumentException("Number does not fit in " + width + " bytes");
+        }
+        for (int i = 0; i < width; i++)
+            dest[offset + width - 1 - i] = i / 4 < len ? (byte) (src[(i / 4) * lanes + lane] >>> (8 * (i % 4))) : 0;
+    }
+
+    // num (below 2^(32 * getLimbCount())) into lane `lane` of dest
+    public void load(BigInteger num, long[] dest, int lane) {
+        int[] limbs = MontgomeryEngine.toLimbs(num, len);
+        for (int j = 0; j < len; j++)
+            dest[j * lanes + lane] = limbs[j] & LIMB_MASK;
+    }
+
+    public BigInteger toBigInteger(long[] src, int lane) {
+        int[] limbs = new int[len];
+        for (int j = 0; j < len; j++)
+            limbs[j] = (int) src[j * lanes + lane];
+        return MontgomeryEngine.fromLimbs(limbs);
+    }
+
+    // base^exponent mod n for every lane, base and out hold getLimbCount() * getLanes() interleaved limbs.
+    // Same steps as MontgomeryEngine.modPow, out can be the same array as base
+    public void modPow(long[] base, MontgomeryEngine.Exponent exponent, long[] out, Workspace workspace) {
+        if (workspace.len != len || workspace.lanes != lanes || workspace.table.length < (1 << (exponent.getWindow() - 1)) * len * lanes)
+            throw new IllegalArgumentException("Workspace does not fit this modulus and exponent");
+        int size = len * lanes;
+        long[] b = workspace.b;
+        long[] acc = workspace.acc;
+        long[] table = workspace.table; // odd powers b, b^3, b^5, ...
+        long[] square = workspace.square;
+
+        montMul(base, 0, rSquared, 0, workspace, table, 0);
+        System.arraycopy(table, 0, b, 0, size);
+        montMul(b, 0, b, 0, workspace, square, 0);
+        for (int k = 1; k < table.length / size; k++)
+            montMul(table, (k - 1) * size, square, 0, workspace, table, k * size);
+
+        montMul(one, 0, rSquared, 0, workspace, acc, 0);
+        int[] squares = exponent.squares;
+        int[] digits = exponent.digits;
+        for (int i = 0; i < digits.length; i++) {
+            for (int s = 0; s < squares[i]; s++)
+                montMul(acc, 0, acc, 0, workspace, acc, 0);
+            if (digits[i] != 0)
+                montMul(acc, 0, table, (digits[i] >>> 1) * size, workspace, acc, 0);
+        }
+
+        montMul(acc, 0, one, 0, workspace, out, 0);
+    }
+
+    // Montgomery product out = a * b * R^-1 mod n for every lane (CIOS method, see MontgomeryEngine.montMul)
+    protected void montMul(long[] a, int aOffset, long[] b, int bOffset, Workspace workspace, long[] out, int outOffset) {
+        long[] t = workspace.t;
+        long[] carry = workspace.carry;
+        long[] carryM = workspace.carryM;
+        long[] m = workspace.m;
+        Arrays.fill(t, 0);
+        long n0 = mod[0];
+        for (int i = 0; i < len; i++) {
+            int bi = bOffset + i * lanes;
+            for (int l = 0; l < lanes; l++) {
+                long sum = t[l] + a[aOffset + l] * b[bi + l];
+                m[l] = ((sum & LIMB_MASK) * nPrime) & LIMB_MASK;
+                carry[l] = sum >>> 32;
+                carryM[l] = ((sum & LIMB_MASK) + m[l] * n0) >>> 32;
+            }
+            for (int j = 1; j < len; j++) {
+                long nj = mod[j];
+                int tj = j * lanes;
+                int aj = aOffset + j * lanes;
+                for (int l = 0; l < lanes; l++) {
+                    long sum = t[tj + l] + a[aj + l] * b[bi + l] + carry[l];
+                    carry[l] = sum >>> 32;
+                    long reduced = (sum & LIMB_MASK) + m[l] * nj + carryM[l];
+                    carryM[l] = reduced >>> 32;
+                    t[tj - lanes + l] = reduced & LIMB_MASK;
+                }
+            }
+            int top = len * lanes;
+            for (int l = 0; l < lanes; l++) {
+                long sum = t[top + l] + carry[l] + carryM[l];
+                t[top - lanes + l] = sum & LIMB_MASK;
+                t[top + l] = sum >>> 32;
+            }
+        }
+
+        // each lane is below 2n, subtract n from the lanes that are >= n (t - n doesn't borrow, or t has a top limb)
+        long[] borrow = workspace.carry;
+        Arrays.fill(borrow, 0);
+        for (int j = 0; j < len; j++) {
+            for (int l = 0; l < lanes; l++) {
+                long diff = t[j * lanes + l] - mod[j] - borrow[l];
+                out[outOffset + j * lanes + l] = diff & LIMB_MASK;
+                borrow[l] = diff >>> 63;
+            }
+        }
+        for (int l = 0; l < lanes; l++) {
+            if (t[len * lanes + l] == 0 && borrow[l] != 0) {
+                for (int j = 0; j < len; j++)
+                    out[outOffset + j * lanes + l] = t[j * lanes + l];
+            }
+        }
+    }
+
+    private long[] broadcast(long[] limbs) {
+        long[] interleaved = new long[len * lanes];
+        for (int j = 0; j < len; j++)
+            Arrays.fill(interleaved, j * lanes, (j + 1) * lanes, limbs[j]);
+        return interleaved;
+    }
+
+    private static long[] toLongs(int[] limbs) {
+        long[] longs = new long[limbs.length];
+        for (int i = 0; i < limbs.length; i++)
+            longs[i] = limbs[i] & LIMB_MASK;
+        return longs;
+    }
+
+    // scratch buffers for modPow, one per thread
+    public static final class Workspace {
+        final int len;
+        final int lanes;
+        final long[] t;
+        final long[] b;
+        final long[] acc;
+        final long[] table;
+        final long[] square;
+        final long[] carry;
+        final long[] carryM;
+        final long[] m;
+
+        Workspace(int len, int lanes, int window) {
+            this.len = len;
+            this.lanes = lanes;
+            t = new long[(len + 1) * lanes];
+            b = new long[len * lanes];
+            acc = new long[len * lanes];
+            table = new long[(1 << (window - 1)) * len * lanes];
+            square = new long[len * lanes];
+            carry = new long[lanes];
+            carryM = new long[lanes];
+            m = new long[lanes];
+        }
+    }
+}
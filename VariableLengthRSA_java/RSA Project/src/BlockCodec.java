@@ -0,0 +1,158 @@
+/**
+ * Block layout for byte array messages, used by encrypt/decrypt(byte[], ...) and RsaServer
+ *
+ * A message of L bytes is framed as its length (4 bytes, big-endian) followed by the message, padded with zeros
+ * to a whole number of plaintext blocks. Every ciphertext block is exactly modulus length bytes (big-endian, left
+ * padded with zeros), so the ciphertext of a message is always ciphertextBlocks(L) * modulus length bytes and
+ * decrypting gives back exactly the L bytes that were encrypted, trailing zeros included. (The BigInteger
+ * encrypt/decrypt can't tell padding from zeros at the end of the message, and lose zeros at the start.)
+ *
+ * Blocks are read and written in place: a plaintext block is framed into a buffer owned by the thread and
+ * encrypted straight into its slot of the ciphertext array, and decrypted blocks go straight into the framed
+ * output, so apart from the CRT arithmetic nothing is allocated per block.
+ *
+ * If the top bit of the length prefix (COMPRESSED) is set the payload was compressed before encrypting: its first
+ * byte is the Compression id and the rest is the compressed message (see VariableLengthRSA.encrypt). Readers that
+ * don't know about compression see a negative length and reject the ciphertext instead of returning garbage.
+ * Decompressing stops with IllegalArgumentException past Compression.MAX_DECOMPRESSED_SIZE (or the limit given to
+ * unframeMessage), so a small crafted ciphertext can't expand to an unbounded message.
+ */
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+public class BlockCodec {
+    public static final int LENGTH_PREFIX = 4;
+    public static final int COMPRESSED = 0x80000000;
+
+    private final RsaKeyContext key;
+    private final int blockSize;
+    private final int modulusLength;
+    private final ThreadLocal<byte[]> blockBuffer;
+
+    public BlockCodec(RsaKeyContext key) {
+        this.key = key;
+        blockSize = key.getBlockSize();
+        modulusLength = key.getModulusLength();
+        blockBuffer = ThreadLocal.withInitial(() -> new byte[blockSize * key.getBatchLanes()]);
+    }
+
+    public int ciphertextBlocks(int messageLength) {
+        if (messageLength < 0 || messageLength > Integer.MAX_VALUE - LENGTH_PREFIX - blockSize)
+            throw new IllegalArgumentException("Invalid message length: " + messageLength);
+        return (LENGTH_PREFIX + messageLength + blockSize - 1) / blockSize;
+    }
+
+    public int ciphertextLength(int messageLength) {
+        return ciphertextBlocks(messageLength) * modulusLength;
+    }
+
+    // number of blocks in a ciphertext, throws IllegalArgumentException if it isn't whole blocks
+    public int ciphertextBlocks(byte[] ciphertext) {
+        if (ciphertext.length == 0 || ciphertext.length % modulusLength != 0)
+            throw new IllegalArgumentException("Ciphertext must be a whole number of " + modulusLength + " byte blocks");
+        return ciphertext.length / modulusLength;
+    }
+
+    // frames block i of message and encrypts it into ciphertext[i * modulusLength, (i + 1) * modulusLength)
+    public void encryptBlock(byte[] message, int i, byte[] ciphertext) {
+        encryptBlock(message, i, ciphertext, false);
+    }
+
+    // compressed is set when message is a compressed payload (Compression id followed by the compressed data)
+    public void encryptBlock(byte[] message, int i, byte[] ciphertext, boolean compressed) {
+        encryptBlocks(message, i, 1, ciphertext, compressed);
+    }
+
+    // how many blocks to hand to encryptBlocks/decryptBlocks at a time, see RsaKeyContext.getBatchLanes
+    public int getBatchBlocks() {
+        return key.getBatchLanes();
+    }
+
+    // frames blocks [first, first + count) of message and encrypts them together, count is at most getBatchBlocks()
+    public void encryptBlocks(byte[] message, int first, int count, byte[] ciphertext, boolean compressed) {
+        byte[] blocks = blockBuffer.get();
+        Arrays.fill(blocks, 0, count * blockSize, (byte) 0);
+        for (int k = 0; k < count; k++)
+            frame(message, first + k, blocks, k * blockSize, compressed);
+        key.encryptBlocks(blocks, 0, blockSize, ciphertext, first * modulusLength, count);
+    }
+
+    // block i of the framed message into block[offset, offset + blockSize), which must be zeros
+    private void frame(byte[] message, int i, byte[] block, int blockOffset, boolean compressed) {
+        int framedStart = i * blockSize;
+        int offset = 0;
+        if (i == 0) {
+            int length = compressed ? message.length | COMPRESSED : message.length;
+            block[blockOffset] = (byte) (length >>> 24);
+            block[blockOffset + 1] = (byte) (length >>> 16);
+            block[blockOffset + 2] = (byte) (length >>> 8);
+            block[blockOffset + 3] = (byte) length;
+            offset = LENGTH_PREFIX;
+        }
+        int messageStart = Math.max(0, framedStart - LENGTH_PREFIX);
+        int count = Math.min(message.length - messageStart, blockSize - offset);
+        if (count > 0)
+            System.arraycopy(message, messageStart, block, blockOffset + offset, count);
+    }
+
+    // decrypts block i of ciphertext into framed[i * blockSize, (i + 1) * blockSize), framed must have
+    // ciphertextBlocks(ciphertext) * blockSize bytes. Use unframe to get the message once every block is done
+    public void decryptBlock(byte[] ciphertext, int i, byte[] framed) {
+        key.decryptBlock(ciphertext, i * modulusLength, framed, i * blockSize, blockSize);
+    }
+
+    // decryptBlock for blocks [first, first + count)
+    public void decryptBlocks(byte[] ciphertext, int first, int count, byte[] framed) {
+        key.decryptBlocks(ciphertext, first * modulusLength, framed, first * blockSize, blockSize, count);
+    }
+
+    // whether the decrypted framed blocks hold a compressed payload
+    public static boolean isCompressed(byte[] framed) {
+        return (framed[0] & 0x80) != 0;
+    }
+
+    // the message (or compressed payload) from decrypted framed blocks, throws IllegalArgumentException if the
+    // length prefix doesn't match the number of blocks (which is what a wrong key or a modified ciphertext almost
+    // always gives)
+    public byte[] unframe(byte[] framed) {
+        if (framed.length < blockSize || framed.length % blockSize != 0)
+            throw new IllegalArgumentException("Framed message must be a whole number of " + blockSize + " byte blocks");
+        int length = (framed[0] & 0x7F) << 24 | (framed[1] & 0xFF) << 16 | (framed[2] & 0xFF) << 8 | (framed[3] & 0xFF);
+        if (length < 0 || length > framed.length - LENGTH_PREFIX || ciphertextBlocks(length) * blockSize != framed.length)
+            throw new IllegalArgumentException("Invalid message length " + length + " (wrong key or modified ciphertext?)");
+        return Arrays.copyOfRange(framed, LENGTH_PREFIX, LENGTH_PREFIX + length);
+    }
+
+    // like unframe, but a compressed payload is decompressed, so this is always the message that was encrypted
+    public byte[] unframeMessage(byte[] framed) {
+        return unframeMessage(framed, Compression.MAX_DECOMPRESSED_SIZE);
+    }
+
+    // throws IllegalArgumentException if a compressed payload decompresses to more than maxLength bytes
+    public byte[] unframeMessage(byte[] framed, int maxLength) {
+        byte[] payload = unframe(framed);
+        if (!isCompressed(framed))
+            return payload;
+        if (payload.length == 0)
+            throw new IllegalArgumentException("Compressed payload is empty");
+        try {
+            return Compression.forId(payload[0]).decompress(payload, 1, payload.length - 1, maxLength);
+        }
+        catch (IOException ex) {
+            throw new IllegalArgumentException("Invalid compressed payload: " + ex.getMessage(), ex);
+        }
+    }
+
+    // writes num into dest[offset, offset + width) as a big-endian number, left padded with zeros
+    static void writeFixedWidth(BigInteger num, byte[] dest, int offset, int width) {
+        byte[] bytes = num.toByteArray();
+        int start = bytes.length > 1 && bytes[0] == 0 ? 1 : 0; // sign byte
+        int length = bytes.length - start;
+        if (num.signum() < 0 || length > width)
+            throw new IllegalArgumentException("Number does not fit in " + width + " bytes");
+        Arrays.fill(dest, offset, offset + width - length, (byte) 0);
+        System.arraycopy(bytes, start, dest, offset + width - length, length);
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * Binary file format for VariableLengthRSA ciphertext
+ *
+ * Instead of storing the whole ciphertext as one decimal number, the container stores a fixed size header
+ * followed by the raw ciphertext blocks. Every block is modulusLength bytes (big-endian, left padded with zeros)
+ * so block i always starts at HEADER_SIZE + i * modulusLength, which lets readers and writers seek to any block.
+ *
+ * Header layout (big-endian):
+ *   magic        4 bytes  "VRSA"
+ *   version      2 bytes
+ *   flags        2 bytes  bits 0-3: Compression id, 0 if the plaintext isn't compressed, other bits reserved (0)
+ *   modulus len  4 bytes  size of each ciphertext block in bytes
+ *   block size   4 bytes  size of each plaintext block in bytes
+ *   block count  8 bytes
+ *   plain length 8 bytes  bytes of plaintext, -1 if unknown (version 2, see below)
+ *   fingerprint 32 bytes  SHA-256 of n, used to check the right key is used
+ *
+ * Version 1 had no plaintext length, so readers had to strip zeros from the end of the last block, which also
+ * removed zeros that belonged to the file. Version 1 containers can still be read, getPlaintextLength returns -1.
+ *
+ * In a compressed container the blocks hold the compressed stream, and plain length is the length of that stream.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class CiphertextContainer {
+    public static final byte[] MAGIC = {'V', 'R', 'S', 'A'};
+    public static final short VERSION = 2;
+    public static final int FINGERPRINT_LENGTH = 32;
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4 + 8 + 8 + FINGERPRINT_LENGTH;
+    public static final int V1_HEADER_SIZE = HEADER_SIZE - 8;
+    public static final int COMPRESSION_MASK = 0x0F;
+
+    private static final int FLAGS_OFFSET = 6;
+    private static final int BLOCK_COUNT_OFFSET = 16;
+    private static final int PLAINTEXT_LENGTH_OFFSET = 24;
+
+    public static byte[] fingerprint(BigInteger n) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(n.toByteArray());
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    public static boolean isContainer(String fileName) {
+        Path file = Paths.get(fileName);
+        if (!Files.isRegularFile(file))
+            return false;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) >= 0);
+            return Arrays.equals(magic.array(), MAGIC);
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // Converts the old format (the whole ciphertext as one decimal number) into a container.
+    // Blocks are interpreted the same way VariableLengthRSA.decrypt(BigInteger, ...) does, returns the number of blocks
+    public static long importDecimal(String decimalFile, String outputFile, BigInteger n, int blockSize) throws IOException {
+        String text = VariableLengthRSA.readFromFile(decimalFile);
+        if (text == null)
+            throw new IOException("Could not read " + decimalFile);
+        BigInteger num = new BigInteger(text.trim());
+        int modulusLength = (n.bitLength() + 7) / 8;
+
+        byte[] numByteArr = num.toByteArray();
+        if (numByteArr[0] == 0)
+            numByteArr = Arrays.copyOfRange(numByteArr, 1, numByteArr.length);
+        int numBlocks = numByteArr.length / modulusLength;
+
+        try (Writer writer = new Writer(outputFile, n, blockSize)) {
+            for (int i = 0; i < numBlocks; i++)
+                VariableLengthRSA.fromLegacyLayout(numByteArr, i * modulusLength, modulusLength);
+            writer.writeBlocks(numByteArr, numBlocks); // the plaintext length isn't known
+        }
+        return numBlocks;
+    }
+
+    // Appends blocks to a new container, the block count and plaintext length in the header are updated when the
+    // writer is closed
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final int modulusLength;
+        private long blockCount;
+        private long plaintextLength = -1;
+        private Compression compression;
+
+        public Writer(String fileName, BigInteger n, int blockSize) throws IOException {
+            this(fileName, (n.bitLength() + 7) / 8, blockSize, fingerprint(n));
+        }
+
+        public Writer(String fileName, RsaKeyContext key) throws IOException {
+            this(fileName, key.getModulusLength(), key.getBlockSize(), key.getFingerprint());
+        }
+
+        private Writer(String fileName, int modulusLength, int blockSize, byte[] fingerprint) throws IOException {
+            this.modulusLength = modulusLength;
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) 0);
+            header.putInt(modulusLength);
+            header.putInt(blockSize);
+            header.putLong(0);
+            header.putLong(plaintextLength);
+            header.put(fingerprint);
+            header.flip();
+            writeAt(header, 0);
+        }
+
+        public int getModulusLength() {
+            return modulusLength;
+        }
+
+        public long getBlockCount() {
+            return blockCount;
+        }
+
+        // how many bytes of the last block are plaintext follows from this, leave it at -1 if it isn't known
+        public void setPlaintextLength(long plaintextLength) {
+            this.plaintextLength = plaintextLength;
+        }
+
+        // compression applied to the plaintext before it was split into blocks, null if none
+        public void setCompression(Compression compression) {
+            this.compression = compression;
+        }
+
+        // appends the first count blocks of src
+        public void writeBlocks(byte[] src, int count) throws IOException {
+            writeBlocks(blockCount, src, count);
+        }
+
+        // writes count blocks starting at block index firstBlock, the file grows if needed
+        public void writeBlocks(long firstBlock, byte[] src, int count) throws IOException {
+            writeAt(ByteBuffer.wrap(src, 0, count * modulusLength), HEADER_SIZE + firstBlock * modulusLength);
+            blockCount = Math.max(blockCount, firstBlock + count);
+        }
+
+        private void writeAt(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                ByteBuffer flags = ByteBuffer.allocate(2);
+                flags.putShort((short) (compression != null ? compression.getId() : 0));
+                flags.flip();
+                writeAt(flags, FLAGS_OFFSET);
+                ByteBuffer counts = ByteBuffer.allocate(16);
+                counts.putLong(blockCount);
+                counts.putLong(plaintextLength);
+                counts.flip();
+                writeAt(counts, BLOCK_COUNT_OFFSET);
+            }
+            finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Reads blocks from an existing container, reads are positional so any block can be read in any order
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final short version;
+        private final short flags;
+        private final int modulusLength;
+        private final int blockSize;
+        private final long blockCount;
+        private final long plaintextLength;
+        private final byte[] fingerprint;
+        private final int headerSize;
+
+        public Reader(String fileName) throws IOException {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(V1_HEADER_SIZE);
+                readAt(header, 0);
+                header.flip();
+                byte[] magic = new byte[MAGIC.length];
+                header.get(magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new IOException(fileName + " is not a ciphertext container");
+                version = header.getShort();
+                if (version != 1 && version != VERSION)
+                    throw new IOException("Unsupported container version: " + version);
+                flags = header.getShort();
+                modulusLength = header.getInt();
+                blockSize = header.getInt();
+                blockCount = header.getLong();
+                if (version == 1) {
+                    plaintextLength = -1;
+                    headerSize = V1_HEADER_SIZE;
+                }
+                else {
+                    header = ByteBuffer.allocate(HEADER_SIZE - BLOCK_COUNT_OFFSET - 8);
+                    readAt(header, PLAINTEXT_LENGTH_OFFSET);
+                    header.flip();
+                    plaintextLength = header.getLong();
+                    headerSize = HEADER_SIZE;
+                }
+                fingerprint = new byte[FINGERPRINT_LENGTH];
+                header.get(fingerprint);
+                if (modulusLength <= 0 || blockSize <= 0 || blockSize > modulusLength || blockCount < 0)
+                    throw new IOException("Invalid container header");
+                if ((flags & ~COMPRESSION_MASK) != 0)
+                    throw new IOException("Unsupported container flags: " + flags);
+                if (plaintextLength >= 0 && (plaintextLength > blockCount * blockSize || plaintextLength <= (blockCount - 1) * blockSize))
+                    throw new IOException("Plaintext length " + plaintextLength + " does not match " + blockCount + " blocks");
+                if (channel.size() < headerSize + blockCount * modulusLength)
+                    throw new IOException("Container is truncated, expected " + blockCount + " blocks");
+            }
+            catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        public short getVersion() {
+            return version;
+        }
+
+        public short getFlags() {
+            return flags;
+        }
+
+        // compression to undo after decrypting, null if the plaintext isn't compressed
+        public Compression getCompression() throws IOException {
+            int id = flags & COMPRESSION_MASK;
+            if (id == 0)
+                return null;
+            try {
+                return Compression.forId(id);
+            }
+            catch (IllegalArgumentException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+
+        public int getModulusLength() {
+            return modulusLength;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public long getBlockCount() {
+            return blockCount;
+        }
+
+        // -1 if the container doesn't record it
+        public long getPlaintextLength() {
+            return plaintextLength;
+        }
+
+        public byte[] getFingerprint() {
+            return fingerprint.clone();
+        }
+
+        public boolean matchesKey(BigInteger n) {
+            return MessageDigest.isEqual(fingerprint, fingerprint(n));
+        }
+
+        public boolean matchesKey(RsaKeyContext key) {
+            return MessageDigest.isEqual(fingerprint, key.getFingerprint());
+        }
+
+        // reads count blocks starting at firstBlock into dest, returns the number of blocks read
+        public int readBlocks(long firstBlock, byte[] dest, int count) throws IOException {
+            if (firstBlock < 0 || firstBlock > blockCount)
+                throw new IndexOutOfBoundsException("Block " + firstBlock + " of " + blockCount);
+            count = (int) Math.min(count, blockCount - firstBlock);
+            readAt(ByteBuffer.wrap(dest, 0, count * modulusLength), headerSize + firstBlock * modulusLength);
+            return count;
+        }
+
+        private void readAt(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new IOException("Unexpected end of container");
+                position += read;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
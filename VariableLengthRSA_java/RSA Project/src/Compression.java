@@ -0,0 +1,127 @@
+/**
+ * Compression applied to the plaintext before it is split into RSA blocks
+ *
+ * Every block costs a full modular exponentiation, so compressing text/JSON/log data first means far fewer blocks
+ * to encrypt and decrypt and a smaller ciphertext. The ciphertext records the id of the compression used (in the
+ * CiphertextContainer flags, or in the BlockCodec frame), so decryption picks the right one by itself.
+ *
+ * DEFLATE is built in, other codecs can be added with register (ids 1 to 15, 0 means not compressed).
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+
+public interface Compression {
+    int MAX_ID = 15;
+
+    // the most decompress gives back unless told otherwise, -Drsa.maxDecompressedSize=<bytes> changes it
+    int MAX_DECOMPRESSED_SIZE = Integer.getInteger("rsa.maxDecompressedSize", 256 << 20);
+
+    Compression DEFLATE = new Compression() {
+        @Override
+        public int getId() {
+            return 1;
+        }
+
+        @Override
+        public String getName() {
+            return "deflate";
+        }
+
+        @Override
+        public InputStream compressing(InputStream plain) {
+            return new DeflaterInputStream(plain); // zlib format, the streams free their native memory when closed
+        }
+
+        @Override
+        public OutputStream decompressing(OutputStream plain) {
+            return new InflaterOutputStream(plain);
+        }
+    };
+
+    // stored in the ciphertext, 1 to MAX_ID
+    int getId();
+
+    String getName();
+
+    // reading from the returned stream gives the compressed form of what is read from plain
+    InputStream compressing(InputStream plain) throws IOException;
+
+    // compressed data written to the returned stream is written to plain decompressed, close it to finish
+    OutputStream decompressing(OutputStream plain) throws IOException;
+
+    default byte[] compress(byte[] data) throws IOException {
+        try (InputStream in = compressing(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+
+    default byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        return decompress(data, offset, length, MAX_DECOMPRESSED_SIZE);
+    }
+
+    // Throws IllegalArgumentException as soon as the output passes maxLength bytes, a few KB of crafted compressed
+    // data can otherwise expand to gigabytes (a zip bomb)
+    default byte[] decompress(byte[] data, int offset, int length, int maxLength) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream((int) Math.min(length * 4L, maxLength)) {
+            @Override
+            public synchronized void write(int b) {
+                checkRoom(1);
+                super.write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                checkRoom(len);
+                super.write(b, off, len);
+            }
+
+            private void checkRoom(int len) {
+                if (len > maxLength - count)
+                    throw new IllegalArgumentException("Decompressed message is larger than " + maxLength + " bytes");
+            }
+        };
+        try (OutputStream out = decompressing(plain)) {
+            out.write(data, offset, length);
+        }
+        return plain.toByteArray();
+    }
+
+    static void register(Compression compression) {
+        if (compression.getId() < 1 || compression.getId() > MAX_ID)
+            throw new IllegalArgumentException("Compression id must be between 1 and " + MAX_ID);
+        Compression existing = Registry.BY_ID.putIfAbsent(compression.getId(), compression);
+        if (existing != null && existing != compression)
+            throw new IllegalArgumentException("Compression id " + compression.getId() + " is already used by " + existing.getName());
+    }
+
+    // throws IllegalArgumentException for ids that aren't registered
+    static Compression forId(int id) {
+        Compression compression = Registry.BY_ID.get(id);
+        if (compression == null)
+            throw new IllegalArgumentException("Unknown compression id: " + id);
+        return compression;
+    }
+
+    static Compression forName(String name) {
+        for (Compression compression : Registry.BY_ID.values()) {
+            if (compression.getName().equalsIgnoreCase(name))
+                return compression;
+        }
+        throw new IllegalArgumentException("Unknown compression: " + name);
+    }
+
+    final class Registry {
+        private static final Map<Integer, Compression> BY_ID = new ConcurrentHashMap<>(Map.of(DEFLATE.getId(), DEFLATE));
+
+        private Registry() {
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Hybrid encryption: a random AES-256 key is encrypted once with RSA and the data itself with AES-GCM
+ *
+ * RSA encryption costs one modular exponentiation per 214 bytes, this costs one per file. The data is split into
+ * segments that are encrypted separately (each with its own nonce and tag) so large files can be streamed, segments
+ * can be processed in parallel and decryption never has to hold the whole file to check the tag.
+ *
+ * File layout (big-endian):
+ *   magic          4 bytes  "VRSH"
+ *   version        2 bytes
+ *   flags          2 bytes  (reserved, 0)
+ *   modulus len    4 bytes
+ *   segment size   4 bytes  plaintext bytes per segment
+ *   length         8 bytes  plaintext length
+ *   fingerprint   32 bytes  SHA-256 of n, like CiphertextContainer
+ *   nonce prefix   8 bytes  random, segment i uses nonce prefix || i
+ *   wrapped key    modulus len bytes, one RSA block holding random filler followed by the AES key
+ *   segments       AES-GCM ciphertext of each segment followed by its 16 byte tag
+ * The whole header is authenticated as additional data with every segment, so changing the length, the wrapped
+ * key or the order of the segments makes decryption fail.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class HybridCipher {
+    public static final byte[] MAGIC = {'V', 'R', 'S', 'H'};
+    public static final short VERSION = 1;
+    public static final int AES_KEY_LENGTH = 32;
+    public static final int NONCE_PREFIX_LENGTH = 8;
+    public static final int TAG_LENGTH = 16;
+    public static final int SEGMENT_SIZE = 1 << 20;
+    public static final int FIXED_HEADER_SIZE = 4 + 2 + 2 + 4 + 4 + 8 + CiphertextContainer.FINGERPRINT_LENGTH + NONCE_PREFIX_LENGTH;
+
+    // segments read, encrypted/decrypted (in parallel if there is an executor) and written at a time
+    private static final int BATCH_SEGMENTS = 8;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("AES-GCM not available", ex);
+        }
+    });
+
+    public static boolean isHybrid(String fileName) {
+        Path file = Paths.get(fileName);
+        if (!Files.isRegularFile(file))
+            return false;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) >= 0);
+            return Arrays.equals(magic.array(), MAGIC);
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // returns the number of plaintext bytes encrypted
+    public static long encryptFile(String inputFile, String outputFile, RsaKeyContext key, ExecutorService executor) throws IOException {
+        byte[] aesKey = new byte[AES_KEY_LENGTH];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(aesKey);
+        RANDOM.nextBytes(noncePrefix);
+        SecretKeySpec secretKey = new SecretKeySpec(aesKey, "AES");
+        long start = Instrumentation.start();
+
+        try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long length = in.size();
+            byte[] header = header(key, length, noncePrefix, wrapKey(aesKey, key));
+            write(out, header, header.length);
+
+            long numSegments = segmentCount(length);
+            byte[] plainBatch = new byte[BATCH_SEGMENTS * SEGMENT_SIZE];
+            byte[] cipherBatch = new byte[BATCH_SEGMENTS * (SEGMENT_SIZE + TAG_LENGTH)];
+            int[] cipherLengths = new int[BATCH_SEGMENTS];
+            for (long first = 0; first < numSegments; first += BATCH_SEGMENTS) {
+                int count = (int) Math.min(BATCH_SEGMENTS, numSegments - first);
+                int read = read(in, plainBatch, (int) Math.min(plainBatch.length, length - first * SEGMENT_SIZE));
+                long firstSegment = first;
+                VariableLengthRSA.processBlocks(count, executor, i -> {
+                    int plainLength = Math.min(SEGMENT_SIZE, read - i * SEGMENT_SIZE);
+                    cipherLengths[i] = crypt(Cipher.ENCRYPT_MODE, secretKey, noncePrefix, firstSegment + i, header,
+                            plainBatch, i * SEGMENT_SIZE, plainLength, cipherBatch, i * (SEGMENT_SIZE + TAG_LENGTH));
+                });
+                for (int i = 0; i < count; i++)
+                    write(out, cipherBatch, i * (SEGMENT_SIZE + TAG_LENGTH), cipherLengths[i]);
+            }
+            Instrumentation.blocksProcessed("hybridEncrypt", numSegments, length, start); // segments count as blocks
+            return length;
+        }
+        finally {
+            Arrays.fill(aesKey, (byte) 0);
+        }
+    }
+
+    // returns the number of plaintext bytes written. If a segment fails to authenticate the output file is deleted
+    public static long decryptFile(String inputFile, String outputFile, RsaKeyContext key, ExecutorService executor) throws IOException {
+        boolean done = false;
+        long start = Instrumentation.start();
+        try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+            if (read(in, fixed.array(), FIXED_HEADER_SIZE) != FIXED_HEADER_SIZE)
+                throw new IOException("File is too short to be a hybrid ciphertext");
+            byte[] magic = new byte[MAGIC.length];
+            fixed.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(inputFile + " is not a hybrid ciphertext");
+            short version = fixed.getShort();
+            if (version != VERSION)
+                throw new IOException("Unsupported hybrid version: " + version);
+            fixed.getShort(); // flags
+            int modulusLength = fixed.getInt();
+            int segmentSize = fixed.getInt();
+            long length = fixed.getLong();
+            byte[] fingerprint = new byte[CiphertextContainer.FINGERPRINT_LENGTH];
+            fixed.get(fingerprint);
+            byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            fixed.get(noncePrefix);
+            if (!MessageDigest.isEqual(fingerprint, key.getFingerprint()))
+                throw new IOException("Ciphertext was encrypted with a different key");
+            if (modulusLength != key.getModulusLength() || segmentSize != SEGMENT_SIZE || length < 0)
+                throw new IOException("Unsupported hybrid geometry: " + modulusLength + "/" + segmentSize);
+
+            byte[] header = Arrays.copyOf(fixed.array(), FIXED_HEADER_SIZE + modulusLength);
+            if (read(in, header, FIXED_HEADER_SIZE, modulusLength) != modulusLength)
+                throw new IOException("File is too short to be a hybrid ciphertext");
+            byte[] aesKey = unwrapKey(Arrays.copyOfRange(header, FIXED_HEADER_SIZE, header.length), key);
+            SecretKeySpec secretKey = new SecretKeySpec(aesKey, "AES");
+            Arrays.fill(aesKey, (byte) 0);
+
+            long numSegments = segmentCount(length);
+            byte[] cipherBatch = new byte[BATCH_SEGMENTS * (SEGMENT_SIZE + TAG_LENGTH)];
+            byte[] plainBatch = new byte[BATCH_SEGMENTS * SEGMENT_SIZE];
+            for (long first = 0; first < numSegments; first += BATCH_SEGMENTS) {
+                int count = (int) Math.min(BATCH_SEGMENTS, numSegments - first);
+                long plainRemaining = length - first * SEGMENT_SIZE;
+                int expected = (int) (Math.min((long) count * SEGMENT_SIZE, plainRemaining) + (long) count * TAG_LENGTH);
+                if (read(in, cipherBatch, expected) != expected)
+                    throw new IOException("Hybrid ciphertext is truncated");
+                long firstSegment = first;
+                try {
+                    VariableLengthRSA.processBlocks(count, executor, i -> {
+                        int plainLength = (int) Math.min(SEGMENT_SIZE, plainRemaining - (long) i * SEGMENT_SIZE);
+                        crypt(Cipher.DECRYPT_MODE, secretKey, noncePrefix, firstSegment + i, header,
+                                cipherBatch, i * (SEGMENT_SIZE + TAG_LENGTH), plainLength + TAG_LENGTH, plainBatch, i * SEGMENT_SIZE);
+                    });
+                }
+                catch (IllegalStateException ex) {
+                    if (ex.getCause() instanceof AEADBadTagException) // wrapped by crypt
+                        throw new IOException("Hybrid ciphertext failed authentication (wrong key or modified file)");
+                    throw ex;
+                }
+                write(out, plainBatch, 0, (int) Math.min(plainBatch.length, plainRemaining));
+            }
+            if (in.position() != in.size())
+                throw new IOException("Unexpected data after the last segment");
+            done = true;
+            Instrumentation.blocksProcessed("hybridDecrypt", numSegments, length, start);
+            return length;
+        }
+        finally {
+            if (!done)
+                Files.deleteIfExists(Paths.get(outputFile));
+        }
+    }
+
+    private static long segmentCount(long length) {
+        // always at least one segment so an empty file still has a tag
+        return Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    private static byte[] header(RsaKeyContext key, long length, byte[] noncePrefix, byte[] wrappedKey) {
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + wrappedKey.length);
+        header.put(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) 0);
+        header.putInt(key.getModulusLength());
+        header.putInt(SEGMENT_SIZE);
+        header.putLong(length);
+        header.put(key.getFingerprint());
+        header.put(noncePrefix);
+        header.put(wrappedKey);
+        return header.array();
+    }
+
+    // the AES key goes at the end of a full plaintext block, the rest is random so the RSA input is never small
+    static byte[] wrapKey(byte[] aesKey, RsaKeyContext key) {
+        byte[] block = new byte[key.getBlockSize()];
+        RANDOM.nextBytes(block);
+        System.arraycopy(aesKey, 0, block, block.length - aesKey.length, aesKey.length);
+        byte[] wrapped = new byte[key.getModulusLength()];
+        key.encryptBlock(block, 0, block.length, wrapped, 0);
+        Arrays.fill(block, (byte) 0);
+        return wrapped;
+    }
+
+    static byte[] unwrapKey(byte[] wrapped, RsaKeyContext key) throws IOException {
+        byte[] plain = new byte[key.getBlockSize()];
+        try {
+            key.decryptBlock(wrapped, 0, plain, 0, plain.length);
+        }
+        catch (IllegalArgumentException ex) { // doesn't fit in a block
+            throw new IOException("Hybrid ciphertext failed authentication (wrong key or modified file)");
+        }
+        return Arrays.copyOfRange(plain, plain.length - AES_KEY_LENGTH, plain.length);
+    }
+
+    // encrypts or decrypts one segment, returns the number of bytes written to dest
+    private static int crypt(int mode, SecretKeySpec secretKey, byte[] noncePrefix, long segment, byte[] header,
+                             byte[] src, int srcOffset, int length, byte[] dest, int destOffset) {
+        byte[] nonce = Arrays.copyOf(noncePrefix, NONCE_PREFIX_LENGTH + 4);
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, 4).putInt((int) segment);
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(mode, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(header);
+            return cipher.doFinal(src, srcOffset, length, dest, destOffset);
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Error in segment " + segment, ex);
+        }
+    }
+
+    private static int read(FileChannel channel, byte[] dest, int length) throws IOException {
+        return read(channel, dest, 0, length);
+    }
+
+    // reads until length bytes are read or the end of the channel is reached, returns the number of bytes read
+    private static int read(FileChannel channel, byte[] dest, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dest, offset, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                break;
+        }
+        return buffer.position() - offset;
+    }
+
+    private static void write(FileChannel channel, byte[] src, int length) throws IOException {
+        write(channel, src, 0, length);
+    }
+
+    private static void write(FileChannel channel, byte[] src, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(src, offset, length);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
@@ -0,0 +1,431 @@
+/**
+ * Append-only ciphertext file with a block index, for data that keeps growing and is read in small pieces (logs)
+ *
+ * The file is a header followed by fixed size records, one per RSA block. Each record starts with the plaintext
+ * end offset of its block (so the index is spread through the file and grows with it) followed by the ciphertext
+ * block:
+ *
+ *   header (big-endian):
+ *     magic        4 bytes  "VRSI"
+ *     version      2 bytes
+ *     flags        2 bytes  (reserved, 0)
+ *     modulus len  4 bytes
+ *     block size   4 bytes  maximum plaintext bytes per block
+ *     fingerprint 32 bytes  SHA-256 of n, see CiphertextContainer
+ *   record i (8 + modulus len bytes):
+ *     end offset   8 bytes  plaintext bytes in records 0..i
+ *     block        modulus len bytes, the plaintext bytes of the record as one big-endian number
+ *
+ * Appending only needs the public key: the new data is encrypted into new records at the end, earlier records are
+ * never touched (the last block of every append is usually not full, which costs some space for tiny appends).
+ * Reading a byte range finds the records that cover it with a binary search on the end offsets and decrypts only
+ * those. Readers use a memory-mapped view of the file.
+ *
+ * The end offsets are not encrypted, so the size of every append is visible (the total size is visible for any
+ * RSA ciphertext). Appends take an exclusive lock on the file so several processes can append to one file, but use
+ * one Appender per file in a process (a JVM can't lock the same file twice).
+ *
+ * Command line:
+ *   VariableLengthRSA log append --key public_key.txt --file audit.vrsi [--input file | --text text]
+ *   VariableLengthRSA log read --key private_key.txt --file audit.vrsi [--offset n] [--length n]
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+public class IndexedCiphertext {
+    public static final byte[] MAGIC = {'V', 'R', 'S', 'I'};
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4 + CiphertextContainer.FINGERPRINT_LENGTH;
+    public static final int OFFSET_LENGTH = 8;
+
+    // readers map the file in pieces of at most this many bytes (a single mapping can't be larger than 2 GB)
+    private static final int MAX_MAPPING = 1 << 30;
+
+    public static boolean isIndexed(String fileName) {
+        Path file = Paths.get(fileName);
+        if (!Files.isRegularFile(file))
+            return false;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) >= 0);
+            return Arrays.equals(magic.array(), MAGIC);
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // appends data to the file (created if needed), returns the plaintext length of the file afterwards
+    public static long append(String fileName, byte[] data, RsaKeyContext key, ExecutorService executor) throws IOException {
+        try (Appender appender = new Appender(fileName, key)) {
+            appender.append(data, 0, data.length, executor);
+            return appender.getPlaintextLength();
+        }
+    }
+
+    // plaintext bytes [offset, offset + length) of the file
+    public static byte[] read(String fileName, long offset, int length, RsaKeyContext key, ExecutorService executor) throws IOException {
+        try (Reader reader = new Reader(fileName)) {
+            return reader.read(offset, length, key, executor);
+        }
+    }
+
+    private static ByteBuffer header(RsaKeyContext key) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) 0);
+        header.putInt(key.getModulusLength());
+        header.putInt(key.getBlockSize());
+        header.put(key.getFingerprint());
+        header.flip();
+        return header;
+    }
+
+    // checks magic and version, returns {modulus length, block size} and fills fingerprint
+    private static int[] parseHeader(ByteBuffer header, String fileName, byte[] fingerprint) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException(fileName + " is not an indexed ciphertext");
+        short version = header.getShort();
+        if (version != VERSION)
+            throw new IOException("Unsupported indexed ciphertext version: " + version);
+        header.getShort(); // flags
+        int modulusLength = header.getInt();
+        int blockSize = header.getInt();
+        header.get(fingerprint);
+        if (modulusLength <= 0 || blockSize <= 0 || blockSize > modulusLength)
+            throw new IOException("Invalid indexed ciphertext header");
+        return new int[] {modulusLength, blockSize};
+    }
+
+    // Adds records to the end of a file, holding an exclusive lock on it until closed
+    public static class Appender implements Closeable {
+        private final FileChannel channel;
+        private final FileLock lock;
+        private final RsaKeyContext key;
+        private final int blockSize;
+        private final int recordSize;
+        private long recordCount;
+        private long plaintextLength;
+
+        public Appender(String fileName, RsaKeyContext key) throws IOException {
+            this.key = key;
+            blockSize = key.getBlockSize();
+            recordSize = OFFSET_LENGTH + key.getModulusLength();
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                lock = channel.lock();
+                if (channel.size() == 0) {
+                    writeAt(header(key), 0);
+                }
+                else {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    readAt(header, 0);
+                    header.flip();
+                    byte[] fingerprint = new byte[CiphertextContainer.FINGERPRINT_LENGTH];
+                    int[] geometry = parseHeader(header, fileName, fingerprint);
+                    if (!MessageDigest.isEqual(fingerprint, key.getFingerprint()))
+                        throw new IOException(fileName + " was encrypted with a different key");
+                    if (geometry[0] != key.getModulusLength() || geometry[1] != blockSize)
+                        throw new IOException("Unsupported block geometry: " + geometry[1] + "/" + geometry[0]);
+                }
+                // a record cut off by a crash during an earlier append is dropped
+                recordCount = (channel.size() - HEADER_SIZE) / recordSize;
+                channel.truncate(HEADER_SIZE + recordCount * recordSize);
+                if (recordCount > 0) {
+                    ByteBuffer end = ByteBuffer.allocate(OFFSET_LENGTH);
+                    readAt(end, HEADER_SIZE + (recordCount - 1) * recordSize);
+                    end.flip();
+                    plaintextLength = end.getLong();
+                }
+            }
+            catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        public long getPlaintextLength() {
+            return plaintextLength;
+        }
+
+        // encrypts data[offset, offset + length) into new records, STREAM_BATCH_BLOCKS records at a time
+        public void append(byte[] data, int offset, int length, ExecutorService executor) throws IOException {
+            long start = Instrumentation.start();
+            int batchRecords = VariableLengthRSA.STREAM_BATCH_BLOCKS;
+            byte[] batch = new byte[batchRecords * recordSize];
+            int numRecords = (length + blockSize - 1) / blockSize;
+            for (int first = 0; first < numRecords; first += batchRecords) {
+                int count = Math.min(batchRecords, numRecords - first);
+                int batchStart = offset + first * blockSize;
+                long baseOffset = plaintextLength + (long) first * blockSize;
+                VariableLengthRSA.processBlocks(count, executor, i -> {
+                    int recordStart = batchStart + i * blockSize;
+                    int recordLength = Math.min(blockSize, offset + length - recordStart);
+                    ByteBuffer.wrap(batch, i * recordSize, OFFSET_LENGTH).putLong(baseOffset + (long) i * blockSize + recordLength);
+                    key.encryptBlock(data, recordStart, recordLength, batch, i * recordSize + OFFSET_LENGTH);
+                });
+                writeAt(ByteBuffer.wrap(batch, 0, count * recordSize), HEADER_SIZE + (recordCount + first) * recordSize);
+            }
+            recordCount += numRecords;
+            plaintextLength += length;
+            Instrumentation.blocksProcessed("logAppend", numRecords, length, start);
+        }
+
+        private void writeAt(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+
+        private void readAt(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new IOException("Unexpected end of indexed ciphertext");
+                position += read;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.force(false); // appended records must survive a crash once the append has returned
+                lock.release();
+            }
+            finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Reads byte ranges through a memory-mapped view. Records appended after the reader was opened become visible
+    // after refresh()
+    public static class Reader implements Closeable {
+        private final String fileName;
+        private final FileChannel channel;
+        private final int modulusLength;
+        private final int blockSize;
+        private final int recordSize;
+        private final int recordsPerMapping;
+        private final byte[] fingerprint = new byte[CiphertextContainer.FINGERPRINT_LENGTH];
+        private MappedByteBuffer[] mappings;
+        private long recordCount;
+
+        public Reader(String fileName) throws IOException {
+            this.fileName = fileName;
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            try {
+                if (channel.size() < HEADER_SIZE)
+                    throw new IOException(fileName + " is not an indexed ciphertext");
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                int[] geometry = parseHeader(header, fileName, fingerprint);
+                modulusLength = geometry[0];
+                blockSize = geometry[1];
+                recordSize = OFFSET_LENGTH + modulusLength;
+                recordsPerMapping = MAX_MAPPING / recordSize;
+                refresh();
+            }
+            catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        // maps the records that are in the file now (a record still being written is left out)
+        public synchronized void refresh() throws IOException {
+            recordCount = Math.max(0, (channel.size() - HEADER_SIZE) / recordSize);
+            int count = (int) ((recordCount + recordsPerMapping - 1) / recordsPerMapping);
+            mappings = new MappedByteBuffer[count];
+            for (int m = 0; m < count; m++) {
+                long records = Math.min(recordsPerMapping, recordCount - (long) m * recordsPerMapping);
+                mappings[m] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + (long) m * recordsPerMapping * recordSize, records * recordSize);
+            }
+        }
+
+        public synchronized long getRecordCount() {
+            return recordCount;
+        }
+
+        public synchronized long getPlaintextLength() {
+            return recordCount > 0 ? endOffset(recordCount - 1) : 0;
+        }
+
+        public int getModulusLength() {
+            return modulusLength;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public boolean matchesKey(RsaKeyContext key) {
+            return MessageDigest.isEqual(fingerprint, key.getFingerprint());
+        }
+
+        // plaintext bytes in records 0..record
+        private long endOffset(long record) {
+            return mappings[(int) (record / recordsPerMapping)].getLong((int) (record % recordsPerMapping * recordSize));
+        }
+
+        private long startOffset(long record) {
+            return record > 0 ? endOffset(record - 1) : 0;
+        }
+
+        // the first record whose end offset is greater than offset
+        private long findRecord(long offset) {
+            long low = 0;
+            long high = recordCount - 1;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (endOffset(mid) > offset)
+                    high = mid;
+                else
+                    low = mid + 1;
+            }
+            return low;
+        }
+
+        // Decrypts plaintext bytes [offset, offset + length), only the records that cover the range are decrypted
+        public synchronized byte[] read(long offset, int length, RsaKeyContext key, ExecutorService executor) throws IOException {
+            if (!matchesKey(key))
+                throw new IOException("Ciphertext was encrypted with a different key");
+            if (key.getModulusLength() != modulusLength || key.getBlockSize() != blockSize)
+                throw new IOException("Unsupported block geometry: " + blockSize + "/" + modulusLength);
+            long total = getPlaintextLength();
+            if (offset < 0 || length < 0 || offset + length > total)
+                throw new IndexOutOfBoundsException("Range " + offset + " + " + length + " of " + total + " bytes");
+            if (length == 0)
+                return new byte[0];
+            long start = Instrumentation.start();
+
+            long first = findRecord(offset);
+            long last = findRecord(offset + length - 1);
+            int count = (int) (last - first + 1);
+            long spanStart = startOffset(first);
+            long[] ends = new long[count];
+            byte[] cipher = new byte[count * modulusLength];
+            for (int i = 0; i < count; i++) {
+                long record = first + i;
+                ends[i] = endOffset(record);
+                ByteBuffer mapping = mappings[(int) (record / recordsPerMapping)].duplicate();
+                mapping.position((int) (record % recordsPerMapping * recordSize) + OFFSET_LENGTH);
+                mapping.get(cipher, i * modulusLength, modulusLength);
+            }
+            byte[] span = new byte[(int) (ends[count - 1] - spanStart)];
+            VariableLengthRSA.processBlocks(count, executor, i -> {
+                long recordStart = i > 0 ? ends[i - 1] : spanStart;
+                int recordLength = (int) (ends[i] - recordStart);
+                if (recordLength < 0 || recordLength > blockSize)
+                    throw new IllegalStateException("Corrupt index in " + fileName + " at record " + (first + i));
+                key.decryptBlock(cipher, i * modulusLength, span, (int) (recordStart - spanStart), recordLength);
+            });
+            Instrumentation.blocksProcessed("logRead", count, length, start);
+            if (offset == spanStart && length == span.length)
+                return span;
+            return Arrays.copyOfRange(span, (int) (offset - spanStart), (int) (offset - spanStart) + length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close(); // the mappings are released when they are garbage collected
+        }
+    }
+
+    public static void main(String[] args) {
+        String command = args.length > 1 ? args[1] : "";
+        String keyFile = null;
+        String file = null;
+        String inputFile = null;
+        String text = null;
+        long offset = 0;
+        long length = -1;
+        try {
+            if (!command.equals("append") && !command.equals("read"))
+                throw new IllegalArgumentException("Expected append or read");
+            for (int i = 2; i < args.length; i++) {
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException(args[i] + " needs a value");
+                String value = args[i + 1];
+                switch (args[i++]) {
+                    case "--key":
+                        keyFile = value;
+                        break;
+                    case "--file":
+                        file = value;
+                        break;
+                    case "--input":
+                        inputFile = value;
+                        break;
+                    case "--text":
+                        text = value;
+                        break;
+                    case "--offset":
+                        offset = Long.parseLong(value);
+                        break;
+                    case "--length":
+                        length = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+                }
+            }
+            if (keyFile == null || file == null)
+                throw new IllegalArgumentException("--key and --file are required");
+        }
+        catch (IllegalArgumentException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.out.println("Usage: VariableLengthRSA log append --key <public key> --file <log> [--input <file> | --text <text>]");
+            System.out.println("       VariableLengthRSA log read --key <private key> --file <log> [--offset <n>] [--length <n>]");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            if (command.equals("append")) {
+                RsaKeyContext key = RsaKeyContext.fromPublicKeyFile(keyFile);
+                byte[] data;
+                if (text != null)
+                    data = (text + "\n").getBytes(StandardCharsets.UTF_8);
+                else if (inputFile != null)
+                    data = Files.readAllBytes(Paths.get(inputFile));
+                else
+                    data = System.in.readAllBytes();
+                long total = append(file, data, key, ForkJoinPool.commonPool());
+                System.out.println("Appended " + data.length + " bytes, " + file + " now holds " + total + " bytes");
+            }
+            else {
+                RsaKeyContext key = RsaKeyContext.fromPrivateKeyFile(keyFile);
+                try (Reader reader = new Reader(file)) {
+                    long available = reader.getPlaintextLength() - offset;
+                    int count = (int) Math.min(length >= 0 ? length : available, Integer.MAX_VALUE);
+                    System.out.write(reader.read(offset, count, key, ForkJoinPool.commonPool()));
+                    System.out.flush();
+                }
+            }
+        }
+        catch (IOException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Records what the RSA code is doing, as Metrics counters/timers and as JFR events
+ *
+ * The hot paths call these methods instead of printing. When no Metrics is installed and no flight recording is
+ * running the cost is two System.nanoTime calls per operation.
+ *
+ * JFR events (category "VariableLengthRSA"): rsa.ModExp, rsa.PrimeGenerated, rsa.BlockOperation and rsa.KeyParse.
+ * Record them with e.g. java -XX:StartFlightRecording=filename=rsa.jfr -jar ... and view them with
+ * jfr print --categories VariableLengthRSA rsa.jfr
+ *
+ * -Drsa.metrics=true installs a MetricsRecorder and prints its report when the program exits.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+public final class Instrumentation {
+    private static volatile Metrics metrics = Metrics.NOOP;
+
+    static {
+        if (Boolean.getBoolean("rsa.metrics")) {
+            MetricsRecorder recorder = new MetricsRecorder();
+            metrics = recorder;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print("Metrics:\n" + recorder.report())));
+        }
+    }
+
+    private Instrumentation() {
+    }
+
+    public static void setMetrics(Metrics newMetrics) {
+        metrics = newMetrics != null ? newMetrics : Metrics.NOOP;
+    }
+
+    public static Metrics getMetrics() {
+        return metrics;
+    }
+
+    // start time to pass to the methods below
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    // one block encryption/decryption (for CRT keys this includes every prime and the recombination)
+    public static void modExp(String operation, int modulusBits, long startNanos) {
+        modExp(operation, modulusBits, 1, startNanos);
+    }
+
+    // blocks encrypted/decrypted together in lockstep (see BatchMontgomery)
+    public static void modExp(String operation, int modulusBits, int blocks, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        Metrics m = metrics;
+        m.count(Metrics.MODEXP, blocks);
+        m.time(Metrics.MODEXP_TIME, nanos);
+
+        ModExpEvent event = new ModExpEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.modulusBits = modulusBits;
+            event.blocks = blocks;
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    // sieved is how many numbers the sieve covered, tested how many of them got Miller-Rabin tests and rounds how
+    // many Miller-Rabin rounds those tests ran (most composites fail the first one)
+    public static void primeGenerated(int bits, long sieved, long tested, long rounds, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        Metrics m = metrics;
+        m.count(Metrics.PRIMES, 1);
+        m.count(Metrics.PRIME_CANDIDATES, tested);
+        m.count(Metrics.PRIMALITY_ROUNDS, rounds);
+        m.time(Metrics.PRIME_TIME, nanos);
+
+        PrimeGeneratedEvent event = new PrimeGeneratedEvent();
+        if (event.isEnabled()) {
+            event.bits = bits;
+            event.sieved = sieved;
+            event.tested = tested;
+            event.rounds = rounds;
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    // a whole encrypt/decrypt call or file, operation is e.g. "encrypt", "decryptFile"
+    public static void blocksProcessed(String operation, long blocks, long bytes, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        Metrics m = metrics;
+        String prefix = "rsa." + operation;
+        m.count(prefix + Metrics.BLOCKS_SUFFIX, blocks);
+        m.count(prefix + Metrics.BYTES_SUFFIX, bytes);
+        m.time(prefix + Metrics.TIME_SUFFIX, nanos);
+
+        BlockOperationEvent event = new BlockOperationEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.blocks = blocks;
+            event.bytes = bytes;
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    // reading a key file and building its RsaKeyContext
+    public static void keyParsed(String source, int modulusBits, int primes, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        Metrics m = metrics;
+        m.count(Metrics.KEY_PARSE, 1);
+        m.time(Metrics.KEY_PARSE_TIME, nanos);
+
+        KeyParseEvent event = new KeyParseEvent();
+        if (event.isEnabled()) {
+            event.source = source;
+            event.modulusBits = modulusBits;
+            event.primes = primes;
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    /*** JFR EVENTS ***/
+
+    @Name("rsa.ModExp")
+    @Label("RSA Block Operation")
+    @Category("VariableLengthRSA")
+    static final class ModExpEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Modulus Bits")
+        int modulusBits;
+        @Label("Blocks")
+        int blocks;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("rsa.PrimeGenerated")
+    @Label("Prime Generated")
+    @Category("VariableLengthRSA")
+    static final class PrimeGeneratedEvent extends Event {
+        @Label("Bits")
+        int bits;
+        @Label("Numbers Sieved")
+        long sieved;
+        @Label("Candidates Tested")
+        long tested;
+        @Label("Miller-Rabin Rounds")
+        long rounds;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("rsa.BlockOperation")
+    @Label("RSA Encrypt/Decrypt")
+    @Category("VariableLengthRSA")
+    static final class BlockOperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Blocks")
+        long blocks;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("rsa.KeyParse")
+    @Label("Key Parsed")
+    @Category("VariableLengthRSA")
+    static final class KeyParseEvent extends Event {
+        @Label("Source")
+        String source;
+        @Label("Modulus Bits")
+        int modulusBits;
+        @Label("Primes")
+        int primes;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    /*** END JFR EVENTS ***/
+}
@@ -0,0 +1,114 @@
+/**
+ * Key size and generation settings, chosen at run time instead of the compile time constants in VariableLengthRSA
+ *
+ * The block geometry used by encrypt/decrypt comes from the key itself (see modulusLength and blockSizeFor), so
+ * keys made with different profiles can be used in the same process.
+ *
+ * Multi-prime profiles build n from 3 or 4 smaller primes instead of 2. The public key and ciphertext are the same
+ * as for a two prime key of the same size, only key generation and decryption (k-way CRT) change.
+ */
+
+import java.math.BigInteger;
+
+public class KeyProfile {
+    // Bytes of each ciphertext block that are not used for plaintext, 256 - 42 = 214 for a 2048 bit key
+    public static final int BLOCK_OVERHEAD = 42;
+    public static final int MAX_PRIMES = 4;
+    public static final BigInteger F4 = BigInteger.valueOf(65537);
+
+    public enum ExponentStrategy {
+        F4,     // e = 65537, much faster public key operations
+        RANDOM  // random e coprime to phi(n), as required by the original program specifications
+    }
+
+    // matches the original BIT_LENGTH/BLOCK_SIZE constants
+    public static final KeyProfile DEFAULT = new KeyProfile("2048-random", 2048, ExponentStrategy.RANDOM, 0);
+    public static final KeyProfile RSA_2048 = new KeyProfile("2048", 2048, ExponentStrategy.F4, 0);
+    public static final KeyProfile RSA_3072 = new KeyProfile("3072", 3072, ExponentStrategy.F4, 0);
+    public static final KeyProfile RSA_4096 = new KeyProfile("4096", 4096, ExponentStrategy.F4, 0);
+    public static final KeyProfile RSA_2048_3P = new KeyProfile("2048-3p", 2048, ExponentStrategy.F4, 0, 3);
+    public static final KeyProfile RSA_2048_4P = new KeyProfile("2048-4p", 2048, ExponentStrategy.F4, 0, 4);
+    private static final KeyProfile[] PROFILES = {DEFAULT, RSA_2048, RSA_3072, RSA_4096, RSA_2048_3P, RSA_2048_4P};
+
+    private final String name;
+    private final int modulusBits;
+    private final int blockSize;
+    private final ExponentStrategy exponentStrategy;
+    private final int primalityRounds;
+    private final int primeCount;
+
+    // primalityRounds of 0 picks the number of Miller-Rabin rounds from the prime length
+    public KeyProfile(String name, int modulusBits, ExponentStrategy exponentStrategy, int primalityRounds) {
+        this(name, modulusBits, exponentStrategy, primalityRounds, 2);
+    }
+
+    public KeyProfile(String name, int modulusBits, ExponentStrategy exponentStrategy, int primalityRounds, int primeCount) {
+        if (modulusBits % 16 != 0 || modulusBits < 512)
+            throw new IllegalArgumentException("Modulus size must be a multiple of 16 and at least 512 bits");
+        if (primalityRounds < 0)
+            throw new IllegalArgumentException("Primality rounds can't be negative");
+        if (primeCount < 2 || primeCount > MAX_PRIMES)
+            throw new IllegalArgumentException("Number of primes must be between 2 and " + MAX_PRIMES);
+        this.name = name;
+        this.modulusBits = modulusBits;
+        this.blockSize = modulusBits / 8 - BLOCK_OVERHEAD;
+        this.exponentStrategy = exponentStrategy;
+        this.primalityRounds = primalityRounds;
+        this.primeCount = primeCount;
+    }
+
+    // looks up one of the built in profiles by name ("2048-random", "2048", "3072", "4096", "2048-3p", "2048-4p")
+    public static KeyProfile forName(String name) {
+        for (KeyProfile profile : PROFILES) {
+            if (profile.name.equals(name))
+                return profile;
+        }
+        throw new IllegalArgumentException("Unknown key profile: " + name);
+    }
+
+    public static int modulusLength(BigInteger n) {
+        return (n.bitLength() + 7) / 8;
+    }
+
+    public static int blockSizeFor(BigInteger n) {
+        return modulusLength(n) - BLOCK_OVERHEAD;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getModulusBits() {
+        return modulusBits;
+    }
+
+    public int getPrimeCount() {
+        return primeCount;
+    }
+
+    // length of the largest prime, when modulusBits doesn't divide evenly some primes are one bit shorter
+    public int getPrimeBits() {
+        return getPrimeBits(0);
+    }
+
+    public int getPrimeBits(int index) {
+        return modulusBits / primeCount + (index < modulusBits % primeCount ? 1 : 0);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public ExponentStrategy getExponentStrategy() {
+        return exponentStrategy;
+    }
+
+    public int getPrimalityRounds() {
+        return primalityRounds != 0 ? primalityRounds : VariableLengthRSA.millerRabinRounds(getPrimeBits());
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + modulusBits + " bit, " + (primeCount != 2 ? primeCount + " primes, " : "") + blockSize + " byte blocks, e = " + exponentStrategy + ")";
+    }
+}
@@ -0,0 +1,429 @@
+/**
+ * Binary store for many RSA keys, looked up by key id, with a bounded cache of parsed keys
+ *
+ * Instead of one pair of decimal text files per key, a keyring file holds any number of public and private keys.
+ * The file is memory-mapped and indexed by key id when it is opened, so a lookup is a hash map lookup and reading
+ * the numbers straight from the mapping. Building an RsaKeyContext (Montgomery constants, recoded exponents, CRT
+ * values) is the expensive part, so the most recently used contexts are kept in an LRU cache.
+ *
+ * The key id is the first 8 bytes of the key fingerprint (SHA-256 of n, see CiphertextContainer) in hex, so the
+ * public and private key of a pair have the same id. Lookups also accept the full 64 character fingerprint.
+ *
+ * File layout (big-endian):
+ *   header:
+ *     magic        4 bytes  "VRSK"
+ *     version      2 bytes
+ *     flags        2 bytes  (reserved, 0)
+ *   record:
+ *     length       4 bytes  bytes in the rest of the record
+ *     fingerprint 32 bytes
+ *     kind         1 byte   1 public key, 2 private key
+ *     count        1 byte   numbers in the key, in key file order (n, e) or (n, d, p, q, dP, dQ, qInv, ...)
+ *     numbers      2 byte length followed by the magnitude, for each number
+ *
+ * Records are only ever appended (under an exclusive file lock, so several processes can add keys), a later record
+ * for the same id and kind replaces the earlier one. A record that was cut off by a crash is ignored and
+ * overwritten by the next add. Lookups are thread safe; refresh picks up keys added by other processes. Use one
+ * Keyring per file in a process (a JVM can't lock the same file twice).
+ *
+ * Command line:
+ *   VariableLengthRSA keyring add --file keys.vrsk [--public public_key.txt] [--private private_key.txt]
+ *   VariableLengthRSA keyring list --file keys.vrsk
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+
+public class Keyring implements Closeable {
+    public static final byte[] MAGIC = {'V', 'R', 'S', 'K'};
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 2 + 2;
+    public static final int KEY_ID_BYTES = 8;
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static final byte PUBLIC = 1;
+    private static final byte PRIVATE = 2;
+    private static final int RECORD_FIXED_SIZE = CiphertextContainer.FINGERPRINT_LENGTH + 2; // after the length
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final int cacheSize;
+    private final Map<String, RsaKeyContext> cache;
+
+    // replaced as a whole by refresh, so a lookup always sees a mapping and an index that belong together
+    private volatile Snapshot snapshot;
+
+    private static final class Snapshot {
+        final MappedByteBuffer mapping;
+        final Map<String, Integer> publicKeys;  // key id -> offset of the record in the mapping
+        final Map<String, Integer> privateKeys;
+        final long validLength;                 // header and complete records
+
+        Snapshot(MappedByteBuffer mapping, Map<String, Integer> publicKeys, Map<String, Integer> privateKeys, long validLength) {
+            this.mapping = mapping;
+            this.publicKeys = publicKeys;
+            this.privateKeys = privateKeys;
+            this.validLength = validLength;
+        }
+    }
+
+    public Keyring(String fileName) throws IOException {
+        this(fileName, DEFAULT_CACHE_SIZE);
+    }
+
+    // the file is created if it doesn't exist, cacheSize is the number of parsed keys kept
+    public Keyring(String fileName, int cacheSize) throws IOException {
+        if (cacheSize < 1)
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        this.fileName = fileName;
+        this.cacheSize = cacheSize;
+        cache = new LinkedHashMap<String, RsaKeyContext>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RsaKeyContext> eldest) {
+                return size() > Keyring.this.cacheSize;
+            }
+        };
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                FileLock lock = channel.lock();
+                try {
+                    if (channel.size() == 0)
+                        writeAt(header(), 0);
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            refresh();
+        }
+        catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public static String keyId(byte[] fingerprint) {
+        return VariableLengthRSA.bytesToHex(Arrays.copyOf(fingerprint, KEY_ID_BYTES)).toLowerCase();
+    }
+
+    public static String keyId(RsaKeyContext key) {
+        return keyId(key.getFingerprint());
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) 0);
+        header.flip();
+        return header;
+    }
+
+    // maps the file again and indexes every complete record
+    public synchronized void refresh() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE)
+            throw new IOException(fileName + " is not a keyring");
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Keyring is too large: " + size + " bytes");
+        MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        byte[] magic = new byte[MAGIC.length];
+        mapping.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException(fileName + " is not a keyring");
+        short version = mapping.getShort();
+        if (version != VERSION)
+            throw new IOException("Unsupported keyring version: " + version);
+
+        Map<String, Integer> publicKeys = new HashMap<>();
+        Map<String, Integer> privateKeys = new HashMap<>();
+        int position = HEADER_SIZE;
+        while (position + 4 <= size) {
+            int length = mapping.getInt(position);
+            if (length < RECORD_FIXED_SIZE || position + 4L + length > size)
+                break; // cut off by a crash, the next add overwrites it
+            byte[] fingerprint = new byte[CiphertextContainer.FINGERPRINT_LENGTH];
+            ByteBuffer record = mapping.duplicate();
+            record.position(position + 4);
+            record.get(fingerprint);
+            byte kind = record.get();
+            if (kind == PUBLIC)
+                publicKeys.put(keyId(fingerprint), position);
+            else if (kind == PRIVATE)
+                privateKeys.put(keyId(fingerprint), position);
+            position += 4 + length;
+        }
+        Snapshot old = snapshot;
+        snapshot = new Snapshot(mapping, publicKeys, privateKeys, position);
+        if (old != null) {
+            synchronized (cache) { // drop the keys that were replaced
+                old.publicKeys.forEach((id, offset) -> {
+                    if (!offset.equals(publicKeys.get(id)))
+                        cache.remove(id + ":public");
+                });
+                old.privateKeys.forEach((id, offset) -> {
+                    if (!offset.equals(privateKeys.get(id)))
+                        cache.remove(id + ":private");
+                });
+            }
+        }
+    }
+
+    // ids of every key in the keyring, sorted
+    public Set<String> getKeyIds() {
+        Snapshot s = snapshot;
+        Set<String> ids = new TreeSet<>(s.publicKeys.keySet());
+        ids.addAll(s.privateKeys.keySet());
+        return ids;
+    }
+
+    public boolean hasPublicKey(String keyId) {
+        return find(snapshot, keyId, PUBLIC) != null;
+    }
+
+    public boolean hasPrivateKey(String keyId) {
+        return find(snapshot, keyId, PRIVATE) != null;
+    }
+
+    // throws IllegalArgumentException if the keyring has no public key with this id
+    public RsaKeyContext publicKey(String keyId) {
+        return lookup(keyId, PUBLIC);
+    }
+
+    // throws IllegalArgumentException if the keyring has no private key with this id
+    public RsaKeyContext privateKey(String keyId) {
+        return lookup(keyId, PRIVATE);
+    }
+
+    public byte[] encrypt(String keyId, byte[] message, ExecutorService executor) {
+        return VariableLengthRSA.encrypt(message, publicKey(keyId), executor);
+    }
+
+    public byte[] decrypt(String keyId, byte[] ciphertext, ExecutorService executor) {
+        return VariableLengthRSA.decrypt(ciphertext, privateKey(keyId), executor);
+    }
+
+    private static String normalise(String keyId) {
+        String id = keyId.trim().toLowerCase();
+        return id.length() > 2 * KEY_ID_BYTES ? id.substring(0, 2 * KEY_ID_BYTES) : id;
+    }
+
+    // position of the record for a key id or full fingerprint, null if there is none. The index is by key id, so a
+    // full fingerprint is compared with the one in the record as well
+    private static Integer find(Snapshot s, String keyId, byte kind) {
+        Integer position = (kind == PUBLIC ? s.publicKeys : s.privateKeys).get(normalise(keyId));
+        String given = keyId.trim().toLowerCase();
+        if (position == null || given.length() <= 2 * KEY_ID_BYTES)
+            return position;
+        byte[] fingerprint = new byte[CiphertextContainer.FINGERPRINT_LENGTH];
+        ByteBuffer record = s.mapping.duplicate();
+        record.position(position + 4);
+        record.get(fingerprint);
+        return given.equals(VariableLengthRSA.bytesToHex(fingerprint).toLowerCase()) ? position : null;
+    }
+
+    // Keys are parsed outside the lock, so a slow parse doesn't hold up lookups of other keys (two threads missing
+    // the same key at once may both parse it, the first one is cached)
+    private RsaKeyContext lookup(String keyId, byte kind) {
+        Snapshot s = snapshot;
+        Integer position = find(s, keyId, kind);
+        if (position == null)
+            throw new IllegalArgumentException("No " + (kind == PUBLIC ? "public" : "private") + " key " + keyId.trim() + " in " + fileName);
+        String id = normalise(keyId);
+        String cacheKey = kind == PUBLIC ? id + ":public" : id + ":private";
+        synchronized (cache) {
+            RsaKeyContext key = cache.get(cacheKey);
+            if (key != null) {
+                Instrumentation.getMetrics().count(Metrics.KEYRING_HIT, 1);
+                return key;
+            }
+        }
+        Instrumentation.getMetrics().count(Metrics.KEYRING_MISS, 1);
+
+        long start = Instrumentation.start();
+        BigInteger[] numbers = readNumbers(s.mapping, position);
+        RsaKeyContext key = kind == PUBLIC ? RsaKeyContext.publicKey(numbers[0], numbers[1]) : RsaKeyContext.fromPrivateKeyNumbers(numbers);
+        Instrumentation.keyParsed(fileName + "#" + id, key.getN().bitLength(), key.getPrimeCount(), start);
+        synchronized (cache) {
+            if (snapshot != s)
+                return key; // refreshed while parsing, the record may have been replaced
+            RsaKeyContext cached = cache.putIfAbsent(cacheKey, key);
+            return cached != null ? cached : key;
+        }
+    }
+
+    private static BigInteger[] readNumbers(MappedByteBuffer mapping, int position) {
+        ByteBuffer record = mapping.duplicate();
+        record.position(position + 4 + CiphertextContainer.FINGERPRINT_LENGTH + 1);
+        BigInteger[] numbers = new BigInteger[record.get() & 0xFF];
+        for (int i = 0; i < numbers.length; i++) {
+            byte[] magnitude = new byte[record.getShort() & 0xFFFF];
+            record.get(magnitude);
+            numbers[i] = new BigInteger(1, magnitude);
+        }
+        if (numbers.length < 2)
+            throw new IllegalArgumentException("Corrupt keyring record at " + position);
+        return numbers;
+    }
+
+    /*** ADDING KEYS ***/
+
+    // Adds the keys in a public and/or private key file (either can be null), returns the key id.
+    // Both files must be for the same n
+    public String add(String publicKeyFile, String privateKeyFile) throws IOException {
+        BigInteger[] publicNumbers = publicKeyFile != null ? RsaKeyContext.parseNumbers(RsaKeyContext.readKeyFile(publicKeyFile)) : null;
+        BigInteger[] privateNumbers = privateKeyFile != null ? RsaKeyContext.parseNumbers(RsaKeyContext.readKeyFile(privateKeyFile)) : null;
+        if (publicNumbers == null && privateNumbers == null)
+            throw new IllegalArgumentException("No key files given");
+        if (publicNumbers != null && privateNumbers != null && !publicNumbers[0].equals(privateNumbers[0]))
+            throw new IllegalArgumentException("The public and private key files are for different keys");
+        return add(publicNumbers != null ? Arrays.copyOf(publicNumbers, 2) : null, privateNumbers);
+    }
+
+    // publicNumbers is (n, e), privateNumbers as in RsaKeyContext.fromPrivateKeyNumbers, either can be null
+    public synchronized String add(BigInteger[] publicNumbers, BigInteger[] privateNumbers) throws IOException {
+        // building the contexts checks the values (odd n, primes multiply to n) before anything is written
+        RsaKeyContext key = null;
+        if (publicNumbers != null)
+            key = RsaKeyContext.publicKey(publicNumbers[0], publicNumbers[1]);
+        if (privateNumbers != null)
+            key = RsaKeyContext.fromPrivateKeyNumbers(privateNumbers);
+        if (key == null)
+            throw new IllegalArgumentException("No key given");
+        byte[] fingerprint = key.getFingerprint();
+
+        ByteBuffer records = ByteBuffer.allocate((publicNumbers != null ? recordSize(publicNumbers) : 0) + (privateNumbers != null ? recordSize(privateNumbers) : 0));
+        if (publicNumbers != null)
+            putRecord(records, fingerprint, PUBLIC, publicNumbers);
+        if (privateNumbers != null)
+            putRecord(records, fingerprint, PRIVATE, privateNumbers);
+        records.flip();
+        FileLock lock = channel.lock();
+        try {
+            refresh(); // other processes may have added keys since
+            writeAt(records, snapshot.validLength);
+            channel.truncate(snapshot.validLength + records.limit());
+            channel.force(false);
+            refresh();
+        }
+        finally {
+            lock.release();
+        }
+        return keyId(fingerprint);
+    }
+
+    private static int recordSize(BigInteger[] numbers) {
+        int size = 4 + RECORD_FIXED_SIZE;
+        for (BigInteger number : numbers)
+            size += 2 + magnitude(number).length;
+        return size;
+    }
+
+    private static void putRecord(ByteBuffer buffer, byte[] fingerprint, byte kind, BigInteger[] numbers) {
+        if (numbers.length > 255)
+            throw new IllegalArgumentException("Too many numbers in key: " + numbers.length);
+        buffer.putInt(recordSize(numbers) - 4);
+        buffer.put(fingerprint);
+        buffer.put(kind);
+        buffer.put((byte) numbers.length);
+        for (BigInteger number : numbers) {
+            byte[] magnitude = magnitude(number);
+            if (magnitude.length > 0xFFFF)
+                throw new IllegalArgumentException("Number too large for a keyring: " + number.bitLength() + " bits");
+            buffer.putShort((short) magnitude.length);
+            buffer.put(magnitude);
+        }
+    }
+
+    private static byte[] magnitude(BigInteger number) {
+        if (number.signum() < 0)
+            throw new IllegalArgumentException("Key numbers can't be negative");
+        byte[] bytes = number.toByteArray();
+        return bytes.length > 1 && bytes[0] == 0 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes; // sign byte
+    }
+
+    private void writeAt(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /*** END ADDING KEYS ***/
+
+    @Override
+    public void close() throws IOException {
+        channel.close(); // the mapping is released when it is garbage collected
+    }
+
+    public static void main(String[] args) {
+        String command = args.length > 1 ? args[1] : "";
+        String file = null;
+        String publicKeyFile = null;
+        String privateKeyFile = null;
+        try {
+            if (!command.equals("add") && !command.equals("list"))
+                throw new IllegalArgumentException("Expected add or list");
+            for (int i = 2; i < args.length; i++) {
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException(args[i] + " needs a value");
+                String value = args[i + 1];
+                switch (args[i++]) {
+                    case "--file":
+                        file = value;
+                        break;
+                    case "--public":
+                        publicKeyFile = value;
+                        break;
+                    case "--private":
+                        privateKeyFile = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+                }
+            }
+            if (file == null)
+                throw new IllegalArgumentException("--file is required");
+            if (command.equals("add") && publicKeyFile == null && privateKeyFile == null)
+                throw new IllegalArgumentException("add needs --public and/or --private");
+        }
+        catch (IllegalArgumentException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.out.println("Usage: VariableLengthRSA keyring add --file <keyring> [--public <public key>] [--private <private key>]");
+            System.out.println("       VariableLengthRSA keyring list --file <keyring>");
+            System.exit(2);
+            return;
+        }
+
+        try (Keyring keyring = new Keyring(file)) {
+            if (command.equals("add")) {
+                String id = keyring.add(publicKeyFile, privateKeyFile);
+                System.out.println("Added key " + id + " to " + file);
+            }
+            else {
+                for (String id : keyring.getKeyIds()) {
+                    RsaKeyContext key = keyring.hasPublicKey(id) ? keyring.publicKey(id) : keyring.privateKey(id);
+                    System.out.printf("%s  %d bits  %s%s%n", id, key.getN().bitLength(), keyring.hasPublicKey(id) ? "public" : "",
+                            keyring.hasPrivateKey(id) ? (keyring.hasPublicKey(id) ? "+private" : "private") : "");
+                }
+            }
+        }
+        catch (IOException | IllegalArgumentException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Keeps the most recent request latencies and reports percentiles for them
+ *
+ * Used by RsaServer (time from a request being read to its response being ready) and RsaClient (round trip time).
+ * Only the last WINDOW samples are kept so a long running server uses a fixed amount of memory.
+ */
+
+import java.util.Arrays;
+
+public class LatencyRecorder {
+    public static final int WINDOW = 1 << 16;
+
+    private final long[] samples = new long[WINDOW];
+    private long count;
+    private long maxNanos;
+
+    public synchronized void record(long nanos) {
+        samples[(int) (count % WINDOW)] = nanos;
+        count++;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    // p in [0, 100], the value in nanoseconds, 0 if nothing was recorded
+    public double percentile(double p) {
+        return percentile(sortedSamples(), p);
+    }
+
+    private synchronized long[] sortedSamples() {
+        long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, WINDOW));
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    // e.g. "1000 requests, p50 1.20 ms, p90 2.31 ms, p99 4.02 ms, p99.9 7.80 ms, max 9.11 ms"
+    public String summary() {
+        long[] sorted = sortedSamples();
+        long total;
+        long max;
+        synchronized (this) {
+            total = count;
+            max = maxNanos;
+        }
+        return String.format("%d requests, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                total, percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6, percentile(sorted, 99) / 1e6,
+                percentile(sorted, 99.9) / 1e6, max / 1e6);
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Pluggable sink for the counters and timers recorded by Instrumentation
+ *
+ * Install one with Instrumentation.setMetrics (or run with -Drsa.metrics=true to use a MetricsRecorder that prints
+ * a report when the program exits). Implementations are called from many threads at once and from the hot paths,
+ * so they must be thread safe and cheap.
+ */
+
+public interface Metrics {
+    // counters
+    String MODEXP = "rsa.modexp";                       // block modular exponentiations
+    String PRIMES = "rsa.prime.generated";
+    String PRIME_CANDIDATES = "rsa.prime.candidates";   // numbers left after sieving that were tested
+    String PRIMALITY_ROUNDS = "rsa.prime.rounds";       // Miller-Rabin rounds run
+    String KEY_PARSE = "rsa.key.parse";
+    String KEYRING_HIT = "rsa.keyring.hit";             // Keyring lookups answered from the cache
+    String KEYRING_MISS = "rsa.keyring.miss";
+
+    // timers, the time of each MODEXP, prime, key parse or block operation
+    String MODEXP_TIME = "rsa.modexp.time";
+    String PRIME_TIME = "rsa.prime.time";
+    String KEY_PARSE_TIME = "rsa.key.parse.time";
+
+    // block operations are recorded as "rsa.<operation>.blocks", "rsa.<operation>.bytes" and "rsa.<operation>.time"
+    String BLOCKS_SUFFIX = ".blocks";
+    String BYTES_SUFFIX = ".bytes";
+    String TIME_SUFFIX = ".time";
+
+    Metrics NOOP = new Metrics() {
+        @Override
+        public void count(String name, long delta) {
+        }
+
+        @Override
+        public void time(String name, long nanos) {
+        }
+    };
+
+    void count(String name, long delta);
+
+    void time(String name, long nanos);
+}
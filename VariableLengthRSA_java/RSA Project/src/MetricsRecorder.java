@@ -0,0 +1,74 @@
+/**
+ * Metrics implementation that keeps totals in memory and can print them as a report
+ *
+ * Block operations are reported with their rates, e.g. "rsa.encrypt: 4900 blocks, 1048600 bytes in 9.21 s,
+ * 532 blocks/sec, 0.11 MB/sec". The rates use the time spent in the operation, not the wall clock time.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsRecorder implements Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> timerCounts = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> timerNanos = new ConcurrentHashMap<>();
+
+    @Override
+    public void count(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    @Override
+    public void time(String name, long nanos) {
+        timerCounts.computeIfAbsent(name, k -> new LongAdder()).increment();
+        timerNanos.computeIfAbsent(name, k -> new LongAdder()).add(nanos);
+    }
+
+    public long getCount(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    public long getTimerCount(String name) {
+        LongAdder count = timerCounts.get(name);
+        return count != null ? count.sum() : 0;
+    }
+
+    public long getTotalNanos(String name) {
+        LongAdder nanos = timerNanos.get(name);
+        return nanos != null ? nanos.sum() : 0;
+    }
+
+    public void reset() {
+        counters.clear();
+        timerCounts.clear();
+        timerNanos.clear();
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (String name : new TreeMap<>(counters).keySet()) {
+            if (name.endsWith(BLOCKS_SUFFIX) || name.endsWith(BYTES_SUFFIX))
+                continue; // reported with their operation below
+            report.append(String.format("%s: %d%n", name, getCount(name)));
+        }
+        for (String name : new TreeMap<>(timerCounts).keySet()) {
+            long count = getTimerCount(name);
+            long nanos = getTotalNanos(name);
+            String operation = name.substring(0, name.length() - TIME_SUFFIX.length());
+            if (name.endsWith(TIME_SUFFIX) && counters.containsKey(operation + BLOCKS_SUFFIX)) {
+                double seconds = nanos / 1e9;
+                long blocks = getCount(operation + BLOCKS_SUFFIX);
+                long bytes = getCount(operation + BYTES_SUFFIX);
+                report.append(String.format("%s: %d blocks, %d bytes in %.3f s, %.0f blocks/sec, %.2f MB/sec%n", operation,
+                        blocks, bytes, seconds, seconds > 0 ? blocks / seconds : 0.0, seconds > 0 ? bytes / 1e6 / seconds : 0.0));
+            }
+            else {
+                report.append(String.format("%s: %d, total %.3f ms, mean %.3f ms%n", name, count, nanos / 1e6, count > 0 ? nanos / 1e6 / count : 0.0));
+            }
+        }
+        return report.toString();
+    }
+}
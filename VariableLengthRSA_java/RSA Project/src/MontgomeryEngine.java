@@ -0,0 +1,302 @@
+/**
+ * Modular exponentiation using Montgomery multiplication and sliding window exponent recoding
+ *
+ * Numbers are stored as little-endian arrays of 32 bit limbs. All of the limb buffers for an exponentiation
+ * are allocated once up front and reused for every multiplication, so unlike square_and_multiply nothing is
+ * allocated inside the loop. An engine holds the precomputed values for one (odd) modulus and is immutable,
+ * so it can be shared between threads.
+ */
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+public class MontgomeryEngine {
+    private static final long LIMB_MASK = 0xFFFFFFFFL;
+
+    private final BigInteger modulus;
+    private final int len;         // number of limbs
+    private final int[] mod;       // modulus limbs
+    private final int nPrime;      // -n^-1 mod 2^32
+    private final int[] rSquared;  // R^2 mod n, where R = 2^(32 * len)
+    private final int[] one;       // 1, used to convert out of Montgomery form
+
+    public MontgomeryEngine(BigInteger modulus) {
+        if (modulus.signum() <= 0 || !modulus.testBit(0))
+            throw new IllegalArgumentException("Montgomery multiplication needs an odd positive modulus");
+        this.modulus = modulus;
+        len = (modulus.bitLength() + 31) / 32;
+        mod = toLimbs(modulus, len);
+        nPrime = -inverseMod32(mod[0]);
+        rSquared = toLimbs(BigInteger.ONE.shiftLeft(64 * len).mod(modulus), len);
+        one = new int[len];
+        one[0] = 1;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    public int getLimbCount() {
+        return len;
+    }
+
+    public int getNPrime() {
+        return nPrime;
+    }
+
+    public BigInteger getRSquared() {
+        return fromLimbs(rSquared);
+    }
+
+    // Convenience method, uses the Montgomery engine for odd moduli and BigInteger.modPow otherwise
+    public static BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger modulus) {
+        if (!modulus.testBit(0) || modulus.bitLength() <= 32 || exponent.signum() < 0)
+            return base.modPow(exponent, modulus);
+        return new MontgomeryEngine(modulus).modPow(base, exponent);
+    }
+
+    public BigInteger modPow(BigInteger base, BigInteger exponent) {
+        return modPow(base, recode(exponent));
+    }
+
+    public BigInteger modPow(BigInteger base, Exponent exponent) {
+        if (base.signum() < 0 || base.compareTo(modulus) >= 0)
+            base = base.mod(modulus);
+        int[] out = new int[len];
+        modPow(toLimbs(base, len), exponent, out, newWorkspace(exponent));
+        return fromLimbs(out);
+    }
+
+    // base^exponent mod n on limb arrays (getLimbCount() limbs each), nothing is allocated so a thread can reuse one
+    // workspace for every block. base only has to be below 2^(32 * len), out can be the same array as base
+    public void modPow(int[] base, Exponent exponent, int[] out, Workspace workspace) {
+        if (workspace.len != len || workspace.table.length < (1 << (exponent.window - 1)) * len)
+            throw new IllegalArgumentException("Workspace does not fit this modulus and exponent");
+        int[] t = workspace.t;
+        int[] b = workspace.b;
+        int[] acc = workspace.acc;
+        int[] table = workspace.table; // odd powers b, b^3, b^5, ...
+        int[] square = workspace.square;
+
+        // table[k] = b^(2k+1) in Montgomery form (b * R^2 * R^-1 is below n even when b isn't)
+        montMul(base, rSquared, t, table, 0);
+        System.arraycopy(table, 0, b, 0, len);
+        montMul(b, b, t, square, 0);
+        for (int k = 1; k < table.length / len; k++)
+            montMul(table, (k - 1) * len, square, 0, t, table, k * len);
+
+        // acc = 1 in Montgomery form (R mod n)
+        montMul(one, rSquared, t, acc, 0);
+        int[] squares = exponent.squares;
+        int[] digits = exponent.digits;
+        for (int i = 0; i < digits.length; i++) {
+            for (int s = 0; s < squares[i]; s++)
+                montMul(acc, acc, t, acc, 0);
+            if (digits[i] != 0)
+                montMul(acc, 0, table, (digits[i] >>> 1) * len, t, acc, 0);
+        }
+
+        montMul(acc, one, t, out, 0);
+    }
+
+    public Workspace newWorkspace(Exponent exponent) {
+        return new Workspace(len, exponent.window);
+    }
+
+    // scratch buffers for modPow on limb arrays, one per thread
+    public static final class Workspace {
+        private final int len;
+        private final int[] t;
+        private final int[] b;
+        private final int[] acc;
+        private final int[] table;
+        private final int[] square;
+
+        private Workspace(int len, int window) {
+            this.len = len;
+            t = new int[len + 1];
+            b = new int[len];
+            acc = new int[len];
+            table = new int[(1 << (window - 1)) * len];
+            square = new int[len];
+        }
+    }
+
+    // Montgomery product out = a * b * R^-1 mod n (CIOS method), t is scratch space of len + 1 limbs
+    private void montMul(int[] a, int[] b, int[] t, int[] out, int outOffset) {
+        montMul(a, 0, b, 0, t, out, outOffset);
+    }
+
+    private void montMul(int[] a, int aOffset, int[] b, int bOffset, int[] t, int[] out, int outOffset) {
+        Arrays.fill(t, 0);
+        long n0 = mod[0] & LIMB_MASK;
+        long a0 = a[aOffset] & LIMB_MASK;
+        for (int i = 0; i < len; i++) {
+            // t = (t + a * b[i] + m * n) / 2^32, with m chosen so the low limb is 0
+            long bi = b[bOffset + i] & LIMB_MASK;
+            long sum = (t[0] & LIMB_MASK) + a0 * bi;
+            long m = ((int) sum * nPrime) & LIMB_MASK;
+            long carry = sum >>> 32;
+            long reduced = (sum & LIMB_MASK) + m * n0;
+            long carryM = reduced >>> 32;
+            for (int j = 1; j < len; j++) {
+                sum = (t[j] & LIMB_MASK) + (a[aOffset + j] & LIMB_MASK) * bi + carry;
+                carry = sum >>> 32;
+                reduced = (sum & LIMB_MASK) + m * (mod[j] & LIMB_MASK) + carryM;
+                carryM = reduced >>> 32;
+                t[j - 1] = (int) reduced;
+            }
+            sum = (t[len] & LIMB_MASK) + carry + carryM;
+            t[len - 1] = (int) sum;
+            t[len] = (int) (sum >>> 32);
+        }
+
+        // result is t[0..len] < 2n, subtract n once if needed
+        if (t[len] != 0 || compare(t, mod, len) >= 0) {
+            long borrow = 0;
+            for (int j = 0; j < len; j++) {
+                long diff = (t[j] & LIMB_MASK) - (mod[j] & LIMB_MASK) - borrow;
+                out[outOffset + j] = (int) diff;
+                borrow = (diff >>> 63);
+            }
+        }
+        else {
+            System.arraycopy(t, 0, out, outOffset, len);
+        }
+    }
+
+    private static int compare(int[] a, int[] b, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (a[i] != b[i])
+                return Integer.compareUnsigned(a[i], b[i]);
+        }
+        return 0;
+    }
+
+    // inverse of an odd number mod 2^32 using Newton's method (each step doubles the number of correct bits)
+    private static int inverseMod32(int x) {
+        int inv = x;
+        for (int i = 0; i < 5; i++)
+            inv *= 2 - x * inv;
+        return inv;
+    }
+
+    static int[] toLimbs(BigInteger num, int len) {
+        int[] limbs = new int[len];
+        byte[] bytes = num.toByteArray();
+        for (int i = 0; i < bytes.length && i < len * 4; i++) {
+            int b = bytes[bytes.length - 1 - i] & 0xFF;
+            limbs[i / 4] |= b << (8 * (i % 4));
+        }
+        return limbs;
+    }
+
+    // big-endian bytes src[offset, offset + length) into little-endian limbs, the number must fit in dest
+    static void bytesToLimbs(byte[] src, int offset, int length, int[] dest) {
+        Arrays.fill(dest, 0);
+        for (int i = 0; i < length; i++) {
+            int b = src[offset + length - 1 - i] & 0xFF;
+            if (i / 4 < dest.length)
+                dest[i / 4] |= b << (8 * (i % 4));
+            else if (b != 0)
+                throw new IllegalArgumentException("Number does not fit in " + dest.length + " limbs");
+        }
+    }
+
+    // limbs into dest[offset, offset + width) as a big-endian number, left padded with zeros
+    static void limbsToBytes(int[] limbs, byte[] dest, int offset, int width) {
+        for (int i = width; i < limbs.length * 4; i++) {
+            if ((limbs[i / 4] >>> (8 * (i % 4)) & 0xFF) != 0)
+                throw new IllegalArgumentException("Number does not fit in " + width + " bytes");
+        }
+        for (int i = 0; i < width; i++)
+            dest[offset + width - 1 - i] = i / 4 < limbs.length ? (byte) (limbs[i / 4] >>> (8 * (i % 4))) : 0;
+    }
+
+    static BigInteger fromLimbs(int[] limbs) {
+        byte[] bytes = new byte[limbs.length * 4];
+        for (int i = 0; i < limbs.length; i++) {
+            int limb = limbs[limbs.length - 1 - i];
+            bytes[4 * i] = (byte) (limb >>> 24);
+            bytes[4 * i + 1] = (byte) (limb >>> 16);
+            bytes[4 * i + 2] = (byte) (limb >>> 8);
+            bytes[4 * i + 3] = (byte) limb;
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    /*** EXPONENT RECODING ***/
+
+    // window size based on the exponent length, same thresholds as BigInteger.modPow
+    public static int windowSize(int bitLength) {
+        int[] thresholds = {7, 25, 81, 241, 673, 1793};
+        int w = 1;
+        while (w <= thresholds.length && bitLength > thresholds[w - 1])
+            w++;
+        return w;
+    }
+
+    public static Exponent recode(BigInteger exponent) {
+        return new Exponent(exponent, windowSize(exponent.bitLength()));
+    }
+
+    // An exponent recoded into sliding windows, processed from the most significant end: for each step
+    // square the accumulator squares[i] times, then multiply by base^digits[i] if digits[i] is not 0 (digits are odd)
+    public static final class Exponent {
+        private final BigInteger value;
+        private final int window;
+        final int[] squares; // also read by BatchMontgomery
+        final int[] digits;
+
+        public Exponent(BigInteger value, int window) {
+            if (value.signum() < 0)
+                throw new IllegalArgumentException("Negative exponent");
+            if (window < 1 || window > 8)
+                throw new IllegalArgumentException("Window size must be between 1 and 8");
+            this.value = value;
+            this.window = window;
+
+            int[] sq = new int[value.bitLength() + 1];
+            int[] dg = new int[value.bitLength() + 1];
+            int count = 0;
+            int pendingSquares = 0;
+            int i = value.bitLength() - 1;
+            while (i >= 0) {
+                if (!value.testBit(i)) {
+                    pendingSquares++;
+                    i--;
+                    continue;
+                }
+                // longest window of at most `window` bits starting at bit i that ends in a 1
+                int low = Math.max(i - window + 1, 0);
+                while (!value.testBit(low))
+                    low++;
+                int digit = 0;
+                for (int k = i; k >= low; k--)
+                    digit = (digit << 1) | (value.testBit(k) ? 1 : 0);
+                sq[count] = pendingSquares + (i - low + 1);
+                dg[count] = digit;
+                count++;
+                pendingSquares = 0;
+                i = low - 1;
+            }
+            if (pendingSquares > 0) {
+                sq[count] = pendingSquares;
+                dg[count] = 0;
+                count++;
+            }
+            squares = Arrays.copyOf(sq, count);
+            digits = Arrays.copyOf(dg, count);
+        }
+
+        public BigInteger getValue() {
+            return value;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+    }
+
+    /*** END EXPONENT RECODING ***/
+}
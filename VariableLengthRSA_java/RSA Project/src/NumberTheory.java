@@ -0,0 +1,241 @@
+/**
+ * Iterative number theory routines used by key generation and the primality tests
+ *
+ * The recursive versions in VariableLengthRSA (jacobiRecursive, gcdRecursive, inverse_mod_n_euclid) create new
+ * BigIntegers for every mod/divide step. These versions copy their inputs into mutable little-endian arrays of
+ * 32 bit limbs once and then only use shifts, subtractions and comparisons on those buffers, so the loops do not
+ * allocate. They give the same results as the recursive versions and are used in their place.
+ */
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+public class NumberTheory {
+    private static final long LIMB_MASK = 0xFFFFFFFFL;
+
+    // Jacobi symbol (a/n) for odd positive n, 0 when gcd(a, n) != 1
+    public static int jacobi(BigInteger a, BigInteger n) {
+        if (n.signum() <= 0 || !n.testBit(0))
+            throw new IllegalArgumentException("Jacobi symbol needs an odd positive n");
+        int limbs = limbCount(n);
+        Nat x = new Nat(a.mod(n), limbs);
+        Nat y = new Nat(n, limbs);
+        int t = 1;
+
+        while (!x.isZero()) {
+            int z = x.lowestSetBit();
+            x.shiftRight(z);
+            int y8 = y.low() & 7;
+            if ((z & 1) == 1 && (y8 == 3 || y8 == 5))
+                t = -t;
+            // both odd now, use reciprocity to keep x >= y, then x - y is even
+            if (x.compareTo(y) < 0) {
+                Nat temp = x;
+                x = y;
+                y = temp;
+                if ((x.low() & 3) == 3 && (y.low() & 3) == 3)
+                    t = -t;
+            }
+            x.subtract(y);
+        }
+        return y.isOne() ? t : 0;
+    }
+
+    // Binary (Stein) gcd
+    public static BigInteger gcd(BigInteger a, BigInteger b) {
+        a = a.abs();
+        b = b.abs();
+        if (a.signum() == 0)
+            return b;
+        if (b.signum() == 0)
+            return a;
+        int limbs = Math.max(limbCount(a), limbCount(b));
+        Nat x = new Nat(a, limbs);
+        Nat y = new Nat(b, limbs);
+
+        int shift = Math.min(x.lowestSetBit(), y.lowestSetBit());
+        x.shiftRight(x.lowestSetBit());
+        while (!y.isZero()) {
+            y.shiftRight(y.lowestSetBit());
+            // both odd, subtract the smaller from the larger
+            if (x.compareTo(y) > 0) {
+                Nat temp = x;
+                x = y;
+                y = temp;
+            }
+            y.subtract(x);
+        }
+        return x.toBigInteger().shiftLeft(shift);
+    }
+
+    // num^-1 mod mod, throws ArithmeticException when gcd(num, mod) != 1
+    public static BigInteger inverse(BigInteger num, BigInteger mod) {
+        if (mod.signum() <= 0)
+            throw new ArithmeticException("Modulus must be positive");
+        num = num.mod(mod);
+        if (mod.equals(BigInteger.ONE))
+            return BigInteger.ZERO;
+        if (mod.testBit(0))
+            return inverseOddModulus(num, mod);
+        if (!num.testBit(0))
+            throw new ArithmeticException("Not invertible");
+        if (num.equals(BigInteger.ONE))
+            return BigInteger.ONE;
+
+        // mod is even (e.g. phi(n)) but num is odd: swap the roles using y = mod^-1 mod num, then
+        // x = (1 + mod * (num - y)) / num is the inverse since num * x = 1 + mod * (num - y) = 1 (mod mod)
+        BigInteger y = inverseOddModulus(mod.mod(num), num);
+        return BigInteger.ONE.add(mod.multiply(num.subtract(y))).divide(num);
+    }
+
+    // binary extended Euclid, the coefficients are kept in [0, mod) so they never need signs
+    private static BigInteger inverseOddModulus(BigInteger num, BigInteger mod) {
+        if (num.signum() == 0)
+            throw new ArithmeticException("Not invertible");
+        int limbs = limbCount(mod) + 1; // room for x + mod
+        Nat m = new Nat(mod, limbs);
+        Nat u = new Nat(num, limbs);
+        Nat v = new Nat(mod, limbs);
+        Nat x1 = new Nat(BigInteger.ONE, limbs);
+        Nat x2 = new Nat(BigInteger.ZERO, limbs);
+
+        while (!u.isOne() && !v.isOne()) {
+            if (u.isZero() || v.isZero())
+                throw new ArithmeticException("Not invertible");
+            halve(u, x1, m);
+            halve(v, x2, m);
+            if (u.compareTo(v) >= 0) {
+                u.subtract(v);
+                subtractMod(x1, x2, m);
+            }
+            else {
+                v.subtract(u);
+                subtractMod(x2, x1, m);
+            }
+        }
+        return (u.isOne() ? x1 : x2).toBigInteger();
+    }
+
+    // divides a by 2 until it is odd, keeping a = num * x (mod m) by halving x mod m as well
+    private static void halve(Nat a, Nat x, Nat m) {
+        while (!a.isZero() && (a.low() & 1) == 0) {
+            a.shiftRight(1);
+            if ((x.low() & 1) != 0)
+                x.add(m);
+            x.shiftRight(1);
+        }
+    }
+
+    // x = (x - y) mod m for x, y in [0, m)
+    private static void subtractMod(Nat x, Nat y, Nat m) {
+        if (x.compareTo(y) < 0)
+            x.add(m);
+        x.subtract(y);
+    }
+
+    private static int limbCount(BigInteger num) {
+        return Math.max(1, (num.bitLength() + 31) / 32);
+    }
+
+    // Non-negative number stored in a fixed size little-endian limb buffer, modified in place
+    private static final class Nat {
+        private final int[] mag;
+        private int len; // limbs in use, mag[len - 1] != 0 unless the number is 0
+
+        Nat(BigInteger num, int capacity) {
+            mag = MontgomeryEngine.toLimbs(num, capacity);
+            len = capacity;
+            normalize();
+        }
+
+        private void normalize() {
+            while (len > 0 && mag[len - 1] == 0)
+                len--;
+        }
+
+        boolean isZero() {
+            return len == 0;
+        }
+
+        boolean isOne() {
+            return len == 1 && mag[0] == 1;
+        }
+
+        int low() {
+            return len == 0 ? 0 : mag[0];
+        }
+
+        int lowestSetBit() {
+            for (int i = 0; i < len; i++) {
+                if (mag[i] != 0)
+                    return i * 32 + Integer.numberOfTrailingZeros(mag[i]);
+            }
+            return -1;
+        }
+
+        int compareTo(Nat other) {
+            if (len != other.len)
+                return len < other.len ? -1 : 1;
+            for (int i = len - 1; i >= 0; i--) {
+                if (mag[i] != other.mag[i])
+                    return Integer.compareUnsigned(mag[i], other.mag[i]);
+            }
+            return 0;
+        }
+
+        // this -= other, this must be >= other
+        void subtract(Nat other) {
+            long borrow = 0;
+            for (int i = 0; i < len; i++) {
+                long diff = (mag[i] & LIMB_MASK) - (i < other.len ? other.mag[i] & LIMB_MASK : 0) - borrow;
+                mag[i] = (int) diff;
+                borrow = diff >>> 63;
+                if (borrow == 0 && i >= other.len)
+                    break;
+            }
+            normalize();
+        }
+
+        // this += other, the buffer must have room for the result
+        void add(Nat other) {
+            int n = Math.max(len, other.len);
+            long carry = 0;
+            for (int i = 0; i < n || carry != 0; i++) {
+                long sum = (mag[i] & LIMB_MASK) + (i < other.len ? other.mag[i] & LIMB_MASK : 0) + carry;
+                mag[i] = (int) sum;
+                carry = sum >>> 32;
+                if (i >= len)
+                    len = i + 1;
+            }
+            normalize();
+        }
+
+        void shiftRight(int bits) {
+            if (bits <= 0 || len == 0)
+                return;
+            int limbShift = bits >>> 5;
+            int bitShift = bits & 31;
+            if (limbShift >= len) {
+                Arrays.fill(mag, 0, len, 0);
+                len = 0;
+                return;
+            }
+            int newLen = len - limbShift;
+            if (bitShift == 0) {
+                System.arraycopy(mag, limbShift, mag, 0, newLen);
+            }
+            else {
+                for (int i = 0; i < newLen - 1; i++)
+                    mag[i] = (mag[i + limbShift] >>> bitShift) | (mag[i + limbShift + 1] << (32 - bitShift));
+                mag[newLen - 1] = mag[len - 1] >>> bitShift;
+            }
+            Arrays.fill(mag, newLen, len, 0);
+            len = newLen;
+            normalize();
+        }
+
+        BigInteger toBigInteger() {
+            return MontgomeryEngine.fromLimbs(Arrays.copyOf(mag, Math.max(len, 1)));
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * Stock of pregenerated primes kept in a file, so key generation doesn't have to wait for the prime search
+ *
+ * The store is a text file with one "<bits> <prime>" line per prime. Every read and write takes an exclusive lock
+ * on the file, so several processes can share one store, and a prime is removed from the file before take returns
+ * it so it is never handed out twice. Use one PrimePool per store in a process, the threads of a process share it.
+ *
+ * Background threads (start) keep the stock for each bit length set with setTarget topped up. Key generation takes
+ * primes with take and falls back to generatePrime when the pool is empty (see VariableLengthRSA.generatePrimes).
+ *
+ * Can also be filled from the command line:
+ *   VariableLengthRSA pool [--store prime_pool.txt] [--bits 1024,683] [--stock 20] [--threads n] [--keep-running]
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PrimePool implements Closeable {
+    public static final String DEFAULT_STORE = "prime_pool.txt";
+    public static final int DEFAULT_STOCK = 20;
+
+    // how long idle refill threads wait before checking the store again (other processes may have taken primes)
+    private static final long IDLE_WAIT_MILLIS = 1000;
+
+    private final String storeFile;
+    private final Map<Integer, Integer> targets = new TreeMap<>();
+    private final Map<Integer, Integer> stock = new TreeMap<>();   // as of the last time the store was read
+    private final Map<Integer, Integer> pending = new TreeMap<>(); // primes being generated right now
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean running;
+
+    public PrimePool(String storeFile) {
+        this.storeFile = storeFile;
+    }
+
+    // keep at least count primes of this length in stock
+    public synchronized void setTarget(int bits, int count) {
+        if (bits < 16 || count < 0)
+            throw new IllegalArgumentException("Invalid pool target: " + count + " primes of " + bits + " bits");
+        targets.put(bits, count);
+        notifyAll();
+    }
+
+    // the prime lengths needed by a key profile, e.g. 1024 for 2048 bit keys, 683 and 682 for 2048-3p
+    public void setTarget(KeyProfile profile, int count) {
+        for (int i = 0; i < profile.getPrimeCount(); i++)
+            setTarget(profile.getPrimeBits(i), count);
+    }
+
+    /*** STORE ***/
+
+    // removes a prime of the given length from the store, null if there are none
+    public synchronized BigInteger take(int bits) {
+        BigInteger prime;
+        try {
+            prime = update(primes -> {
+                List<BigInteger> list = primes.get(bits);
+                return list == null || list.isEmpty() ? null : list.remove(list.size() - 1);
+            });
+        }
+        catch (IOException ex) {
+            System.out.println("Error reading prime pool: " + ex.getMessage());
+            prime = null;
+        }
+        (prime != null ? hits : misses).incrementAndGet();
+        notifyAll(); // wake up the refill threads
+        return prime;
+    }
+
+    public synchronized boolean add(int bits, BigInteger prime) {
+        return putBack(bits, List.of(prime));
+    }
+
+    // returns unused primes to the store
+    public synchronized boolean putBack(int bits, Collection<BigInteger> unused) {
+        try {
+            update(primes -> primes.computeIfAbsent(bits, b -> new ArrayList<>()).addAll(unused));
+        }
+        catch (IOException ex) {
+            System.out.println("Error writing prime pool: " + ex.getMessage());
+            return false;
+        }
+        notifyAll();
+        return true;
+    }
+
+    public synchronized int stock(int bits) {
+        try {
+            update(primes -> null);
+        }
+        catch (IOException ex) {
+            System.out.println("Error reading prime pool: " + ex.getMessage());
+        }
+        return stock.getOrDefault(bits, 0);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private interface StoreUpdate<T> {
+        T apply(Map<Integer, List<BigInteger>> primes);
+    }
+
+    // reads the whole store under an exclusive file lock, applies the change and writes it back if anything changed.
+    // Callers hold the monitor as well because a JVM can't lock the same file twice
+    private <T> T update(StoreUpdate<T> change) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(storeFile), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.lock(); // released when the channel is closed
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0);
+            String before = new String(buffer.array(), StandardCharsets.US_ASCII);
+
+            Map<Integer, List<BigInteger>> primes = new LinkedHashMap<>();
+            int invalid = 0;
+            for (String line : before.split("\n")) {
+                if (line.isBlank())
+                    continue;
+                BigInteger prime = parseLine(line);
+                if (prime != null)
+                    primes.computeIfAbsent(prime.bitLength(), b -> new ArrayList<>()).add(prime);
+                else
+                    invalid++;
+            }
+            // dropped from the store when it is written back below
+            if (invalid > 0)
+                System.out.println("Error: skipped " + invalid + " invalid line(s) in prime pool " + storeFile);
+            T result = change.apply(primes);
+
+            StringBuilder after = new StringBuilder();
+            stock.clear();
+            for (Map.Entry<Integer, List<BigInteger>> entry : primes.entrySet()) {
+                stock.put(entry.getKey(), entry.getValue().size());
+                for (BigInteger prime : entry.getValue())
+                    after.append(entry.getKey()).append(' ').append(prime).append('\n');
+            }
+            if (!after.toString().equals(before)) {
+                channel.truncate(0);
+                ByteBuffer out = ByteBuffer.wrap(after.toString().getBytes(StandardCharsets.US_ASCII));
+                while (out.hasRemaining())
+                    channel.write(out, out.position());
+                channel.force(true); // a taken prime must not come back after a crash
+            }
+            return result;
+        }
+    }
+
+    // the prime on a "<bits> <prime>" line, null if the line is damaged
+    private static BigInteger parseLine(String line) {
+        String[] parts = line.trim().split(" ");
+        if (parts.length != 2)
+            return null;
+        try {
+            BigInteger prime = new BigInteger(parts[1]);
+            return prime.signum() > 0 && prime.bitLength() == Integer.parseInt(parts[0]) ? prime : null;
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /*** END STORE ***/
+
+    /*** BACKGROUND REFILL ***/
+
+    public synchronized void start(int threads) {
+        if (running)
+            return;
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::refill, "prime-pool-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY); // don't slow down the work that needs the primes
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    // blocks until every target is met (or the pool is closed)
+    public synchronized void awaitFull() throws InterruptedException {
+        while (running && !isFull())
+            wait(IDLE_WAIT_MILLIS);
+    }
+
+    private boolean isFull() {
+        for (Map.Entry<Integer, Integer> target : targets.entrySet()) {
+            if (stock.getOrDefault(target.getKey(), 0) < target.getValue())
+                return false;
+        }
+        return true;
+    }
+
+    private void refill() {
+        SecureRandom rand = new SecureRandom();
+        while (running) {
+            int bits;
+            synchronized (this) {
+                bits = neediest();
+                if (bits == 0) {
+                    try {
+                        wait(IDLE_WAIT_MILLIS);
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                    stock(0); // re-read the store in case another process took primes
+                    continue;
+                }
+                pending.merge(bits, 1, Integer::sum);
+            }
+            try {
+                add(bits, VariableLengthRSA.generatePrime(bits, rand, VariableLengthRSA.millerRabinRounds(bits)));
+            }
+            finally {
+                synchronized (this) {
+                    pending.merge(bits, -1, Integer::sum);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    // the bit length furthest below its target (counting primes being generated), 0 if every target is met
+    private int neediest() {
+        int bits = 0;
+        int shortest = 0;
+        for (Map.Entry<Integer, Integer> target : targets.entrySet()) {
+            int missing = target.getValue() - stock.getOrDefault(target.getKey(), 0) - pending.getOrDefault(target.getKey(), 0);
+            if (missing > shortest) {
+                shortest = missing;
+                bits = target.getKey();
+            }
+        }
+        return bits;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        for (Thread worker : workers)
+            worker.interrupt();
+        workers.clear();
+    }
+
+    /*** END BACKGROUND REFILL ***/
+
+    public static void main(String[] args) {
+        String store = DEFAULT_STORE;
+        List<Integer> bitLengths = new ArrayList<>(List.of(KeyProfile.RSA_2048.getPrimeBits()));
+        int count = DEFAULT_STOCK;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        boolean keepRunning = false;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--keep-running")) {
+                    keepRunning = true;
+                    continue;
+                }
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException(args[i] + " needs a value");
+                String value = args[i + 1];
+                switch (args[i++]) {
+                    case "--store":
+                        store = value;
+                        break;
+                    case "--bits":
+                        bitLengths.clear();
+                        for (String bits : value.split(","))
+                            bitLengths.add(Integer.parseInt(bits.trim()));
+                        break;
+                    case "--stock":
+                        count = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+                }
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.out.println("Usage: VariableLengthRSA pool [--store <file>] [--bits <n,n,...>] [--stock <n>] [--threads <n>] [--keep-running]");
+            System.exit(2);
+            return;
+        }
+
+        try (PrimePool pool = new PrimePool(store)) {
+            for (int bits : bitLengths)
+                pool.setTarget(bits, count);
+            long start = System.nanoTime();
+            pool.start(threads);
+            pool.awaitFull();
+            for (int bits : bitLengths)
+                System.out.println(bits + " bit primes in " + store + ": " + pool.stock(bits));
+            System.out.printf("Pool filled in %.1f s%n", (System.nanoTime() - start) / 1e9);
+            if (keepRunning) {
+                System.out.println("Keeping the pool topped up, stop with Ctrl+C");
+                synchronized (pool) {
+                    while (true)
+                        pool.wait();
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
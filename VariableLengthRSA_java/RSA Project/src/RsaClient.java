@@ -0,0 +1,184 @@
+/**
+ * Client for RsaServer, and a load test that can be run with: VariableLengthRSA client [options]
+ *
+ * Options:
+ *   --port <n> / --socket <path>   where the server is listening (default 127.0.0.1:5873)
+ *   --requests <n>                 number of messages to send (default 1000)
+ *   --concurrency <n>              connections sending at the same time (default 16)
+ *   --size <bytes>                 size of each message (default 100)
+ *
+ * Every message is encrypted and then decrypted by the server (so it needs both keys) and checked against the
+ * original. The round trip latency percentiles and throughput are printed, followed by the server's own stats.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RsaClient implements Closeable {
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public RsaClient(SocketChannel channel) {
+        this.channel = channel;
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    public static RsaClient connect(int port) throws IOException {
+        return new RsaClient(SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+    }
+
+    public static RsaClient connectUnix(String path) throws IOException {
+        return new RsaClient(RsaServer.connectUnix(path));
+    }
+
+    // returns the ciphertext blocks (see BlockCodec for the layout)
+    public byte[] encrypt(byte[] message) throws IOException {
+        return request(RsaServer.OP_ENCRYPT, message);
+    }
+
+    // returns exactly the message that was encrypted
+    public byte[] decrypt(byte[] ciphertext) throws IOException {
+        return request(RsaServer.OP_DECRYPT, ciphertext);
+    }
+
+    public String stats() throws IOException {
+        return new String(request(RsaServer.OP_STATS, new byte[0]), StandardCharsets.UTF_8);
+    }
+
+    private byte[] request(byte op, byte[] payload) throws IOException {
+        out.writeByte(op);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+
+        byte status = in.readByte();
+        byte[] response = new byte[in.readInt()];
+        in.readFully(response);
+        if (status != RsaServer.STATUS_OK)
+            throw new IOException("Server error: " + new String(response, StandardCharsets.UTF_8));
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static void main(String[] args) {
+        int port = RsaServer.DEFAULT_PORT;
+        String socketPath = null;
+        int requests = 1000;
+        int concurrency = 16;
+        int size = 100;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException(args[i] + " needs a value");
+                String value = args[i + 1];
+                switch (args[i++]) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--socket":
+                        socketPath = value;
+                        break;
+                    case "--requests":
+                        requests = Integer.parseInt(value);
+                        break;
+                    case "--concurrency":
+                        concurrency = Integer.parseInt(value);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+                }
+            }
+            if (requests < 1 || concurrency < 1 || size < 1)
+                throw new IllegalArgumentException("--requests, --concurrency and --size must be at least 1");
+        }
+        catch (IllegalArgumentException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.out.println("Usage: VariableLengthRSA client [--port <n> | --socket <path>] [--requests <n>] [--concurrency <n>] [--size <bytes>]");
+            System.exit(2);
+            return;
+        }
+        System.exit(loadTest(port, socketPath, requests, concurrency, size) ? 0 : 1);
+    }
+
+    // returns false if any message did not come back the same
+    static boolean loadTest(int port, String socketPath, int requests, int concurrency, int size) {
+        LatencyRecorder latency = new LatencyRecorder();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> tasks = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            int seed = t;
+            tasks.add(workers.submit(() -> {
+                Random rand = new Random(seed);
+                try (RsaClient client = socketPath != null ? connectUnix(socketPath) : connect(port)) {
+                    while (next.getAndIncrement() < requests) {
+                        byte[] message = new byte[size];
+                        rand.nextBytes(message);
+                        long sent = System.nanoTime();
+                        byte[] decrypted = client.decrypt(client.encrypt(message));
+                        latency.record(System.nanoTime() - sent);
+                        if (!Arrays.equals(message, decrypted))
+                            failed.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        workers.shutdown();
+        try {
+            for (Future<?> task : tasks)
+                task.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException ex) {
+            System.out.println("Error: " + ex.getCause().getMessage());
+            workers.shutdownNow();
+            return false;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Round trips (encrypt + decrypt): " + latency.summary());
+        System.out.printf("%.1f round trips/sec, %.2f MB/sec, %d mismatched%n", requests / seconds,
+                (double) requests * size / 1e6 / seconds, failed.get());
+        try (RsaClient client = socketPath != null ? connectUnix(socketPath) : connect(port)) {
+            System.out.println("Server: " + client.stats());
+        }
+        catch (IOException ex) {
+            System.out.println("Error getting server stats: " + ex.getMessage());
+        }
+        return failed.get() == 0;
+    }
+}
@@ -0,0 +1,461 @@
+/**
+ * Everything derived from one RSA key that the block operations need, computed once and reused for every call
+ *
+ * Holds the modulus length/block size, the key fingerprint, the Montgomery constants for n (and for p and q when
+ * the CRT values are available) and the window recoded exponents. Instances are immutable so one context can be
+ * shared by any number of threads.
+ *
+ * Multi-prime keys (PKCS #1 v2.2 style) keep p, q, dP, dQ and qInv for the first two primes, and for every other
+ * prime r_i its exponent d_i = d mod (r_i - 1) and coefficient t_i = (r_1 * ... * r_(i-1))^-1 mod r_i.
+ *
+ * encryptBlocks/decryptBlocks run getBatchLanes() blocks at a time through BatchMontgomery when the Vector API is
+ * available, and fall back to one block at a time on MontgomeryEngine otherwise.
+ */
+
+import java.math.BigInteger;
+
+public class RsaKeyContext {
+    private final BigInteger n;
+    private final int modulusLength;
+    private final int blockSize;
+    private final byte[] fingerprint;
+    private final MontgomeryEngine nEngine;
+    private final BigInteger e;
+    private final MontgomeryEngine.Exponent eRecoded;
+    private final BigInteger d;
+    private final MontgomeryEngine.Exponent dRecoded;
+
+    // CRT values, null when only n and d are known
+    private final BigInteger p;
+    private final BigInteger q;
+    private final BigInteger qInv;
+    private final MontgomeryEngine pEngine;
+    private final MontgomeryEngine qEngine;
+    private final MontgomeryEngine.Exponent dPRecoded;
+    private final MontgomeryEngine.Exponent dQRecoded;
+
+    // primes after p and q for multi-prime keys, empty otherwise
+    private final BigInteger[] otherPrimes;
+    private final BigInteger[] otherCoefficients;
+    private final BigInteger[] otherProducts; // r_1 * ... * r_(i-1)
+    private final MontgomeryEngine[] otherEngines;
+    private final MontgomeryEngine.Exponent[] otherExponents;
+
+    // limb buffers for the byte array block operations, one set per thread
+    private final ThreadLocal<Scratch> scratch;
+
+    // lockstep engines for n and for every prime (p, q, then the others), null without the Vector API
+    private final BatchMontgomery nBatch;
+    private final BatchMontgomery[] primeBatches;
+    private final MontgomeryEngine.Exponent[] primeExponents;
+    private final ThreadLocal<BatchScratch> batchScratch;
+
+    private RsaKeyContext(BigInteger n, BigInteger e, BigInteger d, BigInteger p, BigInteger q, BigInteger dP, BigInteger dQ, BigInteger qInv,
+                          BigInteger[] otherPrimes, BigInteger[] otherExponents, BigInteger[] otherCoefficients) {
+        if (n.signum() <= 0 || !n.testBit(0))
+            throw new IllegalArgumentException("n must be odd and positive");
+        this.n = n;
+        modulusLength = KeyProfile.modulusLength(n);
+        blockSize = KeyProfile.blockSizeFor(n);
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Modulus too small: " + n.bitLength() + " bits");
+        fingerprint = CiphertextContainer.fingerprint(n);
+        nEngine = new MontgomeryEngine(n);
+        this.e = e;
+        eRecoded = e != null ? MontgomeryEngine.recode(e) : null;
+        this.d = d;
+        this.p = p;
+        this.q = q;
+        this.qInv = qInv;
+        if (p != null) {
+            pEngine = new MontgomeryEngine(p);
+            qEngine = new MontgomeryEngine(q);
+            dPRecoded = MontgomeryEngine.recode(dP);
+            dQRecoded = MontgomeryEngine.recode(dQ);
+            dRecoded = null; // never needed when CRT is available
+        }
+        else {
+            pEngine = null;
+            qEngine = null;
+            dPRecoded = null;
+            dQRecoded = null;
+            dRecoded = d != null ? MontgomeryEngine.recode(d) : null;
+        }
+
+        int others = otherPrimes.length;
+        if (others > 0 && (p == null || otherExponents.length != others || otherCoefficients.length != others))
+            throw new IllegalArgumentException("Every extra prime needs an exponent and a coefficient");
+        this.otherPrimes = otherPrimes.clone();
+        this.otherCoefficients = otherCoefficients.clone();
+        this.otherProducts = new BigInteger[others];
+        this.otherEngines = new MontgomeryEngine[others];
+        this.otherExponents = new MontgomeryEngine.Exponent[others];
+        BigInteger product = p != null ? p.multiply(q) : null;
+        for (int i = 0; i < others; i++) {
+            otherProducts[i] = product;
+            otherEngines[i] = new MontgomeryEngine(otherPrimes[i]);
+            this.otherExponents[i] = MontgomeryEngine.recode(otherExponents[i]);
+            product = product.multiply(otherPrimes[i]);
+        }
+        if (product != null && !product.equals(n))
+            throw new IllegalArgumentException("The primes do not multiply to n");
+
+        MontgomeryEngine.Exponent widest = eRecoded == null || (dRecoded != null && dRecoded.getWindow() > eRecoded.getWindow()) ? dRecoded : eRecoded;
+        scratch = widest != null ? ThreadLocal.withInitial(() -> new Scratch(nEngine, widest)) : null;
+
+        if (BatchMontgomery.isVectorAvailable()) {
+            nBatch = BatchMontgomery.forEngine(nEngine);
+            if (pEngine != null) {
+                primeBatches = new BatchMontgomery[2 + others];
+                primeExponents = new MontgomeryEngine.Exponent[2 + others];
+                primeBatches[0] = BatchMontgomery.forEngine(pEngine);
+                primeBatches[1] = BatchMontgomery.forEngine(qEngine);
+                primeExponents[0] = dPRecoded;
+                primeExponents[1] = dQRecoded;
+                for (int i = 0; i < others; i++) {
+                    primeBatches[2 + i] = BatchMontgomery.forEngine(otherEngines[i]);
+                    primeExponents[2 + i] = this.otherExponents[i];
+                }
+            }
+            else {
+                primeBatches = null;
+                primeExponents = null;
+            }
+            batchScratch = ThreadLocal.withInitial(() -> new BatchScratch(nBatch, widest, primeBatches, primeExponents));
+        }
+        else {
+            nBatch = null;
+            primeBatches = null;
+            primeExponents = null;
+            batchScratch = null;
+        }
+    }
+
+    private static final class Scratch {
+        final int[] limbs;
+        final MontgomeryEngine.Workspace workspace;
+
+        Scratch(MontgomeryEngine engine, MontgomeryEngine.Exponent exponent) {
+            limbs = new int[engine.getLimbCount()];
+            workspace = engine.newWorkspace(exponent);
+        }
+    }
+
+    private static final class BatchScratch {
+        final long[] limbs;
+        final BatchMontgomery.Workspace workspace;
+        final long[][] primeLimbs;
+        final BatchMontgomery.Workspace[] primeWorkspaces;
+
+        BatchScratch(BatchMontgomery nBatch, MontgomeryEngine.Exponent widest, BatchMontgomery[] primeBatches, MontgomeryEngine.Exponent[] primeExponents) {
+            limbs = new long[nBatch.getLimbCount() * nBatch.getLanes()];
+            workspace = widest != null ? nBatch.newWorkspace(widest) : null;
+            int primes = primeBatches != null ? primeBatches.length : 0;
+            primeLimbs = new long[primes][];
+            primeWorkspaces = new BatchMontgomery.Workspace[primes];
+            for (int k = 0; k < primes; k++) {
+                primeLimbs[k] = new long[primeBatches[k].getLimbCount() * primeBatches[k].getLanes()];
+                primeWorkspaces[k] = primeBatches[k].newWorkspace(primeExponents[k]);
+            }
+        }
+    }
+
+    private static final BigInteger[] NO_PRIMES = new BigInteger[0];
+
+    public static RsaKeyContext publicKey(BigInteger n, BigInteger e) {
+        return new RsaKeyContext(n, e, null, null, null, null, null, null, NO_PRIMES, NO_PRIMES, NO_PRIMES);
+    }
+
+    public static RsaKeyContext privateKey(BigInteger n, BigInteger d) {
+        return new RsaKeyContext(n, null, d, null, null, null, null, null, NO_PRIMES, NO_PRIMES, NO_PRIMES);
+    }
+
+    // e can be null if only decryption is needed
+    public static RsaKeyContext crtPrivateKey(BigInteger n, BigInteger e, BigInteger d, BigInteger p, BigInteger q, BigInteger dP, BigInteger dQ, BigInteger qInv) {
+        return new RsaKeyContext(n, e, d, p, q, dP, dQ, qInv, NO_PRIMES, NO_PRIMES, NO_PRIMES);
+    }
+
+    // otherPrimes[i], otherExponents[i] and otherCoefficients[i] are r, d and t for the (i + 3)th prime
+    public static RsaKeyContext multiPrimePrivateKey(BigInteger n, BigInteger e, BigInteger d, BigInteger p, BigInteger q, BigInteger dP, BigInteger dQ, BigInteger qInv,
+                                                     BigInteger[] otherPrimes, BigInteger[] otherExponents, BigInteger[] otherCoefficients) {
+        return new RsaKeyContext(n, e, d, p, q, dP, dQ, qInv, otherPrimes, otherExponents, otherCoefficients);
+    }
+
+    // public key file: n and e on the first two lines
+    public static RsaKeyContext fromPublicKeyFile(String fileName) {
+        long start = Instrumentation.start();
+        String[] lines = readKeyFile(fileName);
+        RsaKeyContext key = publicKey(new BigInteger(lines[0].trim()), new BigInteger(lines[1].trim()));
+        Instrumentation.keyParsed(fileName, key.getN().bitLength(), key.getPrimeCount(), start);
+        return key;
+    }
+
+    // private key file: n and d on the first two lines, optionally followed by p, q, dP, dQ and qInv,
+    // then r, d and t (three lines) for every extra prime of a multi-prime key
+    public static RsaKeyContext fromPrivateKeyFile(String fileName) {
+        long start = Instrumentation.start();
+        RsaKeyContext key = parsePrivateKey(fileName, readKeyFile(fileName));
+        Instrumentation.keyParsed(fileName, key.getN().bitLength(), key.getPrimeCount(), start);
+        return key;
+    }
+
+    private static RsaKeyContext parsePrivateKey(String fileName, String[] lines) {
+        try {
+            return fromPrivateKeyNumbers(parseNumbers(lines));
+        }
+        catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(ex.getMessage() + ": " + fileName, ex);
+        }
+    }
+
+    // the numbers of a private key file in the same order (n, d, then optionally the CRT and extra prime values)
+    public static RsaKeyContext fromPrivateKeyNumbers(BigInteger[] numbers) {
+        if (numbers.length < 2)
+            throw new IllegalArgumentException("A private key needs at least n and d");
+        BigInteger n = numbers[0];
+        BigInteger d = numbers[1];
+        if (numbers.length >= 7) {
+            if ((numbers.length - 7) % 3 != 0)
+                throw new IllegalArgumentException("Every extra prime needs three lines (r, d, t)");
+            int others = (numbers.length - 7) / 3;
+            BigInteger[] otherPrimes = new BigInteger[others];
+            BigInteger[] otherExponents = new BigInteger[others];
+            BigInteger[] otherCoefficients = new BigInteger[others];
+            for (int i = 0; i < others; i++) {
+                otherPrimes[i] = numbers[7 + 3 * i];
+                otherExponents[i] = numbers[8 + 3 * i];
+                otherCoefficients[i] = numbers[9 + 3 * i];
+            }
+            return multiPrimePrivateKey(n, null, d, numbers[2], numbers[3], numbers[4], numbers[5], numbers[6], otherPrimes, otherExponents, otherCoefficients);
+        }
+        return privateKey(n, d);
+    }
+
+    // the lines of a key file as numbers, throws IllegalArgumentException (NumberFormatException) for anything else
+    static BigInteger[] parseNumbers(String[] lines) {
+        BigInteger[] numbers = new BigInteger[lines.length];
+        for (int i = 0; i < lines.length; i++)
+            numbers[i] = new BigInteger(lines[i].trim());
+        return numbers;
+    }
+
+    static String[] readKeyFile(String fileName) {
+        String contents = VariableLengthRSA.readFromFile(fileName);
+        if (contents == null)
+            throw new IllegalArgumentException("Could not read key file: " + fileName);
+        String[] lines = contents.trim().split("\n");
+        if (lines.length < 2)
+            throw new IllegalArgumentException("Key file must have at least two lines: " + fileName);
+        return lines;
+    }
+
+    /*** BLOCK OPERATIONS ***/
+
+    // m^e mod n for a single block
+    public BigInteger encryptBlock(BigInteger m) {
+        if (eRecoded == null)
+            throw new IllegalStateException("Key has no public exponent");
+        long start = Instrumentation.start();
+        BigInteger c = nEngine.modPow(m, eRecoded);
+        Instrumentation.modExp("encrypt", n.bitLength(), start);
+        if (VariableLengthRSA.VERIFY_MODEXP && c.compareTo(m.modPow(e, n)) != 0)
+            System.out.println("Error: modular exponentiation is incorrect");
+        return c;
+    }
+
+    // c^d mod n for a single block, using CRT when p and q are known
+    public BigInteger decryptBlock(BigInteger c) {
+        long start = Instrumentation.start();
+        BigInteger m;
+        if (pEngine != null) {
+            BigInteger[] residues = new BigInteger[2 + otherPrimes.length];
+            residues[0] = pEngine.modPow(c.mod(p), dPRecoded);
+            residues[1] = qEngine.modPow(c.mod(q), dQRecoded);
+            for (int i = 0; i < otherPrimes.length; i++)
+                residues[2 + i] = otherEngines[i].modPow(c.mod(otherPrimes[i]), otherExponents[i]);
+            m = crtCombine(residues);
+        }
+        else if (dRecoded != null) {
+            m = nEngine.modPow(c, dRecoded);
+        }
+        else {
+            throw new IllegalStateException("Key has no private exponent");
+        }
+        Instrumentation.modExp("decrypt", n.bitLength(), start);
+        if (VariableLengthRSA.VERIFY_MODEXP && d != null && m.compareTo(c.modPow(d, n)) != 0)
+            System.out.println("Error: modular exponentiation is incorrect");
+        return m;
+    }
+
+    // Same as encryptBlock(BigInteger) for the big-endian number src[srcOffset, srcOffset + srcLength), written to
+    // dest[destOffset, destOffset + modulusLength) left padded with zeros. Works on limb arrays so nothing is allocated
+    public void encryptBlock(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+        if (eRecoded == null)
+            throw new IllegalStateException("Key has no public exponent");
+        long start = Instrumentation.start();
+        Scratch s = scratch.get();
+        MontgomeryEngine.bytesToLimbs(src, srcOffset, srcLength, s.limbs);
+        nEngine.modPow(s.limbs, eRecoded, s.limbs, s.workspace);
+        MontgomeryEngine.limbsToBytes(s.limbs, dest, destOffset, modulusLength);
+        Instrumentation.modExp("encrypt", n.bitLength(), start);
+        if (VariableLengthRSA.VERIFY_MODEXP && new BigInteger(1, dest, destOffset, modulusLength).compareTo(new BigInteger(1, src, srcOffset, srcLength).modPow(e, n)) != 0)
+            System.out.println("Error: modular exponentiation is incorrect");
+    }
+
+    // Same as decryptBlock(BigInteger) for the modulusLength byte block at src[srcOffset], written to
+    // dest[destOffset, destOffset + destLength) left padded with zeros. Throws IllegalArgumentException if the
+    // result doesn't fit (the block was encrypted with a different key). Keys without CRT values work on limb arrays,
+    // CRT keys convert the block to a BigInteger once
+    public void decryptBlock(byte[] src, int srcOffset, byte[] dest, int destOffset, int destLength) {
+        if (pEngine != null || dRecoded == null) {
+            BlockCodec.writeFixedWidth(decryptBlock(new BigInteger(1, src, srcOffset, modulusLength)), dest, destOffset, destLength);
+            return;
+        }
+        long start = Instrumentation.start();
+        Scratch s = scratch.get();
+        MontgomeryEngine.bytesToLimbs(src, srcOffset, modulusLength, s.limbs);
+        nEngine.modPow(s.limbs, dRecoded, s.limbs, s.workspace);
+        MontgomeryEngine.limbsToBytes(s.limbs, dest, destOffset, destLength);
+        Instrumentation.modExp("decrypt", n.bitLength(), start);
+        if (VariableLengthRSA.VERIFY_MODEXP && new BigInteger(1, dest, destOffset, destLength).compareTo(new BigInteger(1, src, srcOffset, modulusLength).modPow(d, n)) != 0)
+            System.out.println("Error: modular exponentiation is incorrect");
+    }
+
+    // m from m mod p, m mod q and m mod every other prime
+    private BigInteger crtCombine(BigInteger[] residues) {
+        BigInteger h = qInv.multiply(residues[0].subtract(residues[1])).mod(p);
+        BigInteger m = residues[1].add(h.multiply(q));
+        // Garner's method for the extra primes, m is correct mod r_1 * ... * r_(i-1) before each step
+        for (int i = 0; i < otherPrimes.length; i++) {
+            h = residues[2 + i].subtract(m).multiply(otherCoefficients[i]).mod(otherPrimes[i]);
+            m = m.add(otherProducts[i].multiply(h));
+        }
+        return m;
+    }
+
+    // how many blocks encryptBlocks/decryptBlocks process together, 1 when they go one block at a time
+    public int getBatchLanes() {
+        return nBatch != null ? nBatch.getLanes() : 1;
+    }
+
+    // encryptBlock for count blocks: block i is src[srcOffset + i * srcLength, + srcLength) and is written to
+    // dest[destOffset + i * modulusLength, + modulusLength). Groups of getBatchLanes() blocks are encrypted together
+    public void encryptBlocks(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int count) {
+        if (eRecoded == null)
+            throw new IllegalStateException("Key has no public exponent");
+        int lanes = getBatchLanes();
+        for (int first = 0; first < count; first += lanes) {
+            int group = Math.min(lanes, count - first);
+            if (group == 1) { // a single block is quicker on its own
+                encryptBlock(src, srcOffset + first * srcLength, srcLength, dest, destOffset + first * modulusLength);
+                continue;
+            }
+            long start = Instrumentation.start();
+            BatchScratch s = batchScratch.get();
+            for (int l = 0; l < lanes; l++)
+                nBatch.load(src, srcOffset + (first + l) * srcLength, l < group ? srcLength : 0, s.limbs, l);
+            nBatch.modPow(s.limbs, eRecoded, s.limbs, s.workspace);
+            for (int l = 0; l < group; l++)
+                nBatch.store(s.limbs, l, dest, destOffset + (first + l) * modulusLength, modulusLength);
+            Instrumentation.modExp("encrypt", n.bitLength(), group, start);
+            if (VariableLengthRSA.VERIFY_MODEXP) {
+                for (int l = 0; l < group; l++) {
+                    if (new BigInteger(1, dest, destOffset + (first + l) * modulusLength, modulusLength).compareTo(new BigInteger(1, src, srcOffset + (first + l) * srcLength, srcLength).modPow(e, n)) != 0)
+                        System.out.println("Error: modular exponentiation is incorrect");
+                }
+            }
+        }
+    }
+
+    // decryptBlock for count blocks: block i is src[srcOffset + i * modulusLength, + modulusLength) and is written
+    // to dest[destOffset + i * destLength, + destLength). Groups of getBatchLanes() blocks are decrypted together,
+    // for CRT keys every prime is done for the whole group before the results are combined
+    public void decryptBlocks(byte[] src, int srcOffset, byte[] dest, int destOffset, int destLength, int count) {
+        if (pEngine == null && dRecoded == null)
+            throw new IllegalStateException("Key has no private exponent");
+        int lanes = getBatchLanes();
+        for (int first = 0; first < count; first += lanes) {
+            int group = Math.min(lanes, count - first);
+            if (group == 1) {
+                decryptBlock(src, srcOffset + first * modulusLength, dest, destOffset + first * destLength, destLength);
+                continue;
+            }
+            long start = Instrumentation.start();
+            BatchScratch s = batchScratch.get();
+            if (pEngine != null) {
+                BigInteger[] c = new BigInteger[group];
+                for (int l = 0; l < group; l++)
+                    c[l] = new BigInteger(1, src, srcOffset + (first + l) * modulusLength, modulusLength);
+                BigInteger[][] residues = new BigInteger[group][primeBatches.length];
+                for (int k = 0; k < primeBatches.length; k++) {
+                    BatchMontgomery batch = primeBatches[k];
+                    BigInteger prime = batch.getEngine().getModulus();
+                    for (int l = 0; l < lanes; l++)
+                        batch.load(l < group ? c[l].mod(prime) : BigInteger.ZERO, s.primeLimbs[k], l);
+                    batch.modPow(s.primeLimbs[k], primeExponents[k], s.primeLimbs[k], s.primeWorkspaces[k]);
+                    for (int l = 0; l < group; l++)
+                        residues[l][k] = batch.toBigInteger(s.primeLimbs[k], l);
+                }
+                for (int l = 0; l < group; l++)
+                    BlockCodec.writeFixedWidth(crtCombine(residues[l]), dest, destOffset + (first + l) * destLength, destLength);
+            }
+            else {
+                for (int l = 0; l < lanes; l++)
+                    nBatch.load(src, srcOffset + (first + l) * modulusLength, l < group ? modulusLength : 0, s.limbs, l);
+                nBatch.modPow(s.limbs, dRecoded, s.limbs, s.workspace);
+                for (int l = 0; l < group; l++)
+                    nBatch.store(s.limbs, l, dest, destOffset + (first + l) * destLength, destLength);
+            }
+            Instrumentation.modExp("decrypt", n.bitLength(), group, start);
+            if (VariableLengthRSA.VERIFY_MODEXP && d != null) {
+                for (int l = 0; l < group; l++) {
+                    if (new BigInteger(1, dest, destOffset + (first + l) * destLength, destLength).compareTo(new BigInteger(1, src, srcOffset + (first + l) * modulusLength, modulusLength).modPow(d, n)) != 0)
+                        System.out.println("Error: modular exponentiation is incorrect");
+                }
+            }
+        }
+    }
+
+    /*** END BLOCK OPERATIONS ***/
+
+    public BigInteger getN() {
+        return n;
+    }
+
+    public BigInteger getE() {
+        return e;
+    }
+
+    public int getModulusLength() {
+        return modulusLength;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public byte[] getFingerprint() {
+        return fingerprint.clone();
+    }
+
+    public boolean hasPublicExponent() {
+        return e != null;
+    }
+
+    public boolean hasPrivateExponent() {
+        return d != null;
+    }
+
+    public boolean usesCrt() {
+        return pEngine != null;
+    }
+
+    // 2 for a normal CRT key, 0 when the primes aren't known
+    public int getPrimeCount() {
+        return pEngine != null ? 2 + otherPrimes.length : 0;
+    }
+
+    public MontgomeryEngine getEngine() {
+        return nEngine;
+    }
+}
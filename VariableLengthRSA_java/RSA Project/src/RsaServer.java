@@ -0,0 +1,497 @@
+/**
+ * Long running encryption service, started with: VariableLengthRSA serve [options]
+ *
+ * Options:
+ *   --public-key <file>    key used for encrypt requests
+ *   --private-key <file>   key used for decrypt requests (at least one of the two is needed)
+ *   --port <n>             listen on 127.0.0.1:<n> (default 5873)
+ *   --socket <path>        listen on a Unix domain socket instead (Java 16 or newer)
+ *   --batch-window <us>    how long to wait for more requests before running a batch (default 500)
+ *   --report <seconds>     how often to print the latency percentiles, 0 to turn off (default 10)
+ *
+ * The keys are loaded once. Every connection is handled on its own virtual thread when the JVM has them (Java 21+),
+ * otherwise on a normal cached thread. Requests are not encrypted on the connection threads: they are queued and a
+ * batcher thread collects the blocks of every request waiting within the batch window and runs them together on a
+ * pool with one thread per core, so many small requests still use every core. The blocks of each request go through
+ * RsaKeyContext.encryptBlocks/decryptBlocks a group at a time, so the Vector API lanes are used (see BatchMontgomery).
+ *
+ * Protocol (big-endian), any number of requests per connection:
+ *   request:  op (1 byte: 'E' encrypt, 'D' decrypt, 'S' stats), length (4 bytes), payload
+ *   response: status (1 byte: 0 ok, 1 error), length (4 bytes), payload
+ * Encrypt takes a message and returns the ciphertext blocks, each modulus length bytes, with the message length
+ * framed inside (see BlockCodec). Decrypt takes those blocks and returns exactly the message that was encrypted
+ * (a compressed message that would decompress to more than MAX_PAYLOAD bytes is an error).
+ * Stats returns the latency summary as text. Errors return a message as the payload.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RsaServer {
+    public static final int DEFAULT_PORT = 5873;
+    public static final byte OP_ENCRYPT = 'E';
+    public static final byte OP_DECRYPT = 'D';
+    public static final byte OP_STATS = 'S';
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final int MAX_PAYLOAD = 64 << 20;
+
+    // a batch is run as soon as it has this many blocks, even if the batch window hasn't passed
+    public static final int MAX_BATCH_BLOCKS = 1024;
+
+    private final RsaKeyContext publicKey;
+    private final RsaKeyContext privateKey;
+    private final BlockCodec encryptCodec;
+    private final BlockCodec decryptCodec;
+    private final long batchWindowNanos;
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService compute = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private final ExecutorService connections = connectionExecutor();
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedRequests = new AtomicLong();
+    private volatile boolean running = true;
+
+    public RsaServer(RsaKeyContext publicKey, RsaKeyContext privateKey, long batchWindowMicros) {
+        if (publicKey == null && privateKey == null)
+            throw new IllegalArgumentException("The server needs a public or a private key");
+        this.publicKey = publicKey;
+        this.privateKey = privateKey;
+        encryptCodec = publicKey != null ? new BlockCodec(publicKey) : null;
+        decryptCodec = privateKey != null ? new BlockCodec(privateKey) : null;
+        this.batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(batchWindowMicros);
+    }
+
+    // one encrypt/decrypt request waiting to be batched
+    private static final class Job {
+        final BlockCodec codec;
+        final boolean encrypt;
+        final byte[] input;
+        final byte[] output;
+        final int numBlocks;
+        final int lanes;        // blocks run together, see BlockCodec.getBatchBlocks
+        final int numGroups;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        // the first block that failed (garbage ciphertext), only this request fails, not the rest of the batch
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        Job(BlockCodec codec, RsaKeyContext key, boolean encrypt, byte[] input) {
+            this.codec = codec;
+            this.encrypt = encrypt;
+            this.input = input;
+            if (encrypt) {
+                numBlocks = codec.ciphertextBlocks(input.length);
+                output = new byte[numBlocks * key.getModulusLength()];
+            }
+            else {
+                numBlocks = codec.ciphertextBlocks(input);
+                output = new byte[numBlocks * key.getBlockSize()];
+            }
+            lanes = codec.getBatchBlocks();
+            numGroups = (numBlocks + lanes - 1) / lanes;
+        }
+
+        // Runs blocks [g * lanes, g * lanes + lanes) together, written straight into output so nothing is allocated
+        // per block. Once a group has failed the rest of the request is skipped
+        void runGroup(int g) {
+            if (failure.get() != null)
+                return;
+            int first = g * lanes;
+            int count = Math.min(lanes, numBlocks - first);
+            try {
+                if (encrypt)
+                    codec.encryptBlocks(input, first, count, output, false);
+                else
+                    codec.decryptBlocks(input, first, count, output);
+            }
+            catch (RuntimeException ex) {
+                failure.compareAndSet(null, ex);
+            }
+        }
+
+        // completes the result with the output, or with the first failure
+        void finish() {
+            if (failure.get() != null) {
+                result.completeExceptionally(failure.get());
+                return;
+            }
+            try {
+                result.complete(encrypt ? output : codec.unframeMessage(output, MAX_PAYLOAD));
+            }
+            catch (IllegalArgumentException ex) {
+                result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        RsaKeyContext publicKey = null;
+        RsaKeyContext privateKey = null;
+        int port = DEFAULT_PORT;
+        String socketPath = null;
+        long batchWindowMicros = 500;
+        int reportSeconds = 10;
+        ServerSocketChannel channel;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                String value = i + 1 < args.length ? args[i + 1] : null;
+                if (value == null)
+                    throw new IllegalArgumentException(args[i] + " needs a value");
+                switch (args[i++]) {
+                    case "--public-key":
+                        publicKey = RsaKeyContext.fromPublicKeyFile(value);
+                        break;
+                    case "--private-key":
+                        privateKey = RsaKeyContext.fromPrivateKeyFile(value);
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--socket":
+                        socketPath = value;
+                        break;
+                    case "--batch-window":
+                        batchWindowMicros = Long.parseLong(value);
+                        break;
+                    case "--report":
+                        reportSeconds = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+                }
+            }
+            if (publicKey == null && privateKey == null)
+                throw new IllegalArgumentException("No key given (--public-key or --private-key)");
+            channel = socketPath != null ? bindUnix(socketPath) : bindLoopback(port);
+        }
+        catch (IllegalArgumentException | IOException | UnsupportedOperationException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.out.println("Usage: VariableLengthRSA serve [--public-key <file>] [--private-key <file>] [--port <n> | --socket <path>] [--batch-window <us>] [--report <seconds>]");
+            System.exit(2);
+            return;
+        }
+
+        RsaServer server = new RsaServer(publicKey, privateKey, batchWindowMicros);
+        String listenPath = socketPath;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(channel);
+            if (listenPath != null)
+                deleteQuietly(Paths.get(listenPath));
+            System.out.println("Final latency: " + server.stats());
+        }));
+        System.out.println("Listening on " + (socketPath != null ? socketPath : "127.0.0.1:" + port)
+                + (publicKey != null ? ", encrypt" : "") + (privateKey != null ? ", decrypt" : "")
+                + (isVirtualThreadExecutor(server.connections) ? ", virtual threads" : ""));
+        server.serve(channel, reportSeconds);
+    }
+
+    // accepts connections until the channel is closed
+    public void serve(ServerSocketChannel channel, int reportSeconds) {
+        Thread batcher = new Thread(this::runBatches, "rsa-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+        if (reportSeconds > 0) {
+            Thread reporter = new Thread(() -> report(reportSeconds), "rsa-latency-report");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+
+        while (running) {
+            try {
+                SocketChannel client = channel.accept();
+                connections.execute(() -> handle(client));
+            }
+            catch (ClosedChannelException ex) {
+                break;
+            }
+            catch (IOException ex) {
+                System.out.println("Error accepting connection: " + ex.getMessage());
+            }
+        }
+    }
+
+    public void stop(ServerSocketChannel channel) {
+        running = false;
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            // shutting down anyway
+        }
+        connections.shutdownNow();
+        compute.shutdownNow();
+    }
+
+    public String stats() {
+        long numBatches = batches.get();
+        return latency.summary() + String.format(", %.1f requests per batch", numBatches == 0 ? 0.0 : (double) batchedRequests.get() / numBatches);
+    }
+
+    private void report(int seconds) {
+        long lastCount = 0;
+        while (running) {
+            try {
+                Thread.sleep(seconds * 1000L);
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            long count = latency.getCount();
+            if (count != lastCount)
+                System.out.println("Latency: " + stats());
+            lastCount = count;
+        }
+    }
+
+    /*** CONNECTIONS ***/
+
+    private void handle(SocketChannel client) {
+        try (SocketChannel channel = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                }
+                catch (EOFException ex) {
+                    return; // client closed the connection
+                }
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    writeResponse(out, STATUS_ERROR, ("Payload too large: " + length).getBytes(StandardCharsets.UTF_8));
+                    return; // can't skip the payload safely
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                long start = System.nanoTime();
+                byte[] response;
+                try {
+                    response = process(op, payload);
+                }
+                catch (IllegalArgumentException | IllegalStateException ex) {
+                    writeResponse(out, STATUS_ERROR, String.valueOf(ex.getMessage()).getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+                if (op != OP_STATS)
+                    latency.record(System.nanoTime() - start);
+                writeResponse(out, STATUS_OK, response);
+            }
+        }
+        catch (IOException ex) {
+            // connection dropped, nothing to answer
+        }
+    }
+
+    private byte[] process(byte op, byte[] payload) {
+        if (op == OP_STATS)
+            return stats().getBytes(StandardCharsets.UTF_8);
+        if (op != OP_ENCRYPT && op != OP_DECRYPT)
+            throw new IllegalArgumentException("Unknown operation: " + (char) op);
+
+        boolean encrypt = op == OP_ENCRYPT;
+        RsaKeyContext key = encrypt ? publicKey : privateKey;
+        if (key == null)
+            throw new IllegalStateException("The server has no " + (encrypt ? "public" : "private") + " key");
+
+        Job job = new Job(encrypt ? encryptCodec : decryptCodec, key, encrypt, payload);
+        queue.add(job);
+        try {
+            return job.result.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Error processing request: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    private static void writeResponse(DataOutputStream out, byte status, byte[] payload) throws IOException {
+        out.writeByte(status);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    /*** END CONNECTIONS ***/
+
+    /*** BATCHING ***/
+
+    // takes the first waiting request, then keeps collecting until the batch window passes or the batch is full
+    private void runBatches() {
+        List<Job> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Job first = queue.take();
+                batch.add(first);
+                int blocks = first.numBlocks;
+                long deadline = System.nanoTime() + batchWindowNanos;
+                while (blocks < MAX_BATCH_BLOCKS) {
+                    Job next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                    blocks += next.numBlocks;
+                }
+                runBatch(batch, blocks);
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // every group of blocks (see Job.runGroup) of every request in the batch is one unit of work for processBlocks,
+    // each request owns its own output array so no locking is needed. A block that fails only fails its own
+    // request, the catch is for the pool itself failing (shut down)
+    private void runBatch(List<Job> batch, int totalBlocks) {
+        Job[] jobs = batch.toArray(new Job[0]);
+        int[] firstGroup = new int[jobs.length];
+        for (int j = 1; j < jobs.length; j++)
+            firstGroup[j] = firstGroup[j - 1] + jobs[j - 1].numGroups;
+        int totalGroups = firstGroup[jobs.length - 1] + jobs[jobs.length - 1].numGroups;
+
+        batches.incrementAndGet();
+        batchedRequests.addAndGet(jobs.length);
+        long start = Instrumentation.start();
+        try {
+            VariableLengthRSA.processBlocks(totalGroups, compute, g -> {
+                int j = Arrays.binarySearch(firstGroup, g);
+                if (j < 0)
+                    j = -j - 2;
+                jobs[j].runGroup(g - firstGroup[j]);
+            });
+        }
+        catch (RuntimeException ex) {
+            for (Job job : jobs)
+                job.result.completeExceptionally(ex);
+            return;
+        }
+        long bytes = 0;
+        for (Job job : jobs)
+            bytes += job.input.length;
+        Instrumentation.blocksProcessed("serverBatch", totalBlocks, bytes, start);
+        for (Job job : jobs)
+            job.finish();
+    }
+
+    /*** END BATCHING ***/
+
+    /*** SOCKETS ***/
+
+    static ServerSocketChannel bindLoopback(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return channel;
+    }
+
+    // Unix domain sockets were added in Java 16, the project targets Java 11 so they are looked up by reflection
+    static ServerSocketChannel bindUnix(String path) throws IOException {
+        deleteQuietly(Paths.get(path)); // left over from a server that didn't shut down cleanly
+        try {
+            ServerSocketChannel channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unixFamily());
+            channel.bind(unixAddress(path));
+            return channel;
+        }
+        catch (ReflectiveOperationException ex) {
+            throw unixNotSupported(ex);
+        }
+    }
+
+    static SocketChannel connectUnix(String path) throws IOException {
+        try {
+            SocketChannel channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unixFamily());
+            channel.connect(unixAddress(path));
+            return channel;
+        }
+        catch (ReflectiveOperationException ex) {
+            throw unixNotSupported(ex);
+        }
+    }
+
+    private static ProtocolFamily unixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        }
+        catch (IllegalArgumentException ex) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or newer");
+        }
+    }
+
+    private static SocketAddress unixAddress(String path) throws ReflectiveOperationException {
+        return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+    }
+
+    // rethrows what open() threw, or reports that the JVM has no Unix domain sockets
+    private static RuntimeException unixNotSupported(ReflectiveOperationException ex) throws IOException {
+        if (ex.getCause() instanceof IOException)
+            throw (IOException) ex.getCause();
+        if (ex.getCause() instanceof RuntimeException)
+            return (RuntimeException) ex.getCause();
+        return new UnsupportedOperationException("Unix domain sockets need Java 16 or newer");
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException ex) {
+            // bind will report the problem
+        }
+    }
+
+    // virtual threads (Java 21) are found by reflection, older JVMs get a cached thread pool
+    static ExecutorService connectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "rsa-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static boolean isVirtualThreadExecutor(ExecutorService executor) {
+        return executor.getClass().getName().contains("ThreadPerTaskExecutor");
+    }
+
+    /*** END SOCKETS ***/
+}
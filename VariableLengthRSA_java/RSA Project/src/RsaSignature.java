@@ -0,0 +1,312 @@
+/**
+ * Hash-then-sign RSA signatures (RSASSA-PKCS1-v1_5 with SHA-256), using the same key files as encryption
+ *
+ * The message is hashed and the hash is encoded as 0x00 0x01 FF..FF 0x00 DigestInfo(SHA-256, hash), modulus
+ * length bytes long, so every signature is one private key operation whatever the message size. Signing goes
+ * through RsaKeyContext.decryptBlock, which uses CRT when the private key file has p and q. Signatures are modulus
+ * length bytes and are the same as java.security.Signature "SHA256withRSA" gives for the key. When the key also has
+ * e every signature is checked before it is returned (a CRT result broken by a hardware fault gives away the primes).
+ *
+ * Verifying is one public key operation, cheap with a small public exponent (the 2048/3072/4096 key profiles use
+ * 65537, 2048-random has a random e as big as n which makes verifying as slow as signing). verifyAll checks large
+ * batches of (message, signature) pairs across an executor, in groups of RsaKeyContext.getBatchLanes() signatures,
+ * and reports the throughput.
+ *
+ * Command line:
+ *   VariableLengthRSA sign --key private_key.txt files...                (writes <file>.sig)
+ *   VariableLengthRSA verify --key public_key.txt [--threads n] files... (checks each file against <file>.sig)
+ * Files ending in .sig are skipped, so a glob can cover a directory of files and their signatures.
+ * The files are handled getBatchLanes() * threads at a time, so memory use doesn't grow with the number of files.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RsaSignature {
+    public static final String SIGNATURE_EXTENSION = ".sig";
+
+    // DER encoding of the SHA-256 AlgorithmIdentifier and the OCTET STRING header, followed by the 32 byte hash
+    private static final byte[] SHA256_DIGEST_INFO = {
+            0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20};
+    private static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex); // every JVM has it
+        }
+    });
+
+    private RsaSignature() {
+    }
+
+    // throws IllegalStateException if the key has no private exponent
+    public static byte[] sign(byte[] message, RsaKeyContext privateKey) {
+        int k = privateKey.getModulusLength();
+        byte[] signature = new byte[k];
+        long start = Instrumentation.start();
+        byte[] encoded = encode(message, k);
+        privateKey.decryptBlock(encoded, 0, signature, 0, k);
+        checkSignatures(encoded, signature, 1, privateKey);
+        Instrumentation.blocksProcessed("sign", 1, message.length, start);
+        return signature;
+    }
+
+    // signs every message, in groups of getBatchLanes() across the executor (null for this thread)
+    public static byte[][] signAll(byte[][] messages, RsaKeyContext privateKey, ExecutorService executor) {
+        int k = privateKey.getModulusLength();
+        int lanes = privateKey.getBatchLanes();
+        byte[][] signatures = new byte[messages.length][];
+        LongAdder bytes = new LongAdder();
+        long start = Instrumentation.start();
+        VariableLengthRSA.processBlocks((messages.length + lanes - 1) / lanes, executor, g -> {
+            int first = g * lanes;
+            int count = Math.min(lanes, messages.length - first);
+            byte[] encoded = new byte[count * k];
+            byte[] signed = new byte[count * k];
+            for (int l = 0; l < count; l++) {
+                System.arraycopy(encode(messages[first + l], k), 0, encoded, l * k, k);
+                bytes.add(messages[first + l].length);
+            }
+            privateKey.decryptBlocks(encoded, 0, signed, 0, k, count);
+            checkSignatures(encoded, signed, count, privateKey);
+            for (int l = 0; l < count; l++)
+                signatures[first + l] = Arrays.copyOfRange(signed, l * k, (l + 1) * k);
+        });
+        Instrumentation.blocksProcessed("sign", messages.length, bytes.sum(), start);
+        return signatures;
+    }
+
+    // throws IllegalStateException if the key has no public exponent
+    public static boolean verify(byte[] message, byte[] signature, RsaKeyContext publicKey) {
+        return verifyAll(new byte[][] {message}, new byte[][] {signature}, publicKey, null).isValid(0);
+    }
+
+    // Checks signatures[i] against messages[i] for every i, in groups of getBatchLanes() across the executor (null
+    // for this thread). A signature of the wrong length or not below n is invalid
+    public static BulkVerification verifyAll(byte[][] messages, byte[][] signatures, RsaKeyContext publicKey, ExecutorService executor) {
+        if (messages.length != signatures.length)
+            throw new IllegalArgumentException(messages.length + " messages but " + signatures.length + " signatures");
+        int k = publicKey.getModulusLength();
+        int lanes = publicKey.getBatchLanes();
+        byte[] modulus = new byte[k];
+        BlockCodec.writeFixedWidth(publicKey.getN(), modulus, 0, k);
+        boolean[] valid = new boolean[messages.length];
+        LongAdder bytes = new LongAdder();
+        long start = Instrumentation.start();
+        VariableLengthRSA.processBlocks((messages.length + lanes - 1) / lanes, executor, g -> {
+            int first = g * lanes;
+            int count = Math.min(lanes, messages.length - first);
+            byte[] sigs = new byte[count * k];
+            byte[] recovered = new byte[count * k];
+            for (int l = 0; l < count; l++) {
+                byte[] signature = signatures[first + l];
+                // anything else is invalid, leave zeros (0^e = 0 never matches an encoding)
+                if (signature != null && signature.length == k && Arrays.compareUnsigned(signature, modulus) < 0)
+                    System.arraycopy(signature, 0, sigs, l * k, k);
+                bytes.add(messages[first + l].length);
+            }
+            publicKey.encryptBlocks(sigs, 0, k, recovered, 0, count);
+            for (int l = 0; l < count; l++) {
+                byte[] expected = encode(messages[first + l], k);
+                valid[first + l] = MessageDigest.isEqual(expected, Arrays.copyOfRange(recovered, l * k, (l + 1) * k));
+            }
+        });
+        long nanos = System.nanoTime() - start;
+        Instrumentation.blocksProcessed("verify", messages.length, bytes.sum(), start);
+        return new BulkVerification(valid, bytes.sum(), nanos);
+    }
+
+    // throws IllegalStateException if a signature doesn't give back its encoding, does nothing if e isn't known
+    private static void checkSignatures(byte[] encoded, byte[] signatures, int count, RsaKeyContext privateKey) {
+        if (!privateKey.hasPublicExponent())
+            return;
+        byte[] recovered = new byte[signatures.length];
+        privateKey.encryptBlocks(signatures, 0, privateKey.getModulusLength(), recovered, 0, count);
+        if (!MessageDigest.isEqual(recovered, encoded))
+            throw new IllegalStateException("Signature check failed, not returning a faulty signature");
+    }
+
+    // EMSA-PKCS1-v1_5 encoding of the SHA-256 hash of message, k bytes
+    static byte[] encode(byte[] message, int k) {
+        int tLength = SHA256_DIGEST_INFO.length + HASH_LENGTH;
+        if (k < tLength + 11)
+            throw new IllegalArgumentException("Modulus too small to sign with SHA-256: " + k + " bytes");
+        MessageDigest digest = SHA256.get();
+        byte[] hash = digest.digest(message);
+        byte[] encoded = new byte[k];
+        encoded[1] = 0x01;
+        Arrays.fill(encoded, 2, k - tLength - 1, (byte) 0xFF);
+        System.arraycopy(SHA256_DIGEST_INFO, 0, encoded, k - tLength, SHA256_DIGEST_INFO.length);
+        System.arraycopy(hash, 0, encoded, k - HASH_LENGTH, HASH_LENGTH);
+        return encoded;
+    }
+
+    // Result of verifyAll: which signatures are valid and how fast they were checked
+    public static final class BulkVerification {
+        private final boolean[] valid;
+        private final int invalidCount;
+        private final long bytes;
+        private final long nanos;
+
+        BulkVerification(boolean[] valid, long bytes, long nanos) {
+            this.valid = valid;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            int invalid = 0;
+            for (boolean v : valid) {
+                if (!v)
+                    invalid++;
+            }
+            invalidCount = invalid;
+        }
+
+        public boolean isValid(int i) {
+            return valid[i];
+        }
+
+        public boolean allValid() {
+            return invalidCount == 0;
+        }
+
+        public int getCount() {
+            return valid.length;
+        }
+
+        public int getInvalidCount() {
+            return invalidCount;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getSignaturesPerSecond() {
+            return nanos > 0 ? valid.length / (nanos / 1e9) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return summary(valid.length, invalidCount, bytes, nanos);
+        }
+
+        static String summary(int count, int invalid, long bytes, long nanos) {
+            double seconds = nanos / 1e9;
+            return String.format("Verified %d signatures (%d invalid), %.2f MB in %.3f s: %.0f signatures/sec, %.2f MB/sec",
+                    count, invalid, bytes / 1e6, seconds, seconds > 0 ? count / seconds : 0.0, seconds > 0 ? bytes / 1e6 / seconds : 0.0);
+        }
+    }
+
+    public static void main(String[] args) {
+        boolean sign = args[0].equals("sign");
+        String keyFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Set<Path> inputs = new LinkedHashSet<>();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--key":
+                        if (++i >= args.length)
+                            throw new IllegalArgumentException("--key needs a value");
+                        keyFile = args[i];
+                        break;
+                    case "--threads":
+                        if (++i >= args.length)
+                            throw new IllegalArgumentException("--threads needs a value");
+                        threads = Integer.parseInt(args[i]);
+                        if (threads < 1)
+                            throw new IllegalArgumentException("--threads must be at least 1");
+                        break;
+                    default:
+                        // a glob over signed files also matches the signatures, they aren't inputs themselves
+                        for (Path input : BatchCli.expand(args[i])) {
+                            if (!input.getFileName().toString().endsWith(SIGNATURE_EXTENSION))
+                                inputs.add(input);
+                        }
+                }
+            }
+            if (keyFile == null)
+                throw new IllegalArgumentException("No key file given (--key)");
+            if (inputs.isEmpty())
+                throw new IllegalArgumentException("No input files");
+        }
+        catch (IllegalArgumentException | IOException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.out.println("Usage: VariableLengthRSA sign --key <private key> [--threads <n>] <files or globs>...");
+            System.out.println("       VariableLengthRSA verify --key <public key> [--threads <n>] <files or globs>...");
+            System.exit(2);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Path> files = new ArrayList<>(inputs);
+            RsaKeyContext key = sign ? RsaKeyContext.fromPrivateKeyFile(keyFile) : RsaKeyContext.fromPublicKeyFile(keyFile);
+            // only one chunk of files is in memory at a time, and the signatures of a chunk are written as soon as it
+            // is done, so a failure part way through a large batch keeps the work done before it
+            int chunk = key.getBatchLanes() * threads;
+            long nanos = 0;
+            long bytes = 0;
+            int invalid = 0;
+            for (int first = 0; first < files.size(); first += chunk) {
+                List<Path> chunkFiles = files.subList(first, Math.min(first + chunk, files.size()));
+                byte[][] messages = new byte[chunkFiles.size()][];
+                for (int i = 0; i < messages.length; i++) {
+                    messages[i] = Files.readAllBytes(chunkFiles.get(i));
+                    bytes += messages[i].length;
+                }
+                if (sign) {
+                    long start = System.nanoTime();
+                    byte[][] signatures = signAll(messages, key, executor);
+                    nanos += System.nanoTime() - start;
+                    for (int i = 0; i < messages.length; i++)
+                        Files.write(Paths.get(chunkFiles.get(i) + SIGNATURE_EXTENSION), signatures[i]);
+                }
+                else {
+                    byte[][] signatures = new byte[messages.length][];
+                    for (int i = 0; i < messages.length; i++) {
+                        Path signatureFile = Paths.get(chunkFiles.get(i) + SIGNATURE_EXTENSION);
+                        signatures[i] = Files.isRegularFile(signatureFile) ? Files.readAllBytes(signatureFile) : null;
+                    }
+                    BulkVerification result = verifyAll(messages, signatures, key, executor);
+                    nanos += result.getNanos();
+                    invalid += result.getInvalidCount();
+                    for (int i = 0; i < messages.length; i++) {
+                        if (!result.isValid(i))
+                            System.out.println((signatures[i] == null ? "No signature: " : "Invalid signature: ") + chunkFiles.get(i));
+                    }
+                }
+            }
+            if (sign) {
+                double seconds = nanos / 1e9;
+                System.out.printf("Signed %d files in %.3f s: %.0f signatures/sec%n", files.size(), seconds, files.size() / seconds);
+            }
+            else {
+                System.out.println(BulkVerification.summary(files.size(), invalid, bytes, nanos));
+                if (invalid > 0)
+                    System.exit(1);
+            }
+        }
+        catch (IOException | IllegalArgumentException | IllegalStateException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
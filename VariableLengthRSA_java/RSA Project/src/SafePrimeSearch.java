@@ -0,0 +1,248 @@
+/**
+ * Parallel search for safe primes q = 2p + 1 (p is then a Sophie Germain prime), e.g. for Diffie-Hellman groups
+ *
+ * Searching for a prime p first and only then testing 2p + 1 throws almost all of the work away. Instead each
+ * worker picks a random window of odd candidates for p and sieves p and 2p + 1 together: a candidate is removed if
+ * either of them is divisible by one of the small primes. Survivors go through a single Fermat test (base 2) on p,
+ * then on 2p + 1, and only candidates that pass both get the full Miller-Rabin tests. Every core runs its own
+ * windows and all workers stop as soon as one of them finds a safe prime.
+ *
+ * Command line: VariableLengthRSA safeprime [--bits 2048] [--threads n]
+ */
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SafePrimeSearch {
+    // odd candidates for p per window, fewer survive the joint sieve so the window is bigger than SIEVE_WINDOW
+    public static final int WINDOW = 1 << 16;
+    private static final BigInteger TWO = BigInteger.TWO;
+
+    private final int bits;
+    private final int threads;
+    private final AtomicReference<BigInteger> found = new AtomicReference<>();
+    private volatile boolean cancelled;
+    private long startNanos;
+
+    // progress counters, updated by all workers
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong sieveSurvivors = new AtomicLong();
+    private final AtomicLong passedP = new AtomicLong();
+    private final AtomicLong passedQ = new AtomicLong();
+
+    // bits is the length of the safe prime q, p has one bit less
+    public SafePrimeSearch(int bits, int threads) {
+        if (bits < 64)
+            throw new IllegalArgumentException("Safe prime length must be at least 64 bits");
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one thread");
+        this.bits = bits;
+        this.threads = threads;
+    }
+
+    public SafePrimeSearch(int bits) {
+        this(bits, Runtime.getRuntime().availableProcessors());
+    }
+
+    // a safe prime of exactly bits bits, or null if the search was cancelled
+    public BigInteger findSafePrime() {
+        BigInteger p = findSophieGermainPrime();
+        return p != null ? p.shiftLeft(1).setBit(0) : null;
+    }
+
+    // p such that p and 2p + 1 are prime (p has bits - 1 bits), or null if the search was cancelled
+    public BigInteger findSophieGermainPrime() {
+        startNanos = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "safe-prime-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            tasks.add(workers.submit(this::search));
+        try {
+            for (Future<?> task : tasks)
+                task.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Error in safe prime search", ex.getCause());
+        }
+        finally {
+            workers.shutdownNow();
+        }
+        return found.get();
+    }
+
+    // stops the search, findSafePrime/findSophieGermainPrime return null unless a result was already found
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private boolean done() {
+        return cancelled || found.get() != null;
+    }
+
+    private void search() {
+        SecureRandom rand = new SecureRandom();
+        int pBits = bits - 1;
+        int pRounds = VariableLengthRSA.millerRabinRounds(pBits);
+        int qRounds = VariableLengthRSA.millerRabinRounds(bits);
+        while (!done()) {
+            BigInteger start = new BigInteger(pBits, rand).setBit(pBits - 1).setBit(0);
+            boolean[] composite = sieveWindow(start);
+            windows.incrementAndGet();
+            for (int k = 0; k < WINDOW && !done(); k++) {
+                if (composite[k])
+                    continue;
+                sieveSurvivors.incrementAndGet();
+                BigInteger p = start.add(BigInteger.valueOf(2L * k));
+                if (p.bitLength() != pBits)
+                    break;
+                // single Fermat test on p, then on q, before anything expensive
+                if (!TWO.modPow(p.subtract(BigInteger.ONE), p).equals(BigInteger.ONE))
+                    continue;
+                passedP.incrementAndGet();
+                BigInteger q = p.shiftLeft(1).setBit(0);
+                if (!TWO.modPow(q.subtract(BigInteger.ONE), q).equals(BigInteger.ONE))
+                    continue;
+                passedQ.incrementAndGet();
+                if (VariableLengthRSA.millerRabinPrimalityTest(p, pRounds, rand) && VariableLengthRSA.millerRabinPrimalityTest(q, qRounds, rand)) {
+                    found.compareAndSet(null, p);
+                    return;
+                }
+            }
+        }
+    }
+
+    // composite[k] is true when p = start + 2k or 2p + 1 is divisible by one of SMALL_PRIMES (start must be odd)
+    private static boolean[] sieveWindow(BigInteger start) {
+        boolean[] composite = new boolean[WINDOW];
+        for (int s : VariableLengthRSA.SMALL_PRIMES) {
+            int r = start.mod(BigInteger.valueOf(s)).intValue();
+            long half = (s + 1) / 2; // 2^-1 mod s
+            // p = 0 (mod s) when k = -r / 2, 2p + 1 = 0 (mod s) when p = (s - 1) / 2, so k = ((s - 1) / 2 - r) / 2
+            int kP = (int) ((s - r) % s * half % s);
+            int kQ = (int) (((s - 1) / 2 - r + s) % s * half % s);
+            for (int k = kP; k < WINDOW; k += s)
+                composite[k] = true;
+            for (int k = kQ; k < WINDOW; k += s)
+                composite[k] = true;
+        }
+        return composite;
+    }
+
+    public Progress getProgress() {
+        return new Progress(System.nanoTime() - startNanos, windows.get(), sieveSurvivors.get(), passedP.get(), passedQ.get());
+    }
+
+    // snapshot of how far the search has got
+    public static final class Progress {
+        private final long elapsedNanos;
+        private final long windows;
+        private final long sieveSurvivors;
+        private final long passedP;
+        private final long passedQ;
+
+        Progress(long elapsedNanos, long windows, long sieveSurvivors, long passedP, long passedQ) {
+            this.elapsedNanos = elapsedNanos;
+            this.windows = windows;
+            this.sieveSurvivors = sieveSurvivors;
+            this.passedP = passedP;
+            this.passedQ = passedQ;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        // number of candidates for p that were sieved (windows * WINDOW)
+        public long getSieved() {
+            return windows * WINDOW;
+        }
+
+        // candidates that got a Fermat test on p
+        public long getSieveSurvivors() {
+            return sieveSurvivors;
+        }
+
+        // candidates where p passed the Fermat test, so 2p + 1 was tested
+        public long getPassedP() {
+            return passedP;
+        }
+
+        // candidates where both passed the Fermat test and got the full Miller-Rabin tests
+        public long getPassedQ() {
+            return passedQ;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%.1f s: %d sieved, %d tested (%.0f/s), %d prime p, %d prime 2p + 1",
+                    seconds, getSieved(), sieveSurvivors, seconds > 0 ? sieveSurvivors / seconds : 0.0, passedP, passedQ);
+        }
+    }
+
+    public static void main(String[] args) {
+        int bits = 2048;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException(args[i] + " needs a value");
+                String value = args[i + 1];
+                switch (args[i++]) {
+                    case "--bits":
+                        bits = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+                }
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.out.println("Usage: VariableLengthRSA safeprime [--bits <n>] [--threads <n>]");
+            System.exit(2);
+            return;
+        }
+
+        SafePrimeSearch search = new SafePrimeSearch(bits, threads);
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(5);
+                    System.out.println("Searching... " + search.getProgress());
+                }
+            }
+            catch (InterruptedException ex) {
+                // search finished
+            }
+        });
+        reporter.setDaemon(true);
+        reporter.start();
+
+        BigInteger q = search.findSafePrime();
+        reporter.interrupt();
+        System.out.println("Found after " + search.getProgress());
+        System.out.println("Safe prime q (" + q.bitLength() + " bits): " + q);
+        System.out.println("Sophie Germain prime p = (q - 1) / 2: " + q.shiftRight(1));
+    }
+}
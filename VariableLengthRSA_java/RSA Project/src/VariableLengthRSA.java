@@ -9,22 +9,44 @@
  * You can either specify your own keys, or generate keys using the program
  */
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.OptionalInt;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 import java.lang.System;
 
 public class VariableLengthRSA {
+    // defaults for KeyProfile.DEFAULT, encrypt/decrypt take their block sizes from the key instead of these
     public static final int BIT_LENGTH = 2048; // must be multiple of 8
     public static final int PRIMALITY_TEST_ITERATIONS = 100;
     public static final int BLOCK_SIZE = 214; // 214 as required by the program specifications
     public static final int GEN_LENGTH = (BIT_LENGTH/2);
-    public static final boolean VERBOSE_OUTPUT = false;
+    public static final int SIEVE_WINDOW = 4096; // odd numbers sieved at a time when searching for a prime
+    public static final int[] SMALL_PRIMES = smallPrimes(1 << 14);
+    // checks every modular exponentiation against BigInteger.modPow, enable with -Drsa.verifyModExp=true
+    public static final boolean VERIFY_MODEXP = Boolean.getBoolean("rsa.verifyModExp");
 
     private Random rand;
     private BigInteger primeP;
@@ -33,54 +55,97 @@ public class VariableLengthRSA {
     private BigInteger phiN;
     private BigInteger e;
     private BigInteger eInv;
+    // CRT form of the private key (PKCS #1 style): dP = d mod (p-1), dQ = d mod (q-1), qInv = q^-1 mod p
+    private BigInteger dP;
+    private BigInteger dQ;
+    private BigInteger qInv;
+    // multi-prime keys: the primes after p and q, with d mod (r - 1) and (product of the earlier primes)^-1 mod r
+    private BigInteger[] otherPrimes;
+    private BigInteger[] otherExponents;
+    private BigInteger[] otherCoefficients;
+    private KeyProfile profile;
+    private RsaKeyContext keyContext;
 
     public VariableLengthRSA() {
         this("null", "null", "null");
     }
 
     public VariableLengthRSA(String primesFile, String publicKeyFile, String privateKeyFile) {
-        if (BLOCK_SIZE > BIT_LENGTH/8) {
-            System.out.println("Invalid block size for given bit length. Largest valid block size is: " + BIT_LENGTH/8);
-            System.exit(1);
-        }
+        this(primesFile, publicKeyFile, privateKeyFile, KeyProfile.DEFAULT);
+    }
+
+    public VariableLengthRSA(String primesFile, String publicKeyFile, String privateKeyFile, KeyProfile profile) {
+        this(primesFile, publicKeyFile, privateKeyFile, profile, null);
+    }
+
+    // new primes come from primePool when it has them (see PrimePool), it can be null
+    public VariableLengthRSA(String primesFile, String publicKeyFile, String privateKeyFile, KeyProfile profile, PrimePool primePool) {
+        this.profile = profile;
         int randSeed = new Random().nextInt();
         rand = new Random(randSeed);
-
-        if (VERBOSE_OUTPUT)
-            System.out.println("Rand seed: " + randSeed);
+        BigInteger[] primes;
 
         if (primesFile.equals("null")) {
-            primeP = generatePrime(GEN_LENGTH, rand);
-            primeQ = generatePrime(GEN_LENGTH, rand);
+            primes = generatePrimes(profile, rand, primePool);
         }
         else {
-            if (checkForFile(primesFile)) {
-                String[] fileContents = readFromFile(primesFile).split("\n");
-                primeP = new BigInteger(fileContents[0]);
-                primeQ = new BigInteger(fileContents[1]);
+            if (checkForFile(primesFile)) { // one prime per line, as many as the profile uses
+                String[] fileContents = readFromFile(primesFile).trim().split("\n");
+                primes = new BigInteger[fileContents.length];
+                for (int i = 0; i < primes.length; i++)
+                    primes[i] = new BigInteger(fileContents[i].trim());
+                checkPrimes(primesFile, primes, profile);
             }
             else {
-                primeP = generatePrime(GEN_LENGTH, rand);
-                primeQ = generatePrime(GEN_LENGTH, rand);
-                writeToFile(primesFile, primeP + "\n" + primeQ);
+                primes = generatePrimes(profile, rand, primePool);
+                StringBuilder contents = new StringBuilder();
+                for (BigInteger prime : primes)
+                    contents.append(contents.length() == 0 ? "" : "\n").append(prime);
+                writeToFile(primesFile, contents.toString());
             }
         }
 
-        if (!primeP.isProbablePrime(100) || !primeQ.isProbablePrime(100)) {
-            System.out.println("Error: Prime test may be incorrect");
+        for (BigInteger prime : primes) {
+            if (!prime.isProbablePrime(100))
+                System.out.println("Error: Prime test may be incorrect");
         }
 
+        primeP = primes[0];
+        primeQ = primes[1];
+        otherPrimes = Arrays.copyOfRange(primes, 2, primes.length);
         System.out.println("P: " + primeP);
         System.out.println("Q: " + primeQ);
-        n = primeP.multiply(primeQ);
-        phiN = (primeP.subtract(BigInteger.ONE)).multiply(primeQ.subtract(BigInteger.ONE));
-        e = generateE(phiN, rand);
+        for (int i = 0; i < otherPrimes.length; i++)
+            System.out.println("R" + (i + 3) + ": " + otherPrimes[i]);
+        n = BigInteger.ONE;
+        phiN = BigInteger.ONE;
+        for (BigInteger prime : primes) {
+            n = n.multiply(prime);
+            phiN = phiN.multiply(prime.subtract(BigInteger.ONE));
+        }
+        e = generateE(phiN, rand, profile.getExponentStrategy());
         eInv = inverse_mod_n(e, phiN);
+        dP = eInv.mod(primeP.subtract(BigInteger.ONE));
+        dQ = eInv.mod(primeQ.subtract(BigInteger.ONE));
+        qInv = inverse_mod_n(primeQ, primeP);
+        otherExponents = new BigInteger[otherPrimes.length];
+        otherCoefficients = new BigInteger[otherPrimes.length];
+        BigInteger product = primeP.multiply(primeQ);
+        for (int i = 0; i < otherPrimes.length; i++) {
+            otherExponents[i] = eInv.mod(otherPrimes[i].subtract(BigInteger.ONE));
+            otherCoefficients[i] = inverse_mod_n(product, otherPrimes[i]);
+            product = product.multiply(otherPrimes[i]);
+        }
         if (!publicKeyFile.equals("null")) {
             writeToFile(publicKeyFile, n + "\n" + e);
         }
         if (!privateKeyFile.equals("null")) {
-            writeToFile(privateKeyFile, n + "\n" + eInv);
+            // n and d stay on the first two lines so the file can still be used without the CRT values,
+            // each extra prime of a multi-prime key adds r, d and t lines after qInv
+            StringBuilder contents = new StringBuilder(n + "\n" + eInv + "\n" + primeP + "\n" + primeQ + "\n" + dP + "\n" + dQ + "\n" + qInv);
+            for (int i = 0; i < otherPrimes.length; i++)
+                contents.append("\n").append(otherPrimes[i]).append("\n").append(otherExponents[i]).append("\n").append(otherCoefficients[i]);
+            writeToFile(privateKeyFile, contents.toString());
         }
 
         if ((e.multiply(eInv)).mod(phiN).compareTo(BigInteger.ONE) != 0) {
@@ -88,11 +153,23 @@ public class VariableLengthRSA {
             System.exit(1);
         }
 
+        keyContext = RsaKeyContext.multiPrimePrivateKey(n, e, eInv, primeP, primeQ, dP, dQ, qInv, otherPrimes, otherExponents, otherCoefficients);
+
         System.out.println("n: " + n);
         System.out.println("e: " + e);
         System.out.println("d (eInv): " + eInv);
     }
 
+    // primes saved for another profile would give a key that doesn't match the profile it is made with
+    private static void checkPrimes(String primesFile, BigInteger[] primes, KeyProfile profile) {
+        BigInteger product = BigInteger.ONE;
+        for (BigInteger prime : primes)
+            product = product.multiply(prime);
+        if (primes.length != profile.getPrimeCount() || product.bitLength() != profile.getModulusBits())
+            throw new IllegalArgumentException(primesFile + " has " + primes.length + " primes for a " + product.bitLength() + " bit modulus, the "
+                    + profile.getName() + " profile needs " + profile.getPrimeCount() + " for " + profile.getModulusBits() + " bits");
+    }
+
     /*** UTILITY FUNCTIONS ***/
 
     public static String bigIntToStr(BigInteger num) {
@@ -100,16 +177,22 @@ public class VariableLengthRSA {
     }
 
     public static BigInteger gcd(BigInteger a, BigInteger b) {
+        return NumberTheory.gcd(a, b);
+    }
+
+    // original recursive version, NumberTheory.gcd gives the same result without allocating every step
+    public static BigInteger gcdRecursive(BigInteger a, BigInteger b) {
         if (a.compareTo(BigInteger.ZERO) == 0) {
             return b;
         }
-        return gcd(b.mod(a), a);
+        return gcdRecursive(b.mod(a), a);
     }
 
+    // simple binary ladder, kept as a reference implementation (modExp is used for the actual encryption)
     public static BigInteger square_and_multiply(BigInteger b, BigInteger e, BigInteger m) {
         BigInteger z = new BigInteger("1");
         while (e.compareTo(BigInteger.ZERO) > 0) {
-            if ((e.mod(BigInteger.TWO)).compareTo(BigInteger.ONE) == 0) {
+            if (e.testBit(0)) {
                 z = (z.multiply(b)).mod(m);
             }
             e = e.shiftRight(1);
@@ -118,7 +201,28 @@ public class VariableLengthRSA {
         return z;
     }
 
+    // b^e mod m using the Montgomery engine, checked against BigInteger.modPow when VERIFY_MODEXP is set
+    public static BigInteger modExp(BigInteger b, BigInteger e, BigInteger m) {
+        BigInteger z = MontgomeryEngine.modPow(b, e, m);
+        if (VERIFY_MODEXP && z.compareTo(b.modPow(e, m)) != 0) {
+            System.out.println("Error: modular exponentiation is incorrect");
+        }
+        return z;
+    }
+
     public static BigInteger inverse_mod_n(BigInteger num, BigInteger mod) {
+        try {
+            return NumberTheory.inverse(num, mod);
+        }
+        catch (ArithmeticException ex) {
+            System.out.println("Error finding inverse");
+            System.exit(1);
+            return new BigInteger("-1");
+        }
+    }
+
+    // original extended Euclid version, kept to check NumberTheory.inverse against
+    public static BigInteger inverse_mod_n_euclid(BigInteger num, BigInteger mod) {
         num = num.mod(mod);
 
         BigInteger t = new BigInteger("0");
@@ -149,7 +253,7 @@ public class VariableLengthRSA {
         return t;
     }
 
-    private static byte[] trimArr(byte[] bytes) {
+    static byte[] trimArr(byte[] bytes) {
         int i = bytes.length - 1;
         while (i >= 0 && (((int) bytes[i]) == 0)) {
             i--;
@@ -157,7 +261,7 @@ public class VariableLengthRSA {
         return Arrays.copyOf(bytes, i + 1);
     }
 
-    private static byte[] removeSignBit(byte[] bytes) {
+    static byte[] removeSignBit(byte[] bytes) {
         if (bytes[0] == 0) {
             bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
         }
@@ -176,6 +280,14 @@ public class VariableLengthRSA {
         return new String(hexChars);
     }
 
+    public KeyProfile getProfile() {
+        return profile;
+    }
+
+    public RsaKeyContext getKeyContext() {
+        return keyContext;
+    }
+
     public void printPublicKey() {
         System.out.println("Public Key: (" + n + ", " + e + ")");
     }
@@ -187,7 +299,7 @@ public class VariableLengthRSA {
     public static boolean writeToFile(String fileName, String data) {
         Path file = Paths.get(fileName);
         try {
-            Files.write(file, data.getBytes(), StandardOpenOption.CREATE);
+            Files.write(file, data.getBytes(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
         }
         catch (Exception e) {
             System.out.println("Error writing to file");
@@ -232,21 +344,171 @@ public class VariableLengthRSA {
 
     /*** NUMBER GENERATION ***/
 
+    // Incremental prime search: pick one random odd starting point, sieve the odd numbers after it against the
+    // small primes, then run Miller-Rabin on the numbers that are left (in parallel across all cores).
+    // The top two bits are set so the product of two primes of this length has exactly 2 * length bits
     public static BigInteger generatePrime(int length, Random rand) {
-        BigInteger num;
-        int i = 0;
-        do {
-            i++;
-            num = new BigInteger(length, rand);
-        }while (!solovayStrassenPrimalityTest(num, PRIMALITY_TEST_ITERATIONS, rand));
-        System.out.println("Prime generated after trying " + i + " numbers.");
-        System.out.println("Tested using the Solovay-Strassen primality test " + PRIMALITY_TEST_ITERATIONS + " times.");
-        System.out.println("Probability it is not prime is: " + solovoyStrassenAccuracy(num));
-        return num;
+        return generatePrime(length, rand, millerRabinRounds(length));
+    }
+
+    // how many numbers were sieved and tested is recorded with Instrumentation.primeGenerated
+    public static BigInteger generatePrime(int length, Random rand, int rounds) {
+        if (length < 16)
+            throw new IllegalArgumentException("Prime length must be at least 16 bits");
+        long start = Instrumentation.start();
+        long sieved = 0;
+        LongAdder tested = new LongAdder();
+        LongAdder roundsRun = new LongAdder();
+        while (true) {
+            BigInteger base = new BigInteger(length, rand).setBit(length - 1).setBit(length - 2).setBit(0);
+            boolean[] composite = sieveWindow(base);
+            int[] candidates = IntStream.range(0, SIEVE_WINDOW).filter(k -> !composite[k]).toArray();
+            sieved += SIEVE_WINDOW;
+
+            // findFirst keeps the smallest offset even when run in parallel, so the result only depends on rand
+            OptionalInt found = Arrays.stream(candidates).parallel()
+                    .filter(k -> {
+                        tested.increment();
+                        return millerRabinPrimalityTest(base.add(BigInteger.valueOf(2L * k)), rounds, ThreadLocalRandom.current(), roundsRun);
+                    })
+                    .findFirst();
+            if (found.isPresent()) {
+                BigInteger num = base.add(BigInteger.valueOf(2L * found.getAsInt()));
+                if (num.bitLength() == length) {
+                    Instrumentation.primeGenerated(length, sieved, tested.sum(), roundsRun.sum(), start);
+                    return num;
+                }
+            }
+        }
     }
 
+    // The primes for a key of the given profile, their product always has exactly profile.getModulusBits() bits.
+    // With more than two primes the top two bits aren't enough for that, so the last prime is regenerated until
+    // the product is long enough
+    public static BigInteger[] generatePrimes(KeyProfile profile, Random rand) {
+        return generatePrimes(profile, rand, null);
+    }
+
+    // primes are taken from the pool when it has them (pool can be null), last primes that didn't fit are put back
+    public static BigInteger[] generatePrimes(KeyProfile profile, Random rand, PrimePool pool) {
+        int count = profile.getPrimeCount();
+        int rounds = profile.getPrimalityRounds();
+        BigInteger[] primes = new BigInteger[count];
+        BigInteger product = BigInteger.ONE;
+        for (int i = 0; i < count - 1; i++) {
+            do {
+                primes[i] = nextPrime(profile.getPrimeBits(i), rand, rounds, pool);
+            } while (Arrays.asList(primes).subList(0, i).contains(primes[i]));
+            product = product.multiply(primes[i]);
+        }
+        int lastBits = profile.getPrimeBits(count - 1);
+        List<BigInteger> unused = new ArrayList<>();
+        BigInteger last;
+        while (true) {
+            last = nextPrime(lastBits, rand, rounds, pool);
+            if (product.multiply(last).bitLength() == profile.getModulusBits() && !Arrays.asList(primes).contains(last))
+                break;
+            unused.add(last);
+        }
+        primes[count - 1] = last;
+        if (pool != null && !unused.isEmpty())
+            pool.putBack(lastBits, unused);
+        return primes;
+    }
+
+    private static BigInteger nextPrime(int length, Random rand, int rounds, PrimePool pool) {
+        BigInteger prime = pool != null ? pool.take(length) : null;
+        return prime != null ? prime : generatePrime(length, rand, rounds);
+    }
+
+    // composite[k] is true when start + 2k is divisible by one of SMALL_PRIMES (start must be odd)
+    private static boolean[] sieveWindow(BigInteger start) {
+        boolean[] composite = new boolean[SIEVE_WINDOW];
+        for (int p : SMALL_PRIMES) {
+            int r = start.mod(BigInteger.valueOf(p)).intValue();
+            // start + 2k = 0 (mod p) when k = -r * 2^-1 (mod p), and 2^-1 = (p + 1) / 2
+            int k = (int) ((long) ((p - r) % p) * ((p + 1) / 2) % p);
+            if (start.bitLength() < 32 && start.intValue() + 2 * k == p)
+                k += p; // don't sieve out the small prime itself
+            for (; k < SIEVE_WINDOW; k += p)
+                composite[k] = true;
+        }
+        return composite;
+    }
+
+    // rounds needed for an error probability below 2^-100 (FIPS 186-4 table C.3)
+    public static int millerRabinRounds(int bitLength) {
+        if (bitLength >= 1536) return 3;
+        if (bitLength >= 1024) return 4;
+        if (bitLength >= 512) return 7;
+        if (bitLength >= 256) return 16;
+        return 40;
+    }
+
+    private static int[] smallPrimes(int limit) {
+        boolean[] notPrime = new boolean[limit];
+        List<Integer> primes = new ArrayList<>();
+        for (int i = 3; i < limit; i += 2) {
+            if (!notPrime[i]) {
+                primes.add(i);
+                for (long j = (long) i * i; j < limit; j += 2L * i)
+                    notPrime[(int) j] = true;
+            }
+        }
+        return primes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public static boolean millerRabinPrimalityTest(BigInteger num, int iterations, Random rand) {
+        return millerRabinPrimalityTest(num, iterations, rand, null);
+    }
+
+    // roundsRun (may be null) is increased by the number of rounds actually run, a composite usually stops after one
+    static boolean millerRabinPrimalityTest(BigInteger num, int iterations, Random rand, LongAdder roundsRun) {
+        if (num.compareTo(BigInteger.TWO) < 0)
+            return false;
+        if (num.compareTo(BigInteger.valueOf(3)) <= 0)
+            return true;
+        if (!num.testBit(0))
+            return false;
+
+        // num - 1 = 2^s * d with d odd
+        BigInteger numMinusOne = num.subtract(BigInteger.ONE);
+        int s = numMinusOne.getLowestSetBit();
+        BigInteger d = numMinusOne.shiftRight(s);
+        MontgomeryEngine engine = num.bitLength() > 32 ? new MontgomeryEngine(num) : null;
+
+        for (int i = 0; i < iterations; i++) {
+            if (roundsRun != null)
+                roundsRun.increment();
+            BigInteger randomA;
+            do {
+                randomA = new BigInteger(num.bitLength(), rand);
+            } while (randomA.compareTo(BigInteger.TWO) < 0 || randomA.compareTo(numMinusOne) >= 0); // 2 <= a <= n - 2
+
+            BigInteger x = engine != null ? engine.modPow(randomA, d) : randomA.modPow(d, num);
+            if (x.equals(BigInteger.ONE) || x.equals(numMinusOne))
+                continue;
+            boolean witness = true;
+            for (int r = 1; r < s && witness; r++) {
+                x = x.multiply(x).mod(num);
+                if (x.equals(numMinusOne))
+                    witness = false;
+            }
+            if (witness)
+                return false;
+        }
+        return true;
+    }
+
+    // returns -2 if a and n are not coprime
     public static int jacobi(BigInteger a, BigInteger n) {
-        if (gcd(a,n).compareTo(BigInteger.ONE) != 0) {
+        int result = NumberTheory.jacobi(a, n);
+        return result == 0 ? -2 : result;
+    }
+
+    // original recursive version, kept to check NumberTheory.jacobi against
+    public static int jacobiRecursive(BigInteger a, BigInteger n) {
+        if (gcdRecursive(a,n).compareTo(BigInteger.ONE) != 0) {
             return -2;
         }
         return jacobiAux(a, n, 1);
@@ -274,15 +536,15 @@ public class VariableLengthRSA {
     }
 
     public static BigInteger generateE(BigInteger phiN, Random rand) {
-        BigInteger e;
+        return generateE(phiN, rand, KeyProfile.ExponentStrategy.RANDOM);
+    }
 
-        // check a couple commonly used values for e, which will run more quickly, if not coprime generate one
-        // currently not using because of the program specifications, and because 3 is less secure (although faster)
-//      if (gcd(phiN, BigInteger.valueOf(3)).compareTo(BigInteger.ONE) == 0)
-//          return new BigInteger("3");
+    public static BigInteger generateE(BigInteger phiN, Random rand, KeyProfile.ExponentStrategy strategy) {
+        BigInteger e;
 
-//      if (gcd(phiN, BigInteger.valueOf(65537)).compareTo(BigInteger.ONE) == 0)
-//          return new BigInteger("65537");
+        // 65537 makes encryption much faster, if it is not coprime with phi(n) fall back to a random e
+        if (strategy == KeyProfile.ExponentStrategy.F4 && gcd(phiN, KeyProfile.F4).compareTo(BigInteger.ONE) == 0)
+            return KeyProfile.F4;
 
         do {
             e = new BigInteger(phiN.bitLength(), rand);
@@ -310,7 +572,7 @@ public class VariableLengthRSA {
         for (int i = 0; i < iterations; i++) {
             randomA = new BigInteger(BIT_LENGTH, rand); // generates a random BigInteger (evenly distributed) of size BIT_LENGTH
             randomA = randomA.mod(num.subtract(BigInteger.ONE)).add(BigInteger.ONE); // needs to be in the range 1 < a < n
-            if (square_and_multiply(randomA, num.subtract(BigInteger.ONE),num).compareTo(BigInteger.ONE) != 0) {
+            if (modExp(randomA, num.subtract(BigInteger.ONE),num).compareTo(BigInteger.ONE) != 0) {
                 return false;
             }
         }
@@ -328,7 +590,7 @@ public class VariableLengthRSA {
             BigInteger randomA = new BigInteger(BIT_LENGTH, rand); // generates a random BigInteger (evenly distributed) of size BIT_LENGTH
             randomA = randomA.mod(p.subtract(BigInteger.ONE)).add(BigInteger.ONE); // make sure it is in the correct range
             BigInteger jacobian = (p.add(BigInteger.valueOf(jacobi(randomA,p)))).mod(p); // calculate jacobi syjmbol value
-            BigInteger mod = square_and_multiply(randomA, p.subtract(BigInteger.ONE).divide(BigInteger.TWO), p); // calc a^(n-1)/2 mod n
+            BigInteger mod = modExp(randomA, p.subtract(BigInteger.ONE).divide(BigInteger.TWO), p); // calc a^(n-1)/2 mod n
             if (jacobian.compareTo(BigInteger.ZERO) == 0 || mod.compareTo(jacobian) != 0)
                 return false;
         }
@@ -346,7 +608,7 @@ public class VariableLengthRSA {
     /*** ENCRYPTION ***/
 
     public BigInteger encrypt(String str) {
-        return encrypt(str, n, e);
+        return encrypt(new BigInteger(str.getBytes()), keyContext, null);
     }
 
     public static BigInteger encrypt(String str, BigInteger n, BigInteger e) {
@@ -354,156 +616,405 @@ public class VariableLengthRSA {
         return encrypt(num, n, e);
     }
 
+    // same as encrypt but the blocks are spread across all cores using the common fork-join pool
+    public static BigInteger encryptParallel(String str, BigInteger n, BigInteger e) {
+        return encrypt(new BigInteger(str.getBytes()), n, e, ForkJoinPool.commonPool());
+    }
+
     public BigInteger encrypt(BigInteger num) {
-        return encrypt(num, n, e);
+        return encrypt(num, keyContext, null);
     }
 
     public static BigInteger encrypt(BigInteger num, BigInteger n, BigInteger e) {
-        byte[] numByteArr = num.toByteArray();
-        numByteArr = removeSignBit(numByteArr); // remove sign bit, will not change if not needed
-        int toPad = (BLOCK_SIZE - (numByteArr.length % BLOCK_SIZE)) % BLOCK_SIZE;
-        int numBlocks = (numByteArr.length + toPad) / BLOCK_SIZE;
-        if (VERBOSE_OUTPUT) {
-            System.out.println("Encrypting");
-            System.out.println("To pad: " + toPad);
-            System.out.println("Num Blocks: " + numBlocks);
-            System.out.println("Unencoded text: " + num);
+        return encrypt(num, n, e, null);
+    }
+
+    public static BigInteger encrypt(BigInteger num, BigInteger n, BigInteger e, ExecutorService executor) {
+        return encrypt(num, RsaKeyContext.publicKey(n, e), executor);
+    }
+
+    // blocks are spread across the executor when one is given, the output is the same as the serial version
+    public static BigInteger encrypt(BigInteger num, RsaKeyContext key, ExecutorService executor) {
+        int blockSize = key.getBlockSize();
+        int cipherBlockSize = key.getModulusLength();
+        byte[] numBytes = removeSignBit(num.toByteArray()); // remove sign bit, will not change if not needed
+        int toPad = (blockSize - (numBytes.length % blockSize)) % blockSize;
+        int numBlocks = (numBytes.length + toPad) / blockSize;
+        long start = Instrumentation.start();
+        if (toPad != 0) // pad if necessary
+            numBytes = Arrays.copyOf(numBytes, numBytes.length + toPad);
+        byte[] numByteArr = numBytes;
+
+        // changed from BLOCK_SIZE to BIT_LENGTH/8 because the resulting length will not be BLOCK_SIZE
+        byte[] resultByteArr = new byte[numBlocks * cipherBlockSize];
+
+        processBlocks(numBlocks, executor, i -> encryptBlock(numByteArr, resultByteArr, i, key));
+        Instrumentation.blocksProcessed("encrypt", numBlocks, numByteArr.length, start);
+        return new BigInteger(1, resultByteArr);
+    }
+
+    private static void encryptBlock(byte[] numByteArr, byte[] resultByteArr, int i, RsaKeyContext key) {
+        int blockSize = key.getBlockSize();
+        int cipherBlockSize = key.getModulusLength();
+        // encrypted in place, then moved to the layout this format has always used
+        key.encryptBlock(numByteArr, i * blockSize, blockSize, resultByteArr, i * cipherBlockSize);
+        toLegacyLayout(resultByteArr, i * cipherBlockSize, cipherBlockSize);
+    }
+
+    public BigInteger decrypt(BigInteger num) {
+        return decrypt(num, keyContext, null);
+    }
+
+    public BigInteger decryptParallel(BigInteger num) {
+        return decrypt(num, keyContext, ForkJoinPool.commonPool());
+    }
+
+    public static BigInteger decrypt(BigInteger num, BigInteger n, BigInteger eInv) {
+        return decrypt(num, n, eInv, null, null, null, null, null);
+    }
+
+    public static BigInteger decrypt(BigInteger num, BigInteger n, BigInteger eInv, BigInteger p, BigInteger q, BigInteger dP, BigInteger dQ, BigInteger qInv) {
+        return decrypt(num, n, eInv, p, q, dP, dQ, qInv, null);
+    }
+
+    // uses the CRT values when they are given (p != null), otherwise falls back to a full exponentiation with eInv
+    public static BigInteger decrypt(BigInteger num, BigInteger n, BigInteger eInv, BigInteger p, BigInteger q, BigInteger dP, BigInteger dQ, BigInteger qInv, ExecutorService executor) {
+        return decrypt(num, privateKeyContext(n, eInv, p, q, dP, dQ, qInv), executor);
+    }
+
+    // executor works the same as in encrypt, null runs the blocks one after another
+    public static BigInteger decrypt(BigInteger num, RsaKeyContext key, ExecutorService executor) {
+        int blockSize = key.getBlockSize();
+        int cipherBlockSize = key.getModulusLength();
+        byte[] numByteArr = removeSignBit(num.toByteArray()); // remove sign bit
+        int numBlocks = numByteArr.length / (cipherBlockSize);
+        byte[] resultByteArr = new byte[blockSize * numBlocks];
+        long start = Instrumentation.start();
+
+        processBlocks(numBlocks, executor, i -> decryptBlock(numByteArr, resultByteArr, i, key));
+        Instrumentation.blocksProcessed("decrypt", numBlocks, numByteArr.length, start);
+        return new BigInteger(1, trimArr(resultByteArr));
+    }
+
+    private static void decryptBlock(byte[] numByteArr, byte[] resultByteArr, int i, RsaKeyContext key) {
+        int blockSize = key.getBlockSize();
+        int cipherBlockSize = key.getModulusLength();
+        fromLegacyLayout(numByteArr, i * cipherBlockSize, cipherBlockSize); // numByteArr is our own copy
+        try {
+            key.decryptBlock(numByteArr, i * cipherBlockSize, resultByteArr, i * blockSize, blockSize);
         }
-        if (toPad != 0) { // pad if necessary
-            if (VERBOSE_OUTPUT)
-                System.out.println("Padding added (overall)");
-            numByteArr = Arrays.copyOf(numByteArr, numByteArr.length + toPad);
+        catch (IllegalArgumentException ex) { // wrong key, the block is left as zeros
+            System.out.println("ERROR: Resulting block to big");
+            return;
         }
+        toLegacyLayout(resultByteArr, i * blockSize, blockSize);
+    }
 
-        if (VERBOSE_OUTPUT)
-            System.out.println("Total length: " + numByteArr.length);
+    // The BigInteger encrypt/decrypt store every block number left aligned, with the zeros after it instead of in
+    // front. That can't tell a block's own trailing zeros from padding, which is why the byte array versions use
+    // fixed width blocks (see BlockCodec). These convert one block in place between the two layouts
+    private static void toLegacyLayout(byte[] bytes, int offset, int width) {
+        int zeros = 0;
+        while (zeros < width && bytes[offset + zeros] == 0)
+            zeros++;
+        if (zeros > 0) {
+            System.arraycopy(bytes, offset + zeros, bytes, offset, width - zeros);
+            Arrays.fill(bytes, offset + width - zeros, offset + width, (byte) 0);
+        }
+    }
 
-        // changed from BLOCK_SIZE to BIT_LENGTH/8 because the resulting length will not be BLOCK_SIZE
-        byte[] resultByteArr = new byte[numBlocks * BIT_LENGTH/8];
-
-        for (int i = 0; i < numBlocks; i++) {
-            num = new BigInteger(1, Arrays.copyOfRange(numByteArr, i * BLOCK_SIZE, (i+1) * BLOCK_SIZE));
-            if (VERBOSE_OUTPUT) {
-                System.out.println("Range: " + i * BLOCK_SIZE + " - " + (i + 1) * BLOCK_SIZE);
-                System.out.println("Enc before s&m: " + num);
-                System.out.println("Enc s&m test1: " + num.modPow(e, n));
-            }
+    static void fromLegacyLayout(byte[] bytes, int offset, int width) {
+        int zeros = 0;
+        while (zeros < width && bytes[offset + width - 1 - zeros] == 0)
+            zeros++;
+        if (zeros > 0) {
+            System.arraycopy(bytes, offset, bytes, offset + zeros, width - zeros);
+            Arrays.fill(bytes, offset, offset + zeros, (byte) 0);
+        }
+    }
 
-            BigInteger numTest = num.modPow(e,n);
-            num = square_and_multiply(num, e, n);
-            if (num.compareTo(numTest) != 0) {
-                System.out.println("Error: square and multiply is incorrect");
-            }
-            byte[] toCopy = num.toByteArray();
-            toCopy = removeSignBit(toCopy); // remove sign bit, will not change if not needed
+    // Byte array messages with an explicit length (see BlockCodec): decrypt gives back exactly the bytes that were
+    // encrypted. The ciphertext is a whole number of modulus length blocks
+    public static byte[] encrypt(byte[] message, RsaKeyContext key, ExecutorService executor) {
+        return encrypt(message, key, executor, null);
+    }
 
-            if (VERBOSE_OUTPUT) {
-                System.out.println("num.toByteArray() Hex: " + bytesToHex(num.toByteArray()));
-                System.out.println("Enc after s&m: " + num);
-                //System.out.println("Enc s&m test2: " + num.modPow(eInv, n));
+    // compression (may be null) is applied first, but only kept if it makes the message smaller, so text/JSON/logs
+    // need far fewer blocks and data that doesn't compress costs nothing extra. decrypt recognises either
+    public static byte[] encrypt(byte[] message, RsaKeyContext key, ExecutorService executor, Compression compression) {
+        BlockCodec codec = new BlockCodec(key);
+        long start = Instrumentation.start();
+        byte[] payload = message;
+        boolean compressed = false;
+        if (compression != null) {
+            byte[] packed = compressPayload(message, compression);
+            if (packed.length < message.length) {
+                payload = packed;
+                compressed = true;
             }
+        }
+        byte[] framedPayload = payload;
+        boolean framedCompressed = compressed;
+        int numBlocks = codec.ciphertextBlocks(payload.length);
+        byte[] ciphertext = new byte[numBlocks * key.getModulusLength()];
+        int lanes = codec.getBatchBlocks();
+        processBlocks((numBlocks + lanes - 1) / lanes, executor,
+                g -> codec.encryptBlocks(framedPayload, g * lanes, Math.min(lanes, numBlocks - g * lanes), ciphertext, framedCompressed));
+        Instrumentation.blocksProcessed("encrypt", numBlocks, message.length, start);
+        return ciphertext;
+    }
 
-            // pad block
-            if (toCopy.length < BIT_LENGTH/8) { // changed from BLOCK_SIZE to BIT_LENGTH/8 because the resulting length will not be BLOCK_SIZE
-                if (VERBOSE_OUTPUT)
-                    System.out.println("Padding added (block)");
-                toCopy = Arrays.copyOf(toCopy, BIT_LENGTH/8);
-            }
+    // the Compression id followed by the compressed message
+    private static byte[] compressPayload(byte[] message, Compression compression) {
+        try {
+            byte[] compressed = compression.compress(message);
+            byte[] payload = new byte[compressed.length + 1];
+            payload[0] = (byte) compression.getId();
+            System.arraycopy(compressed, 0, payload, 1, compressed.length);
+            return payload;
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException("Error compressing message", ex);
+        }
+    }
 
-            if (VERBOSE_OUTPUT) {
-                System.out.println("toCopy Hex: " + bytesToHex(toCopy));
-                System.out.println("toCopy length: " + toCopy.length);
-                System.out.println("resultByteArr length: " + resultByteArr.length);
-                System.out.println("start index: " + i * BIT_LENGTH / 8);
-                System.out.println("length to copy: " + BIT_LENGTH / 8);
-                System.out.println("n length: " + n.toByteArray().length);
-            }
+    // throws IllegalArgumentException if the ciphertext isn't whole blocks or wasn't encrypted with this key
+    public static byte[] decrypt(byte[] ciphertext, RsaKeyContext key, ExecutorService executor) {
+        BlockCodec codec = new BlockCodec(key);
+        int numBlocks = codec.ciphertextBlocks(ciphertext);
+        byte[] framed = new byte[numBlocks * key.getBlockSize()];
+        long start = Instrumentation.start();
+        int lanes = codec.getBatchBlocks();
+        processBlocks((numBlocks + lanes - 1) / lanes, executor, g -> codec.decryptBlocks(ciphertext, g * lanes, Math.min(lanes, numBlocks - g * lanes), framed));
+        byte[] message = codec.unframeMessage(framed);
+        Instrumentation.blocksProcessed("decrypt", numBlocks, message.length, start);
+        return message;
+    }
+
+    // key context for the decrypt overloads that take the raw key values, CRT is used if p is given
+    private static RsaKeyContext privateKeyContext(BigInteger n, BigInteger eInv, BigInteger p, BigInteger q, BigInteger dP, BigInteger dQ, BigInteger qInv) {
+        if (p != null)
+            return RsaKeyContext.crtPrivateKey(n, null, eInv, p, q, dP, dQ, qInv);
+        return RsaKeyContext.privateKey(n, eInv);
+    }
+
+    // runs blockFunction for every block index, split into chunks across the executor if there is one
+    // every block writes to its own slot of the result array so no locking is needed
+    static void processBlocks(int numBlocks, ExecutorService executor, IntConsumer blockFunction) {
+        if (executor == null || numBlocks < 2) {
+            for (int i = 0; i < numBlocks; i++)
+                blockFunction.accept(i);
+            return;
+        }
+
+        int numTasks = Math.min(numBlocks, Runtime.getRuntime().availableProcessors() * 4);
+        List<Future<?>> tasks = new ArrayList<>(numTasks);
+        for (int t = 0; t < numTasks; t++) {
+            int start = (int) ((long) numBlocks * t / numTasks);
+            int end = (int) ((long) numBlocks * (t + 1) / numTasks);
+            tasks.add(executor.submit(() -> {
+                for (int i = start; i < end; i++)
+                    blockFunction.accept(i);
+            }));
+        }
+        try {
+            for (Future<?> task : tasks)
+                task.get();
+        }
+        catch (InterruptedException ex) {
+            cancel(tasks);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing blocks", ex);
+        }
+        catch (ExecutionException ex) {
+            // cancel the rest and throw the first failure unchanged, the same exception as without an executor
+            cancel(tasks);
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException("Error processing block", cause);
+        }
+    }
+
+    private static void cancel(List<Future<?>> tasks) {
+        for (Future<?> task : tasks)
+            task.cancel(true);
+    }
+
+    /*** END ENCRYPTION ***/
+
+    /*** STREAMING ***/
+
+    // Files are encrypted/decrypted STREAM_BATCH_BLOCKS blocks at a time so memory use does not depend on the file size.
+    // The block sizes come from the key (see KeyProfile).
+    // The ciphertext is written as a CiphertextContainer
+    public static final int STREAM_BATCH_BLOCKS = 64;
+
+    public static long encryptFile(String inputFile, String outputFile, BigInteger n, BigInteger e) throws IOException {
+        return encryptFile(inputFile, outputFile, n, e, null);
+    }
 
-            System.arraycopy(toCopy, 0, resultByteArr, i*BIT_LENGTH/8, BIT_LENGTH/8);
-            if (VERBOSE_OUTPUT) {
-                System.out.println("Should be: " + new BigInteger(1, toCopy));
-                System.out.println("Might be: " + new BigInteger(1, trimArr(toCopy)));
-                System.out.println("Current resultByteArr: " + new BigInteger(1, trimArr(resultByteArr)));
-                System.out.println("Current resultByteArr Length: " + trimArr(resultByteArr).length);
+    public static long encryptFile(String inputFile, String outputFile, BigInteger n, BigInteger e, ExecutorService executor) throws IOException {
+        return encryptFile(inputFile, outputFile, RsaKeyContext.publicKey(n, e), executor);
+    }
+
+    public static long encryptFile(String inputFile, String outputFile, RsaKeyContext key, ExecutorService executor) throws IOException {
+        return encryptFile(inputFile, outputFile, key, executor, null);
+    }
+
+    // returns the number of blocks written. With a compression (may be null) the file is compressed as it is read
+    // and the blocks hold the compressed stream, the container records which compression was used
+    public static long encryptFile(String inputFile, String outputFile, RsaKeyContext key, ExecutorService executor, Compression compression) throws IOException {
+        int blockSize = key.getBlockSize();
+        int cipherBlockSize = key.getModulusLength();
+        byte[] plainBatch = new byte[STREAM_BATCH_BLOCKS * blockSize];
+        byte[] cipherBatch = new byte[STREAM_BATCH_BLOCKS * cipherBlockSize];
+        int lanes = key.getBatchLanes(); // blocks encrypted together, see RsaKeyContext.encryptBlocks
+        long totalBlocks = 0;
+        long totalBytes = 0;
+        long start = Instrumentation.start();
+
+        try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
+             InputStream source = compression != null ? compression.compressing(Channels.newInputStream(in)) : null;
+             CiphertextContainer.Writer out = new CiphertextContainer.Writer(outputFile, key)) {
+            out.setCompression(compression);
+            int read;
+            while ((read = source != null ? readFully(source, plainBatch) : readFully(in, plainBatch)) > 0) {
+                Arrays.fill(plainBatch, read, plainBatch.length, (byte) 0); // pad the last block with zeros
+                int numBlocks = (read + blockSize - 1) / blockSize;
+                processBlocks((numBlocks + lanes - 1) / lanes, executor, g -> key.encryptBlocks(plainBatch, g * lanes * blockSize, blockSize,
+                        cipherBatch, g * lanes * cipherBlockSize, Math.min(lanes, numBlocks - g * lanes)));
+                out.writeBlocks(cipherBatch, numBlocks);
+                totalBlocks += numBlocks;
+                totalBytes += read;
             }
+            out.setPlaintextLength(totalBytes);
         }
-        if (VERBOSE_OUTPUT)
-            System.out.println("resultByteArr Hex: " + bytesToHex(resultByteArr));
+        Instrumentation.blocksProcessed("encryptFile", totalBlocks, Files.size(Paths.get(inputFile)), start);
+        return totalBlocks;
+    }
 
-        return new BigInteger(1, resultByteArr);
+    public static long decryptFile(String inputFile, String outputFile, BigInteger n, BigInteger eInv) throws IOException {
+        return decryptFile(inputFile, outputFile, n, eInv, null, null, null, null, null, null);
     }
 
-    public BigInteger decrypt(BigInteger num) {
-        return decrypt(num, n, eInv);
+    public static long decryptFile(String inputFile, String outputFile, BigInteger n, BigInteger eInv, BigInteger p, BigInteger q, BigInteger dP, BigInteger dQ, BigInteger qInv, ExecutorService executor) throws IOException {
+        return decryptFile(inputFile, outputFile, privateKeyContext(n, eInv, p, q, dP, dQ, qInv), executor);
     }
 
-    public static BigInteger decrypt(BigInteger num, BigInteger n, BigInteger eInv) {
-        byte[] numByteArr = num.toByteArray();
-        numByteArr = removeSignBit(numByteArr); // remove sign bit
-        int numBlocks = numByteArr.length / (BIT_LENGTH/8);
-        byte[] resultByteArr = new byte[BLOCK_SIZE * numBlocks];
-
-        if (VERBOSE_OUTPUT) {
-            System.out.println("Decrypting");
-            System.out.println("numByteArr Hex: " + bytesToHex(numByteArr));
-            System.out.println("Num blocks dec: " + numBlocks);
-        }
-
-        for (int i = 0; i < numBlocks; i++) {
-            byte[] toNum = Arrays.copyOfRange(numByteArr, i * BIT_LENGTH/8, (i+1) * BIT_LENGTH/8);
-
-            toNum = trimArr(toNum); //todo maybe look into it, doesn't seem needed now
-            num = new BigInteger(1, toNum);
-            if (VERBOSE_OUTPUT) {
-                System.out.println("Dec before s&m: " + num);
-                System.out.println("toNum Hex: " + bytesToHex(toNum));
-                System.out.println("num.toByteArray() Hex: " + bytesToHex(num.toByteArray()));
+    // returns the number of plaintext bytes written. The container records the plaintext length, for containers
+    // without it (older versions, importDecimal) trailing zeros of the last block are removed like in decrypt.
+    // Compressed containers are decompressed as the blocks are decrypted
+    public static long decryptFile(String inputFile, String outputFile, RsaKeyContext key, ExecutorService executor) throws IOException {
+        int blockSize = key.getBlockSize();
+        int cipherBlockSize = key.getModulusLength();
+        byte[] cipherBatch = new byte[STREAM_BATCH_BLOCKS * cipherBlockSize];
+        byte[] plainBatch = new byte[STREAM_BATCH_BLOCKS * blockSize];
+        int lanes = key.getBatchLanes();
+        long totalBytes = 0;
+        long start = Instrumentation.start();
+
+        try (CiphertextContainer.Reader in = new CiphertextContainer.Reader(inputFile);
+             FileChannel out = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (!in.matchesKey(key))
+                throw new IOException("Ciphertext was encrypted with a different key");
+            if (in.getModulusLength() != cipherBlockSize || in.getBlockSize() != blockSize)
+                throw new IOException("Unsupported block geometry: " + in.getBlockSize() + "/" + in.getModulusLength());
+            Compression compression = in.getCompression();
+            OutputStream sink = compression != null ? compression.decompressing(Channels.newOutputStream(out)) : null;
+            long blockIndex = 0;
+            int numBlocks;
+            while ((numBlocks = in.readBlocks(blockIndex, cipherBatch, STREAM_BATCH_BLOCKS)) > 0) {
+                blockIndex += numBlocks;
+                int blocks = numBlocks;
+                processBlocks((numBlocks + lanes - 1) / lanes, executor, g -> key.decryptBlocks(cipherBatch, g * lanes * cipherBlockSize,
+                        plainBatch, g * lanes * blockSize, blockSize, Math.min(lanes, blocks - g * lanes)));
+                int length = numBlocks * blockSize;
+                if (blockIndex == in.getBlockCount()) { // last batch, remove the padding
+                    if (in.getPlaintextLength() >= 0) {
+                        length = (int) (in.getPlaintextLength() - totalBytes);
+                    }
+                    else {
+                        while (length > 0 && plainBatch[length - 1] == 0)
+                            length--;
+                    }
+                }
+                if (sink != null)
+                    sink.write(plainBatch, 0, length);
+                else
+                    writeFully(out, plainBatch, length);
+                totalBytes += length;
             }
-            num = square_and_multiply(num, eInv, n);
-            if (VERBOSE_OUTPUT) {
-                System.out.println("Dec after s&m: " + num);
-                System.out.println("num.toByteArray() length: " + num.toByteArray().length);
+            if (sink != null) {
+                sink.close(); // finishes decompressing, also closes out
+                totalBytes = Files.size(Paths.get(outputFile));
             }
+            Instrumentation.blocksProcessed("decryptFile", blockIndex, totalBytes, start);
+        }
+        return totalBytes;
+    }
 
-            byte[] toCopy = num.toByteArray();
-            removeSignBit(toCopy);
-            if (toCopy.length < BLOCK_SIZE)
-                toCopy = Arrays.copyOf(num.toByteArray(), BLOCK_SIZE);
-            else if (toCopy.length > BLOCK_SIZE) { // testing, might not need
-                System.out.println("ERROR: Resulting block to big");
-            }
-            System.arraycopy(toCopy, 0, resultByteArr, i*BLOCK_SIZE, BLOCK_SIZE);
+    // reads until the array is full or the end of the channel is reached, returns the number of bytes read
+    private static int readFully(FileChannel channel, byte[] dest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dest);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                break;
         }
-        resultByteArr = trimArr(resultByteArr);
-        return new BigInteger(1, resultByteArr);
+        return buffer.position();
     }
 
-    /*** END ENCRYPTION ***/
+    private static int readFully(InputStream in, byte[] dest) throws IOException {
+        int total = 0;
+        int read;
+        while (total < dest.length && (read = in.read(dest, total, dest.length - total)) >= 0)
+            total += read;
+        return total;
+    }
 
-    public static BigInteger findSophieGermainPrime() {
-        Random r = new Random();
-        BigInteger p;
-        BigInteger safe;
-		
-        do {
-            p = generatePrime(1024, r);
-            safe = p.multiply(BigInteger.TWO).add(BigInteger.ONE);
-        }while (!solovayStrassenPrimalityTest(safe, 100, r));
-		
-        return p;
+    private static void writeFully(FileChannel channel, byte[] src, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(src, 0, length);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
     }
 
-	// This program can also be used to find a "Sophie Germain Prime", using this main
-    public static void mainSG(String[] args) {
-        System.out.println(findSophieGermainPrime());
+    /*** END STREAMING ***/
+
+    // a 1024 bit Sophie Germain prime p (2p + 1 is also prime), see SafePrimeSearch.
+    // This program can also be used to find one from the command line: VariableLengthRSA safeprime --bits 1025
+    public static BigInteger findSophieGermainPrime() {
+        return new SafePrimeSearch(1025).findSophieGermainPrime();
     }
 	
     public static void main(String[] args) {
+        // with arguments run one of the tools (server, test client, prime pool, safe prime search, indexed log, keyring, signatures) or the batch mode
+        if (args.length > 0) {
+            if (args[0].equals("serve"))
+                RsaServer.main(args);
+            else if (args[0].equals("client"))
+                RsaClient.main(args);
+            else if (args[0].equals("pool"))
+                PrimePool.main(args);
+            else if (args[0].equals("safeprime"))
+                SafePrimeSearch.main(args);
+            else if (args[0].equals("log"))
+                IndexedCiphertext.main(args);
+            else if (args[0].equals("keyring"))
+                Keyring.main(args);
+            else if (args[0].equals("sign") || args[0].equals("verify"))
+                RsaSignature.main(args);
+            else
+                BatchCli.main(args);
+            return;
+        }
         Scanner input = new Scanner(System.in);
         String primesFile = "primes.txt";
         String publicKeyFile = "public_key.txt";
         String privateKeyFile = "private_key.txt";
         String encryptedMessageFile = "encrypted_message.txt";
+        String encryptedContainerFile = "encrypted_message.bin";
         String decryptedMessageFile = "decrypted_message.txt";
         int encDec = -1;
         int loadKeys = -1;
@@ -511,10 +1022,7 @@ public class VariableLengthRSA {
         VariableLengthRSA theRSA;
         String inputFile;
         String inputMessage;
-        String[] inputKeys;
-        BigInteger importedN = null;
-        BigInteger importedE = null;
-        BigInteger importedD = null;
+        RsaKeyContext importedKey;
         String encryptedMessage;
         String decryptedMessage;
 
@@ -526,33 +1034,46 @@ public class VariableLengthRSA {
             if (loadKeys == 1) {
                 System.out.println("Please enter the public key file name (ensure n and e are on the first two lines respectively):");
                 inputFile = input.nextLine();
-                inputKeys = readFromFile(inputFile).split("\n");
-                importedN = new BigInteger(inputKeys[0].trim());
-                importedE = new BigInteger(inputKeys[1].trim());
+                importedKey = RsaKeyContext.fromPublicKeyFile(inputFile);
             }
             else {
                 System.out.println("Please enter n:");
                 String nStr = input.nextLine();
                 System.out.println("Please enter e:");
                 String eStr = input.nextLine();
-                importedN = new BigInteger(nStr);
-                importedE = new BigInteger(eStr);
+                importedKey = RsaKeyContext.publicKey(new BigInteger(nStr), new BigInteger(eStr));
             }
             System.out.println("Would you like to encrypt a message from a file or the terminal? (1: file, 2: terminal)");
             fileOrCL = Integer.parseInt(input.nextLine());
             if (fileOrCL == 1) {
+                // files are streamed into the binary container format instead of being read into memory
                 System.out.println("Please enter the message's file name:");
                 inputFile = input.nextLine();
-                inputMessage = readFromFile(inputFile);
+                System.out.println("Would you like to use RSA only or hybrid RSA + AES-GCM (much faster for large files)? (1: RSA, 2: hybrid)");
+                boolean hybrid = input.hasNextLine() && input.nextLine().trim().equals("2");
+                try {
+                    if (hybrid) {
+                        long bytes = HybridCipher.encryptFile(inputFile, encryptedContainerFile, importedKey, ForkJoinPool.commonPool());
+                        System.out.println("Encrypted " + bytes + " bytes");
+                    }
+                    else {
+                        long blocks = encryptFile(inputFile, encryptedContainerFile, importedKey, ForkJoinPool.commonPool());
+                        System.out.println("Encrypted " + blocks + " blocks");
+                    }
+                    System.out.println("Encrypted message stored in: " + encryptedContainerFile);
+                }
+                catch (IOException ex) {
+                    System.out.println("Error encrypting file: " + ex.getMessage());
+                }
             }
             else {
                 System.out.println("Please enter your message:");
                 inputMessage = input.nextLine();
+                encryptedMessage = encrypt(new BigInteger(inputMessage.getBytes()), importedKey, ForkJoinPool.commonPool()) + "";
+                System.out.println("Encrypted message: " + encryptedMessage);
+                System.out.println("Encrypted message stored in: " + encryptedMessageFile);
+                writeToFile(encryptedMessageFile, encryptedMessage);
             }
-            encryptedMessage = VariableLengthRSA.encrypt(inputMessage, importedN, importedE) + "";
-            System.out.println("Encrypted message: " + encryptedMessage);
-            System.out.println("Encrypted message stored in: " + encryptedMessageFile);
-            writeToFile(encryptedMessageFile, encryptedMessage);
         }
         else if (encDec == 2) {
             System.out.println("Would you like to load the decryption key from a file or enter in the terminal? (1: file, 2: terminal)");
@@ -560,37 +1081,55 @@ public class VariableLengthRSA {
             if (loadKeys == 1) {
                 System.out.println("Please enter the private key file name (ensure n and d/eInv) are on the first two lines respectively):");
                 inputFile = input.nextLine();
-                inputKeys = readFromFile(inputFile).split("\n");
-                importedN = new BigInteger(inputKeys[0].trim());
-                importedD = new BigInteger(inputKeys[1].trim());
+                importedKey = RsaKeyContext.fromPrivateKeyFile(inputFile); // uses CRT if p, q, dP, dQ, qInv follow n and d
             }
             else {
                 System.out.println("Please enter n:");
                 String nStr = input.nextLine();
-                importedN = new BigInteger(nStr);
                 System.out.println("Please enter d (eInv):");
                 String dStr = input.nextLine();
-                importedD = new BigInteger(dStr);
+                importedKey = RsaKeyContext.privateKey(new BigInteger(nStr), new BigInteger(dStr));
             }
             System.out.println("Would you like to decrypt a message from a file or the terminal? (1: file, 2: terminal)");
             fileOrCL = Integer.parseInt(input.nextLine());
             if (fileOrCL == 1) {
                 System.out.println("Please enter the encrypted message's file name:");
                 inputFile = input.nextLine();
-                inputMessage = readFromFile(inputFile);
+                boolean hybrid = HybridCipher.isHybrid(inputFile);
+                if (hybrid || CiphertextContainer.isContainer(inputFile)) {
+                    try {
+                        if (hybrid)
+                            HybridCipher.decryptFile(inputFile, decryptedMessageFile, importedKey, ForkJoinPool.commonPool());
+                        else
+                            decryptFile(inputFile, decryptedMessageFile, importedKey, ForkJoinPool.commonPool());
+                        System.out.println("Decrypted message stored in: " + decryptedMessageFile);
+                    }
+                    catch (IOException | IllegalArgumentException ex) { // IllegalArgumentException for a block the key can't decrypt
+                        System.out.println("Error decrypting file: " + ex.getMessage());
+                    }
+                    return;
+                }
+                inputMessage = readFromFile(inputFile); // old format, the whole ciphertext as a decimal number
             }
             else {
                 System.out.println("Please enter your encrypted message:");
                 inputMessage = input.nextLine();
             }
-            decryptedMessage = bigIntToStr(decrypt(new BigInteger(inputMessage), importedN, importedD));
+            decryptedMessage = bigIntToStr(decrypt(new BigInteger(inputMessage.trim()), importedKey, ForkJoinPool.commonPool()));
             System.out.println("Decrypted message: " + decryptedMessage);
             System.out.println("Decrypted message stored in: " + decryptedMessageFile);
             writeToFile(decryptedMessageFile, decryptedMessage);
         }
         else {
-            System.out.println("Generating keys");
-            theRSA = new VariableLengthRSA("null", "public_key.txt", "private_key.txt");
+            System.out.println("Which key profile would you like to use? (2048-random, 2048, 3072, 4096, 2048-3p, 2048-4p, blank for 2048-random)");
+            String profileName = input.hasNextLine() ? input.nextLine().trim() : "";
+            KeyProfile profile = profileName.isEmpty() ? KeyProfile.DEFAULT : KeyProfile.forName(profileName);
+            System.out.println("Generating keys: " + profile);
+            // primes come from the pool if one has been filled (VariableLengthRSA pool), otherwise they are generated now
+            PrimePool pool = checkForFile(PrimePool.DEFAULT_STORE) ? new PrimePool(PrimePool.DEFAULT_STORE) : null;
+            theRSA = new VariableLengthRSA("null", "public_key.txt", "private_key.txt", profile, pool);
+            if (pool != null)
+                System.out.println("Primes taken from " + PrimePool.DEFAULT_STORE + ": " + pool.getHits() + " (" + pool.getMisses() + " generated)");
             System.out.println("Public keys stored in: " + publicKeyFile);
             System.out.println("Private key stored in: " + privateKeyFile);
         }